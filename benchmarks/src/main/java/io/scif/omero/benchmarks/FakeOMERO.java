@@ -0,0 +1,374 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
+import io.scif.omero.OMEROCredentials;
+import io.scif.omero.OMEROSession;
+import io.scif.omero.OMEROSessionService;
+import io.scif.util.FormatTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import omero.api.IContainerPrx;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+import omero.api.RawPixelsStorePrx;
+import omero.api.RawPixelsStorePrxHelper;
+import omero.api.ServiceFactoryPrx;
+import omero.model.Image;
+import omero.model.ImageI;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsType;
+import omero.model.PixelsTypeI;
+
+import org.apache.tools.bzip2.CBZip2OutputStream;
+
+/**
+ * An in-process stand-in for an OMERO server hosting a single image, with
+ * configurable simulated latency and bandwidth.
+ * <p>
+ * The simulated bandwidth applies to payloads as sent: with compression on,
+ * to their size after bzip2 compression, as Ice does it. The pixels served
+ * are a noisy ramp rather than zeros, so that compression has realistic work
+ * to do.
+ * </p>
+ * <p>
+ * Raw pixels stores are genuine Ice proxies to {@link FakePixelsStore}
+ * servants on the loopback interface, so that asynchronous calls work; the
+ * session and its other services are plain dynamic proxies, which understand
+ * just the calls made by the OMERO format.
+ * </p>
+ */
+public class FakeOMERO implements Closeable {
+
+	// -- Constants --
+
+	/** The server name under which {@link #register} pools the fake session. */
+	public static final String SERVER = "fake.omero";
+
+	public static final long IMAGE_ID = 1, PIXELS_ID = 1;
+
+	// -- Fields --
+
+	private final Ice.Communicator communicator;
+	private final Ice.ObjectAdapter adapter;
+
+	private int sizeX = 1024, sizeY = 1024, sizeZ = 10, sizeC = 1, sizeT = 1;
+	private String pixelType = "uint16";
+	private int tileWidth = 256, tileHeight = 256;
+	private int resolutionLevels = 1;
+
+	private long latency;
+	private long bandwidth;
+	private boolean compressed;
+
+	/** Sample pixels, and their compressed sizes, by length. */
+	private final Map<Integer, byte[]> pixels = new HashMap<Integer, byte[]>();
+	private final Map<Integer, Integer> compressedSizes =
+		new HashMap<Integer, Integer>();
+
+	// -- Constructors --
+
+	public FakeOMERO() {
+		final Ice.InitializationData init = new Ice.InitializationData();
+		init.properties = Ice.Util.createProperties();
+		// NB: Match the message size limit of OMERO clients.
+		init.properties.setProperty("Ice.MessageSizeMax", "65536");
+		init.properties.setProperty("Ice.ThreadPool.Server.Size", "8");
+		communicator = Ice.Util.initialize(init);
+		adapter =
+			communicator.createObjectAdapterWithEndpoints("FakeOMERO",
+				"tcp -h 127.0.0.1");
+		adapter.activate();
+	}
+
+	// -- FakeOMERO methods --
+
+	/** Gets the source string which opens the fake image. */
+	public String getSource() {
+		return "omero:server=" + SERVER + "&pixelsID=" + PIXELS_ID;
+	}
+
+	/** Creates a session on the fake server. */
+	public OMEROSession createSession() {
+		return new OMEROSession(proxy(ServiceFactoryPrx.class));
+	}
+
+	/**
+	 * Pools a session on the fake server, so that the OMERO format uses it for
+	 * {@link #getSource()}.
+	 */
+	public void register(final OMEROSessionService sessionService) {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer(SERVER);
+		sessionService.setIdleTimeout(Long.MAX_VALUE);
+		sessionService.register(credentials, createSession());
+	}
+
+	/** Creates a new raw pixels store on the fake server. */
+	public RawPixelsStorePrx createStore() {
+		return RawPixelsStorePrxHelper.uncheckedCast(adapter
+			.addWithUUID(new FakePixelsStore(this)));
+	}
+
+	/** Sets the simulated round-trip latency, in milliseconds. */
+	public void setLatency(final double millis) {
+		latency = (long) (millis * 1000000);
+	}
+
+	/** Sets the simulated bandwidth, in bytes per second; 0 is unlimited. */
+	public void setBandwidth(final long bytesPerSecond) {
+		bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Sets whether pixel traffic counts toward the simulated bandwidth as
+	 * compressed. The clients must be compressing too: the fake server cannot
+	 * tell.
+	 */
+	public void setCompressed(final boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public void setDimensions(final int sizeX, final int sizeY, final int sizeZ,
+		final int sizeC, final int sizeT)
+	{
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.sizeC = sizeC;
+		this.sizeT = sizeT;
+	}
+
+	public void setPixelType(final String pixelType) {
+		this.pixelType = pixelType;
+	}
+
+	public void setTileSize(final int tileWidth, final int tileHeight) {
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+	}
+
+	public void setResolutionLevels(final int resolutionLevels) {
+		this.resolutionLevels = resolutionLevels;
+	}
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	public int getSizeC() {
+		return sizeC;
+	}
+
+	public int getSizeT() {
+		return sizeT;
+	}
+
+	public int getBytesPerPixel() {
+		return FormatTools.getBytesPerPixel(FormatTools
+			.pixelTypeFromString(pixelType));
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getResolutionLevels() {
+		return resolutionLevels;
+	}
+
+	/** Gets the {@code Pixels} descriptor of the fake image. */
+	public Pixels getPixels() {
+		final PixelsType type = new PixelsTypeI();
+		type.setValue(rstring(pixelType));
+		final Pixels pixels = new PixelsI();
+		pixels.setId(rlong(PIXELS_ID));
+		pixels.setSizeX(rint(sizeX));
+		pixels.setSizeY(rint(sizeY));
+		pixels.setSizeZ(rint(sizeZ));
+		pixels.setSizeC(rint(sizeC));
+		pixels.setSizeT(rint(sizeT));
+		pixels.setPixelsType(type);
+		return pixels;
+	}
+
+	/** Gets sample pixels of the given length; they must not be modified. */
+	public synchronized byte[] getPixels(final int length) {
+		byte[] data = pixels.get(length);
+		if (data == null) {
+			data = new byte[length];
+			final Random random = new Random(length);
+			for (int i = 0; i < length; i++) {
+				data[i] = (byte) ((i >> 10) + random.nextInt(16));
+			}
+			pixels.put(length, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Gets the number of bytes a payload of the given length takes on the
+	 * wire, compressed if so configured. The payload is assumed to hold sample
+	 * pixels, whose compressed sizes are measured once per length.
+	 */
+	public long getTransferSize(final int length) {
+		if (!compressed || length == 0) return length;
+		synchronized (this) {
+			final Integer size = compressedSizes.get(length);
+			if (size != null) return size;
+		}
+		final int size = compress(getPixels(length));
+		synchronized (this) {
+			compressedSizes.put(length, size);
+		}
+		return size;
+	}
+
+	/** Blocks for the time a request of the given size would take. */
+	public void simulateTransfer(final long bytes) {
+		long nanos = latency;
+		if (bandwidth > 0) nanos += bytes * 1000000000L / bandwidth;
+		if (nanos <= 0) return;
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// -- Closeable methods --
+
+	@Override
+	public void close() {
+		communicator.destroy();
+	}
+
+	// -- Helper methods --
+
+	private static int compress(final byte[] data) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			// NB: Ice compresses with block size 1 (100 kB).
+			final CBZip2OutputStream out = new CBZip2OutputStream(bytes, 1);
+			out.write(data);
+			out.close();
+		}
+		catch (final IOException exc) {
+			throw new IllegalStateException(exc);
+		}
+		return bytes.size();
+	}
+
+	private <T> T proxy(final Class<T> type) {
+		final Object proxy =
+			Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new Handler());
+		return type.cast(proxy);
+	}
+
+	// -- Helper classes --
+
+	/** Answers the session and service calls made by the OMERO format. */
+	private class Handler implements InvocationHandler {
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+			final Object[] args)
+		{
+			final String name = method.getName();
+			if (name.equals("hashCode")) return System.identityHashCode(proxy);
+			if (name.equals("equals")) return proxy == args[0];
+			if (name.equals("toString")) return "FakeOMERO proxy";
+
+			// ServiceFactoryPrx
+			if (name.equals("createRawPixelsStore")) return createStore();
+			if (name.equals("getPixelsService")) return proxy(IPixelsPrx.class);
+			if (name.equals("getContainerService")) {
+				return proxy(IContainerPrx.class);
+			}
+			if (name.equals("getQueryService")) return proxy(IQueryPrx.class);
+			// NB: Like the server, answer false when pinging a null proxy.
+			if (name.equals("keepAlive")) return args[0] != null;
+			if (name.equals("detachOnDestroy")) return null;
+
+			// IPixelsPrx
+			if (name.equals("retrievePixDescription")) {
+				simulateTransfer(0);
+				return getPixels();
+			}
+
+			// IContainerPrx
+			if (name.equals("getImages")) {
+				simulateTransfer(0);
+				final Image image = new ImageI();
+				image.setId(rlong(IMAGE_ID));
+				image.addPixels(getPixels());
+				return Collections.singletonList(image);
+			}
+
+			// IQueryPrx
+			if (name.equals("projection")) {
+				// NB: The fake image has no update event.
+				simulateTransfer(0);
+				return Collections.emptyList();
+			}
+
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+/**
+ * An in-process stand-in for an OMERO raw pixels store, served over Ice as a
+ * {@link Ice.Blobject} so that clients use genuine (including asynchronous)
+ * {@code RawPixelsStorePrx} calls.
+ * <p>
+ * Only the operations used by the OMERO format are understood. Every request
+ * is delayed by the simulated latency of its {@link FakeOMERO}, plus the time
+ * its pixels take at the simulated bandwidth, compressed if so configured.
+ * </p>
+ */
+public class FakePixelsStore extends Ice.Blobject {
+
+	// -- Fields --
+
+	private final FakeOMERO server;
+
+	/** The current resolution level, in OMERO numbering. */
+	private volatile int level;
+
+	// -- Constructors --
+
+	public FakePixelsStore(final FakeOMERO server) {
+		this.server = server;
+		level = server.getResolutionLevels() - 1;
+	}
+
+	// -- Blobject methods --
+
+	@Override
+	public boolean ice_invoke(final byte[] inParams,
+		final Ice.ByteSeqHolder outParams, final Ice.Current current)
+	{
+		final Ice.Communicator communicator = current.adapter.getCommunicator();
+		final Ice.InputStream in =
+			Ice.Util.createInputStream(communicator, inParams);
+		final Ice.OutputStream out = Ice.Util.createOutputStream(communicator);
+		final String op = current.operation;
+		// NB: Clients send sample pixels, or else small arguments.
+		long bytes = server.getTransferSize(inParams.length);
+
+		if (op.equals("getTile")) {
+			final int[] args = readInts(in, 7);
+			final byte[] tile = pixels(args[5] * args[6]);
+			out.writeByteSeq(tile);
+			bytes += server.getTransferSize(tile.length);
+		}
+		else if (op.equals("getPlane")) {
+			readInts(in, 3);
+			final byte[] plane = pixels(sizeX() * sizeY());
+			out.writeByteSeq(plane);
+			bytes += server.getTransferSize(plane.length);
+		}
+		else if (op.equals("getStack")) {
+			readInts(in, 2);
+			final byte[] stack = pixels(sizeX() * sizeY() * server.getSizeZ());
+			out.writeByteSeq(stack);
+			bytes += server.getTransferSize(stack.length);
+		}
+		else if (op.equals("getTimepoint")) {
+			readInts(in, 1);
+			final byte[] timepoint =
+				pixels(sizeX() * sizeY() * server.getSizeZ() * server.getSizeC());
+			out.writeByteSeq(timepoint);
+			bytes += server.getTransferSize(timepoint.length);
+		}
+		else if (op.equals("getHypercube")) {
+			in.readIntSeq(); // offset
+			final int[] size = in.readIntSeq();
+			in.readIntSeq(); // step
+			int count = 1;
+			for (final int s : size) {
+				count *= s;
+			}
+			final byte[] cube = pixels(count);
+			out.writeByteSeq(cube);
+			bytes += server.getTransferSize(cube.length);
+		}
+		else if (op.equals("getTileSize")) {
+			out.writeIntSeq(new int[] { server.getTileWidth(),
+				server.getTileHeight() });
+		}
+		else if (op.equals("getResolutionLevels")) {
+			out.writeInt(server.getResolutionLevels());
+		}
+		else if (op.equals("getResolutionLevel")) {
+			out.writeInt(level);
+		}
+		else if (op.equals("getByteWidth")) {
+			out.writeInt(server.getBytesPerPixel());
+		}
+		else if (op.equals("getRowSize")) {
+			out.writeInt(sizeX() * server.getBytesPerPixel());
+		}
+		else if (op.equals("getPlaneSize")) {
+			out.writeLong((long) sizeX() * sizeY() * server.getBytesPerPixel());
+		}
+		else if (op.equals("setResolutionLevel")) {
+			level = in.readInt();
+		}
+		else if (op.equals("setPixelsId")) {
+			in.readLong();
+			in.readBool();
+		}
+		else if (op.equals("save")) {
+			// NB: Return a null Pixels object.
+			out.writeObject(null);
+			out.writePendingObjects();
+		}
+		else if (op.equals("setPlane") || op.equals("setTile") ||
+			op.equals("setStack") || op.equals("setTimepoint") ||
+			op.equals("close"))
+		{
+			// NB: Written pixels are discarded.
+		}
+		else throw new Ice.OperationNotExistException();
+
+		server.simulateTransfer(bytes);
+		outParams.value = out.finished();
+		in.destroy();
+		out.destroy();
+		return true;
+	}
+
+	// -- Helper methods --
+
+	/** Gets the image width at the current resolution level. */
+	private int sizeX() {
+		return Math.max(server.getSizeX() >> downsampling(), 1);
+	}
+
+	/** Gets the image height at the current resolution level. */
+	private int sizeY() {
+		return Math.max(server.getSizeY() >> downsampling(), 1);
+	}
+
+	private int downsampling() {
+		return server.getResolutionLevels() - 1 - level;
+	}
+
+	private byte[] pixels(final int count) {
+		return server.getPixels(count * server.getBytesPerPixel());
+	}
+
+	private static int[] readInts(final Ice.InputStream in, final int count) {
+		final int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+import io.scif.FormatException;
+import io.scif.Plane;
+import io.scif.SCIFIO;
+import io.scif.config.SCIFIOConfig;
+import io.scif.omero.OMEROConfig;
+import io.scif.omero.OMEROFormat;
+import io.scif.omero.OMEROSessionService;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks plane and region reads by {@link OMEROFormat.Reader} from a
+ * {@link FakeOMERO} server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadBenchmark {
+
+	/** Simulated round-trip latency, in milliseconds. */
+	@Param({ "0", "1", "10" })
+	public double latency;
+
+	/** Simulated bandwidth, in MiB per second; 0 is unlimited. */
+	@Param({ "0", "100" })
+	public int bandwidth;
+
+	/** Edge length of the regions read by {@link #readTile()}. */
+	@Param({ "64", "256", "512" })
+	public int tileSize;
+
+	/** Whether reads may be served from the tile cache. */
+	@Param({ "false", "true" })
+	public boolean tileCache;
+
+	/** Whether sequential plane reads fetch whole stacks. */
+	@Param({ "false", "true" })
+	public boolean stackStreaming;
+
+	/** Whether pixel traffic uses Ice protocol compression. */
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private SCIFIO scifio;
+	private FakeOMERO server;
+	private OMEROFormat.Reader reader;
+	private SCIFIOConfig config;
+
+	private long plane;
+	private int tile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws FormatException, IOException {
+		scifio = new SCIFIO();
+		server = new FakeOMERO();
+		server.setLatency(latency);
+		server.setBandwidth(bandwidth * 1024L * 1024);
+		server.setCompressed(compressed);
+		server.register(scifio.getContext().getService(OMEROSessionService.class));
+
+		final OMEROFormat format =
+			scifio.format().getFormatFromClass(OMEROFormat.class);
+		reader = (OMEROFormat.Reader) format.createReader();
+		reader.setSource(server.getSource() + "&compressed=" + compressed);
+
+		config = new SCIFIOConfig();
+		OMEROConfig.setTileCacheEnabled(config, tileCache);
+		OMEROConfig.setStackStreamingEnabled(config, stackStreaming);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.close();
+		server.close();
+		scifio.getContext().dispose();
+	}
+
+	/** Reads whole planes, cycling through the Z stack. */
+	@Benchmark
+	public Plane readPlane() throws FormatException, IOException {
+		plane = (plane + 1) % reader.getPlaneCount(0);
+		return reader.openPlane(0, plane, config);
+	}
+
+	/** Reads square regions, walking across the first plane. */
+	@Benchmark
+	public Plane readTile() throws FormatException, IOException {
+		final int cols = server.getSizeX() / tileSize;
+		final int rows = server.getSizeY() / tileSize;
+		tile = (tile + 1) % (cols * rows);
+		final long[] min =
+			{ (tile % cols) * tileSize, (tile / cols) * tileSize };
+		final long[] max = { tileSize, tileSize };
+		return reader.openPlane(0, 0, min, max, config);
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import io.scif.FormatException;
+import io.scif.MetadataService;
+import io.scif.SCIFIO;
+import io.scif.config.SCIFIOConfig;
+import io.scif.omero.OMEROConfig;
+import io.scif.omero.OMEROCredentials;
+import io.scif.omero.OMEROFormat;
+import io.scif.omero.OMEROSession;
+import io.scif.omero.OMEROSessionService;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import omero.ServerError;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks the per-image overheads of {@link OMEROFormat}: acquiring a
+ * pooled session, parsing the source string and parsing the metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SetupBenchmark {
+
+	/** Simulated round-trip latency, in milliseconds. */
+	@Param({ "0", "1" })
+	public double latency;
+
+	/** Whether parsed descriptors may be served from the metadata cache. */
+	@Param({ "false", "true" })
+	public boolean metadataCache;
+
+	private SCIFIO scifio;
+	private FakeOMERO server;
+	private OMEROSessionService sessionService;
+	private MetadataService metadataService;
+	private OMEROFormat format;
+	private OMEROCredentials credentials;
+	private OMEROFormat.Metadata metadata;
+	private SCIFIOConfig config;
+
+	@Setup(Level.Trial)
+	public void setUp() throws FormatException, IOException {
+		scifio = new SCIFIO();
+		server = new FakeOMERO();
+		server.setLatency(latency);
+		sessionService =
+			scifio.getContext().getService(OMEROSessionService.class);
+		metadataService = scifio.getContext().getService(MetadataService.class);
+		server.register(sessionService);
+		format = scifio.format().getFormatFromClass(OMEROFormat.class);
+		credentials = new OMEROCredentials();
+		credentials.setServer(FakeOMERO.SERVER);
+		config = new SCIFIOConfig();
+		OMEROConfig.setMetadataCacheEnabled(config, metadataCache);
+		metadata = parseMetadata();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.close();
+		scifio.getContext().dispose();
+	}
+
+	/** Acquires and releases a pooled session. */
+	@Benchmark
+	public void acquireSession() throws ServerError,
+		CannotCreateSessionException, PermissionDeniedException
+	{
+		final OMEROSession session = sessionService.acquire(credentials);
+		sessionService.release(session);
+	}
+
+	/** Parses the arguments of an OMERO source string. */
+	@Benchmark
+	public OMEROFormat.Metadata parseArguments() {
+		final OMEROFormat.Metadata meta = new OMEROFormat.Metadata();
+		OMEROFormat.parseArguments(metadataService, server.getSource(), meta);
+		return meta;
+	}
+
+	/**
+	 * Parses the metadata of the image, including the server round trips
+	 * unless served from the metadata cache.
+	 */
+	@Benchmark
+	public OMEROFormat.Metadata parseMetadata() throws FormatException,
+		IOException
+	{
+		return (OMEROFormat.Metadata) format.createParser().parse(
+			server.getSource(), config);
+	}
+
+	/** Computes the Z, C and T indices of a plane. */
+	@Benchmark
+	public int[] zct() {
+		return OMEROFormat.zct(0, 0, metadata);
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+import io.scif.FormatException;
+import io.scif.Plane;
+import io.scif.SCIFIO;
+import io.scif.config.SCIFIOConfig;
+import io.scif.omero.OMEROConfig;
+import io.scif.omero.OMEROFormat;
+import io.scif.omero.OMEROSessionService;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmarks plane reads by many threads sharing one
+ * {@link OMEROFormat.Reader}, from a {@link FakeOMERO} server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class SharedReadBenchmark {
+
+	/** Simulated round-trip latency, in milliseconds. */
+	@Param({ "1", "10" })
+	public double latency;
+
+	/** The most raw pixels stores the reader opens. */
+	@Param({ "1", "4" })
+	public int connections;
+
+	private SCIFIO scifio;
+	private FakeOMERO server;
+	private OMEROFormat.Reader reader;
+	private SCIFIOConfig config;
+
+	private final AtomicLong plane = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() throws FormatException, IOException {
+		scifio = new SCIFIO();
+		server = new FakeOMERO();
+		server.setLatency(latency);
+		server.register(scifio.getContext().getService(OMEROSessionService.class));
+
+		final OMEROFormat format =
+			scifio.format().getFormatFromClass(OMEROFormat.class);
+		reader = (OMEROFormat.Reader) format.createReader();
+		reader.setSource(server.getSource());
+
+		config = new SCIFIOConfig();
+		OMEROConfig.setConnections(config, connections);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.close();
+		server.close();
+		scifio.getContext().dispose();
+	}
+
+	/** Reads whole planes, each thread taking the next plane of the stack. */
+	@Benchmark
+	public Plane readPlane() throws FormatException, IOException {
+		final long planeIndex =
+			plane.getAndIncrement() % reader.getPlaneCount(0);
+		return reader.openPlane(0, planeIndex, config);
+	}
+
+}
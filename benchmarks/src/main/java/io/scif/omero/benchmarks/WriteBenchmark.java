@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero.benchmarks;
+
+import io.scif.omero.OMEROSession;
+import io.scif.omero.WritePipeline;
+
+import java.util.concurrent.TimeUnit;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks uploading a whole image to a {@link FakeOMERO} server through the
+ * {@link WritePipeline} of {@code OMEROFormat.Writer}.
+ * <p>
+ * The pipeline is driven directly, since creating the target image through
+ * the Writer needs more of the OMERO API than the fake server offers.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriteBenchmark {
+
+	/** Simulated round-trip latency, in milliseconds. */
+	@Param({ "0", "1", "10" })
+	public double latency;
+
+	/** Simulated bandwidth, in MiB per second; 0 is unlimited. */
+	@Param({ "0", "100" })
+	public int bandwidth;
+
+	/** The most bytes sent in one request; 0 writes plane by plane. */
+	@Param({ "0", "16777216" })
+	public long batchSize;
+
+	/** The most requests in flight at once. */
+	@Param({ "1", "4" })
+	public int maxPending;
+
+	/** Whether pixel traffic uses Ice protocol compression. */
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private FakeOMERO server;
+	private RawPixelsStorePrx store;
+	private byte[] plane;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		server = new FakeOMERO();
+		server.setLatency(latency);
+		server.setBandwidth(bandwidth * 1024L * 1024);
+		server.setCompressed(compressed);
+		store = OMEROSession.compress(server.createStore(), compressed);
+		plane =
+			server.getPixels(server.getSizeX() * server.getSizeY() *
+				server.getBytesPerPixel());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws ServerError {
+		store.close();
+		server.close();
+	}
+
+	/** Writes every plane of the image, in Z, C, T order. */
+	@Benchmark
+	public void writeImage() throws ServerError {
+		final int sizeZ = server.getSizeZ(), sizeC = server.getSizeC();
+		final WritePipeline pipeline =
+			new WritePipeline(store, sizeZ, sizeC, plane.length, batchSize,
+				maxPending);
+		for (int t = 0; t < server.getSizeT(); t++) {
+			for (int c = 0; c < sizeC; c++) {
+				for (int z = 0; z < sizeZ; z++) {
+					pipeline.writePlane(plane, z, c, t);
+				}
+			}
+		}
+		pipeline.flush();
+	}
+
+}
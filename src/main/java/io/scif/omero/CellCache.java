@@ -0,0 +1,277 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of pixel cells: blocks spanning X, Y and Z of one channel and
+ * timepoint.
+ * <p>
+ * The most recently used cells are held strongly, up to a byte budget. Cells
+ * evicted from that budget are kept as soft references, which the garbage
+ * collector clears only when memory runs low; so the cache uses spare heap,
+ * but never causes an {@link OutOfMemoryError}.
+ * </p>
+ */
+public class CellCache {
+
+	// -- Constants --
+
+	/** Default budget for strongly held cells: 64 MiB. */
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	// -- Fields --
+
+	/** Strongly held cells, in access order. */
+	private final LinkedHashMap<Key, byte[]> strong =
+		new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+	/** Softly held cells, evicted from the strong budget. */
+	private final Map<Key, SoftCell> soft = new HashMap<Key, SoftCell>();
+
+	/** Soft references cleared by the garbage collector. */
+	private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+
+	private long budget = DEFAULT_BUDGET;
+	private long size;
+
+	private long hits, misses;
+
+	// -- CellCache methods --
+
+	/** Gets the cached cell with the given key, or null if not cached. */
+	public synchronized byte[] get(final Key key) {
+		purge();
+		byte[] cell = strong.get(key);
+		if (cell == null) {
+			final SoftCell ref = soft.remove(key);
+			cell = ref == null ? null : ref.get();
+			// NB: Promote a surviving soft cell back into the budget.
+			if (cell != null) put(key, cell);
+		}
+		if (cell == null) misses++;
+		else hits++;
+		return cell;
+	}
+
+	/**
+	 * Adds the given cell to the cache. The caller must not modify the array
+	 * afterwards.
+	 */
+	public synchronized void put(final Key key, final byte[] cell) {
+		purge();
+		final byte[] old = strong.remove(key);
+		if (old != null) size -= old.length;
+		soft.remove(key);
+		strong.put(key, cell);
+		size += cell.length;
+		evict();
+	}
+
+	/**
+	 * Discards all cached cells of the given pixels ID on the given server, as
+	 * read by any user.
+	 */
+	public synchronized void invalidate(final OMEROCredentials credentials,
+		final long pixelsID)
+	{
+		final String server = TileCache.host(credentials);
+		final Iterator<Map.Entry<Key, byte[]>> iter =
+			strong.entrySet().iterator();
+		while (iter.hasNext()) {
+			final Map.Entry<Key, byte[]> entry = iter.next();
+			if (!entry.getKey().matches(server, pixelsID)) continue;
+			size -= entry.getValue().length;
+			iter.remove();
+		}
+		final Iterator<Key> keys = soft.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().matches(server, pixelsID)) keys.remove();
+		}
+	}
+
+	/** Discards all cached cells. */
+	public synchronized void clear() {
+		strong.clear();
+		soft.clear();
+		size = 0;
+	}
+
+	/** Gets the budget in bytes for strongly held cells. */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Sets the budget in bytes for strongly held cells. */
+	public synchronized void setBudget(final long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	/** Gets the number of bytes in strongly held cells. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/** Gets the number of lookups which found their cell. */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/** Gets the number of lookups which did not find their cell. */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Describes how the pixels of a cell were read, as identified in keys: the
+	 * pixel type and byte order they were decoded to, and how the server
+	 * derived them, if at all.
+	 */
+	public static String variant(final String pixelType,
+		final boolean littleEndian, final String projection, final int downsample)
+	{
+		return pixelType + (littleEndian ? "-le" : "-be") +
+			(projection == null ? "" : "-" + projection) +
+			(downsample > 1 ? "-" + downsample : "");
+	}
+
+	// -- Helper methods --
+
+	/** Demotes least recently used cells until the budget is met. */
+	private void evict() {
+		final Iterator<Map.Entry<Key, byte[]>> iter =
+			strong.entrySet().iterator();
+		while (size > budget && iter.hasNext()) {
+			final Map.Entry<Key, byte[]> entry = iter.next();
+			iter.remove();
+			size -= entry.getValue().length;
+			soft.put(entry.getKey(), new SoftCell(entry.getKey(), entry.getValue(),
+				cleared));
+		}
+	}
+
+	/** Forgets the soft cells which the garbage collector has cleared. */
+	private void purge() {
+		SoftCell ref;
+		while ((ref = (SoftCell) cleared.poll()) != null) {
+			if (soft.get(ref.key) == ref) soft.remove(ref.key);
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Identifies a cell: a block of one channel and timepoint of one resolution
+	 * level of one pixels set on one server, as read by one user in one
+	 * variant.
+	 */
+	public static final class Key {
+
+		private final String server;
+		private final long pixelsID;
+		private final int level;
+		private final String variant;
+		private final int x, y, z, c, t, w, h, d;
+
+		/**
+		 * @param server The user and server, as given by
+		 *          {@link TileCache#server(OMEROCredentials)}.
+		 * @param variant How the pixels were read, as given by
+		 *          {@link CellCache#variant}.
+		 */
+		public Key(final String server, final long pixelsID, final int level,
+			final String variant, final int x, final int y, final int z,
+			final int c, final int t, final int w, final int h, final int d)
+		{
+			this.server = server;
+			this.pixelsID = pixelsID;
+			this.level = level;
+			this.variant = variant;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.c = c;
+			this.t = t;
+			this.w = w;
+			this.h = h;
+			this.d = d;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key) o;
+			return pixelsID == k.pixelsID && level == k.level && x == k.x &&
+				y == k.y && z == k.z && c == k.c && t == k.t && w == k.w &&
+				h == k.h && d == k.d && server.equals(k.server) &&
+				variant.equals(k.variant);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = server.hashCode();
+			hash = 31 * hash + (int) (pixelsID ^ (pixelsID >>> 32));
+			hash = 31 * hash + level;
+			hash = 31 * hash + variant.hashCode();
+			hash = 31 * hash + x;
+			hash = 31 * hash + y;
+			hash = 31 * hash + z;
+			hash = 31 * hash + c;
+			hash = 31 * hash + t;
+			hash = 31 * hash + w;
+			hash = 31 * hash + h;
+			return 31 * hash + d;
+		}
+
+		/** Gets whether the key is of the given pixels ID and server. */
+		private boolean matches(final String host, final long id) {
+			return pixelsID == id && server.endsWith(host);
+		}
+	}
+
+	/** A soft reference to a cell, which remembers its key. */
+	private static class SoftCell extends SoftReference<byte[]> {
+
+		private final Key key;
+
+		private SoftCell(final Key key, final byte[] cell,
+			final ReferenceQueue<byte[]> queue)
+		{
+			super(cell, queue);
+			this.key = key;
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.config.SCIFIOConfig;
+import io.scif.util.FormatTools;
+
+import java.nio.ByteBuffer;
+
+import net.imglib2.meta.Axes;
+import net.imglib2.meta.AxisType;
+
+/**
+ * Reads an image of an {@link OMEROFormat.Reader} as a grid of lazily loaded
+ * cells, for random access to volumes too large to hold in memory.
+ * <p>
+ * Cells span one native tile of the server in X and Y, and a configurable
+ * number of planes in Z; each is fetched with a single hypercube read when
+ * first touched, and kept in a {@link CellCache}. {@link CellReaderView}
+ * exposes the cells to ImgLib2 algorithms.
+ * </p>
+ */
+public class CellReader {
+
+	// -- Fields --
+
+	private final OMEROFormat.Reader reader;
+	private final int imageIndex;
+	private final CellCache cache;
+	private final SCIFIOConfig config;
+
+	private final String server;
+	private final long pixelsID;
+	private final int level;
+	private final String variant;
+	private final int pixelType;
+	private final boolean littleEndian;
+	private final int bpp;
+
+	/** The X, Y, Z, C and T lengths of the image. */
+	private final long[] dims;
+
+	/** The X, Y and Z lengths of a cell. */
+	private final int[] cellSize;
+
+	// -- Constructors --
+
+	public CellReader(final OMEROFormat.Reader reader, final int imageIndex,
+		final CellCache cache, final SCIFIOConfig config)
+	{
+		this.reader = reader;
+		this.imageIndex = imageIndex;
+		this.cache = cache;
+		this.config = config;
+
+		final OMEROFormat.Metadata meta = reader.getMetadata();
+		final OMEROFormat.Metadata image = meta.getImage(imageIndex);
+		final ImageMetadata imageMeta = meta.get(imageIndex);
+		server = TileCache.server(meta.getCredentials());
+		pixelsID = image.getPixelsID();
+		level = meta.getLevel(imageIndex);
+		// NB: Cells hold pixels as decoded and derived by the reader.
+		variant =
+			CellCache.variant(image.getDecodedPixelType(), imageMeta
+				.isLittleEndian(), image.getProjection(), image.getDownsample());
+		pixelType = imageMeta.getPixelType();
+		littleEndian = imageMeta.isLittleEndian();
+		bpp = FormatTools.getBytesPerPixel(pixelType);
+		dims =
+			new long[] { length(imageMeta, Axes.X), length(imageMeta, Axes.Y),
+				length(imageMeta, Axes.Z), length(imageMeta, Axes.CHANNEL),
+				length(imageMeta, Axes.TIME) };
+		cellSize =
+			new int[] { (int) reader.getOptimalTileWidth(imageIndex),
+				(int) reader.getOptimalTileHeight(imageIndex),
+				(int) Math.min(OMEROConfig.getCellDepth(config), dims[2]) };
+	}
+
+	// -- CellReader methods --
+
+	/** Gets the X, Y, Z, C and T lengths of the image. */
+	public long[] getDimensions() {
+		return dims.clone();
+	}
+
+	/** Gets the {@link FormatTools} pixel type of the cells, as decoded. */
+	public int getPixelType() {
+		return pixelType;
+	}
+
+	/** Gets whether the cells hold pixels in little-endian byte order. */
+	public boolean isLittleEndian() {
+		return littleEndian;
+	}
+
+	/** Gets the X, Y and Z lengths of a (non-border) cell. */
+	public int[] getCellSize() {
+		return cellSize.clone();
+	}
+
+	/** Gets the cell containing the given voxel, loading it if needed. */
+	public Cell getCell(final long x, final long y, final long z, final int c,
+		final int t) throws FormatException
+	{
+		final int x0 = (int) (x / cellSize[0] * cellSize[0]);
+		final int y0 = (int) (y / cellSize[1] * cellSize[1]);
+		final int z0 = (int) (z / cellSize[2] * cellSize[2]);
+		final int w = (int) Math.min(cellSize[0], dims[0] - x0);
+		final int h = (int) Math.min(cellSize[1], dims[1] - y0);
+		final int d = (int) Math.min(cellSize[2], dims[2] - z0);
+		final CellCache.Key key =
+			new CellCache.Key(server, pixelsID, level, variant, x0, y0, z0, c, t, w,
+				h, d);
+		byte[] data = cache == null ? null : cache.get(key);
+		if (data == null) {
+			data =
+				reader.openHypercube(imageIndex, new long[] { x0, y0, z0, c, t },
+					new long[] { w, h, d, 1, 1 }, config);
+			if (cache != null) cache.put(key, data);
+		}
+		return new Cell(x0, y0, z0, w, h, d, bpp, data);
+	}
+
+	// -- Helper methods --
+
+	private static long length(final ImageMetadata imageMeta,
+		final AxisType axis)
+	{
+		return Math.max(imageMeta.getAxisLength(axis), 1);
+	}
+
+	// -- Helper classes --
+
+	/** A block of voxels, stored in XYZ order (X varying fastest). */
+	public static final class Cell {
+
+		private final int x, y, z, w, h, d, bpp;
+		private final byte[] data;
+
+		private Cell(final int x, final int y, final int z, final int w,
+			final int h, final int d, final int bpp, final byte[] data)
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.bpp = bpp;
+			this.data = data;
+		}
+
+		/** Gets the X, Y and Z position of the cell's first voxel. */
+		public long[] getMin() {
+			return new long[] { x, y, z };
+		}
+
+		/** Gets the X, Y and Z lengths of the cell. */
+		public int[] getSize() {
+			return new int[] { w, h, d };
+		}
+
+		/** Gets a read-only view of the cell's pixels, without copying them. */
+		public ByteBuffer getData() {
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+		/** Gets the byte offset within the data of the given voxel. */
+		public int offset(final long vx, final long vy, final long vz) {
+			return (int) (((vz - z) * h + (vy - y)) * w + (vx - x)) * bpp;
+		}
+	}
+
+}
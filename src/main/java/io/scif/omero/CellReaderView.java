@@ -0,0 +1,215 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.FormatException;
+import io.scif.util.FormatTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * An ImgLib2 view of the cells of a {@link CellReader}, so that ImgLib2
+ * algorithms can consume images too large to hold in memory.
+ * <p>
+ * The view spans X, Y, Z, C and T, in that order. Each random access loads
+ * the cell containing its position when first sampled there, through the
+ * reader and its cell cache. The view is read-only: changes to the sampled
+ * values are not written back.
+ * </p>
+ */
+public class CellReaderView<T extends RealType<T>> extends AbstractInterval
+	implements RandomAccessibleInterval<T>
+{
+
+	// -- Fields --
+
+	private final CellReader reader;
+	private final T type;
+
+	// -- Constructors --
+
+	/**
+	 * @param type A type matching the reader's pixel type.
+	 * @see #create(CellReader)
+	 */
+	public CellReaderView(final CellReader reader, final T type) {
+		super(reader.getDimensions());
+		this.reader = reader;
+		this.type = type;
+	}
+
+	// -- Utility methods --
+
+	/** Creates a view of the given reader, with its matching pixel type. */
+	public static CellReaderView<?> create(final CellReader reader) {
+		switch (reader.getPixelType()) {
+			case FormatTools.BIT:
+				return new CellReaderView<BitType>(reader, new BitType());
+			case FormatTools.INT8:
+				return new CellReaderView<ByteType>(reader, new ByteType());
+			case FormatTools.UINT8:
+				return new CellReaderView<UnsignedByteType>(reader,
+					new UnsignedByteType());
+			case FormatTools.INT16:
+				return new CellReaderView<ShortType>(reader, new ShortType());
+			case FormatTools.UINT16:
+				return new CellReaderView<UnsignedShortType>(reader,
+					new UnsignedShortType());
+			case FormatTools.INT32:
+				return new CellReaderView<IntType>(reader, new IntType());
+			case FormatTools.UINT32:
+				return new CellReaderView<UnsignedIntType>(reader,
+					new UnsignedIntType());
+			case FormatTools.FLOAT:
+				return new CellReaderView<FloatType>(reader, new FloatType());
+			default:
+				return new CellReaderView<DoubleType>(reader, new DoubleType());
+		}
+	}
+
+	// -- RandomAccessible methods --
+
+	@Override
+	public RandomAccess<T> randomAccess() {
+		return new CellAccess();
+	}
+
+	@Override
+	public RandomAccess<T> randomAccess(final Interval interval) {
+		return randomAccess();
+	}
+
+	// -- Helper classes --
+
+	/** Samples the cells of the reader, keeping hold of the current one. */
+	private class CellAccess extends Point implements RandomAccess<T> {
+
+		private final T value = type.createVariable();
+		private final int pixelType = reader.getPixelType();
+		private final ByteOrder order =
+			reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+
+		private CellReader.Cell cell;
+		private ByteBuffer data;
+		private long[] min;
+		private int[] size;
+		private long c, t;
+
+		private CellAccess() {
+			super(5);
+		}
+
+		private CellAccess(final CellAccess access) {
+			this();
+			setPosition(access);
+			cell = access.cell;
+			data = access.data;
+			min = access.min;
+			size = access.size;
+			c = access.c;
+			t = access.t;
+		}
+
+		@Override
+		public T get() {
+			final long x = position[0], y = position[1], z = position[2];
+			if (!contains(x, y, z)) {
+				try {
+					cell =
+						reader.getCell(x, y, z, (int) position[3], (int) position[4]);
+				}
+				catch (final FormatException exc) {
+					throw new IllegalStateException("Cannot read cell", exc);
+				}
+				data = cell.getData().order(order);
+				min = cell.getMin();
+				size = cell.getSize();
+				c = position[3];
+				t = position[4];
+			}
+			value.setReal(sample(cell.offset(x, y, z)));
+			return value;
+		}
+
+		@Override
+		public CellAccess copy() {
+			return new CellAccess(this);
+		}
+
+		@Override
+		public CellAccess copyRandomAccess() {
+			return copy();
+		}
+
+		/** Gets whether the current cell holds the given voxel. */
+		private boolean contains(final long x, final long y, final long z) {
+			return cell != null && c == position[3] && t == position[4] &&
+				x >= min[0] && x < min[0] + size[0] && y >= min[1] &&
+				y < min[1] + size[1] && z >= min[2] && z < min[2] + size[2];
+		}
+
+		private double sample(final int offset) {
+			switch (pixelType) {
+				case FormatTools.BIT:
+				case FormatTools.INT8:
+					return data.get(offset);
+				case FormatTools.UINT8:
+					return data.get(offset) & 0xff;
+				case FormatTools.INT16:
+					return data.getShort(offset);
+				case FormatTools.UINT16:
+					return data.getShort(offset) & 0xffff;
+				case FormatTools.INT32:
+					return data.getInt(offset);
+				case FormatTools.UINT32:
+					return data.getInt(offset) & 0xffffffffL;
+				case FormatTools.FLOAT:
+					return data.getFloat(offset);
+				default:
+					return data.getDouble(offset);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default implementation of {@link OMEROCacheService}.
+ */
+@Plugin(type = Service.class)
+public class DefaultOMEROCacheService extends AbstractService implements
+	OMEROCacheService
+{
+
+	// -- Fields --
+
+	private final TileCache tileCache = new TileCache();
+
+	private final MetadataCache metadataCache = new MetadataCache();
+
+	private final CellCache cellCache = new CellCache();
+
+	private final DiskMirror diskMirror = new DiskMirror();
+
+	// -- OMEROCacheService methods --
+
+	@Override
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+
+	@Override
+	public MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	@Override
+	public CellCache getCellCache() {
+		return cellCache;
+	}
+
+	@Override
+	public DiskMirror getDiskMirror() {
+		return diskMirror;
+	}
+
+	// -- Disposable methods --
+
+	@Override
+	public void dispose() {
+		tileCache.clear();
+		cellCache.clear();
+		metadataCache.close();
+		diskMirror.close();
+	}
+
+}
@@ -0,0 +1,315 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default implementation of {@link OMEROMetricsService}.
+ */
+@Plugin(type = Service.class)
+public class DefaultOMEROMetricsService extends AbstractService implements
+	OMEROMetricsService, OMEROMetricsMBean
+{
+
+	// -- Parameters --
+
+	@Parameter
+	private LogService log;
+
+	// -- Fields --
+
+	private final OMEROMetrics metrics = new OMEROMetrics();
+
+	private ObjectName mbeanName;
+
+	// -- OMEROMetricsService methods --
+
+	@Override
+	public OMEROMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public synchronized boolean isJMXEnabled() {
+		return mbeanName != null;
+	}
+
+	@Override
+	public synchronized void setJMXEnabled(final boolean enabled) {
+		if (enabled == isJMXEnabled()) return;
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (enabled) {
+				final ObjectName name =
+					new ObjectName(MBEAN_NAME + ",name=" +
+						Integer.toHexString(System.identityHashCode(this)));
+				server.registerMBean(new StandardMBean(this,
+					OMEROMetricsMBean.class), name);
+				mbeanName = name;
+				metrics.setEnabled(true);
+			}
+			else {
+				// NB: Forget the MBean even if it was unregistered meanwhile.
+				final ObjectName name = mbeanName;
+				mbeanName = null;
+				metrics.setEnabled(false);
+				server.unregisterMBean(name);
+			}
+		}
+		catch (final JMException exc) {
+			log.error("Cannot publish OMERO metrics via JMX", exc);
+		}
+	}
+
+	@Override
+	public synchronized String getMBeanName() {
+		return mbeanName == null ? null : mbeanName.toString();
+	}
+
+	// -- OMEROMetricsMBean methods --
+
+	@Override
+	public boolean isEnabled() {
+		return metrics.isEnabled();
+	}
+
+	@Override
+	public void setEnabled(final boolean enabled) {
+		metrics.setEnabled(enabled);
+	}
+
+	@Override
+	public long getPlanesRead() {
+		return metrics.getPlanesRead();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return metrics.getBytesRead();
+	}
+
+	@Override
+	public long getPlanesWritten() {
+		return metrics.getPlanesWritten();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return metrics.getBytesWritten();
+	}
+
+	@Override
+	public long getTileReadCount() {
+		return metrics.getTileReadLatency().getCount();
+	}
+
+	@Override
+	public double getTileReadMeanLatency() {
+		return metrics.getTileReadLatency().getMean();
+	}
+
+	@Override
+	public long getTileReadP99Latency() {
+		return metrics.getTileReadLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getTileReadMaxLatency() {
+		return metrics.getTileReadLatency().getMax();
+	}
+
+	@Override
+	public long getWriteCount() {
+		return metrics.getWriteLatency().getCount();
+	}
+
+	@Override
+	public double getWriteMeanLatency() {
+		return metrics.getWriteLatency().getMean();
+	}
+
+	@Override
+	public long getWriteP99Latency() {
+		return metrics.getWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getWriteMaxLatency() {
+		return metrics.getWriteLatency().getMax();
+	}
+
+	@Override
+	public long getPlaneWriteCount() {
+		return metrics.getPlaneWriteLatency().getCount();
+	}
+
+	@Override
+	public double getPlaneWriteMeanLatency() {
+		return metrics.getPlaneWriteLatency().getMean();
+	}
+
+	@Override
+	public long getPlaneWriteP99Latency() {
+		return metrics.getPlaneWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getTileWriteCount() {
+		return metrics.getTileWriteLatency().getCount();
+	}
+
+	@Override
+	public double getTileWriteMeanLatency() {
+		return metrics.getTileWriteLatency().getMean();
+	}
+
+	@Override
+	public long getTileWriteP99Latency() {
+		return metrics.getTileWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getStackWriteCount() {
+		return metrics.getStackWriteLatency().getCount();
+	}
+
+	@Override
+	public double getStackWriteMeanLatency() {
+		return metrics.getStackWriteLatency().getMean();
+	}
+
+	@Override
+	public long getStackWriteP99Latency() {
+		return metrics.getStackWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getTimepointWriteCount() {
+		return metrics.getTimepointWriteLatency().getCount();
+	}
+
+	@Override
+	public double getTimepointWriteMeanLatency() {
+		return metrics.getTimepointWriteLatency().getMean();
+	}
+
+	@Override
+	public long getTimepointWriteP99Latency() {
+		return metrics.getTimepointWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getLoginCount() {
+		return metrics.getLoginLatency().getCount();
+	}
+
+	@Override
+	public double getLoginMeanLatency() {
+		return metrics.getLoginLatency().getMean();
+	}
+
+	@Override
+	public long getSessionHitCount() {
+		final OMEROSessionService sessions = sessionService();
+		return sessions == null ? 0 : sessions.getHitCount();
+	}
+
+	@Override
+	public long getSessionMissCount() {
+		final OMEROSessionService sessions = sessionService();
+		return sessions == null ? 0 : sessions.getMissCount();
+	}
+
+	@Override
+	public int getSessionCount() {
+		final OMEROSessionService sessions = sessionService();
+		return sessions == null ? 0 : sessions.getSessionCount();
+	}
+
+	@Override
+	public long getTileCacheHitCount() {
+		final TileCache cache = tileCache();
+		return cache == null ? 0 : cache.getHitCount();
+	}
+
+	@Override
+	public long getTileCacheMissCount() {
+		final TileCache cache = tileCache();
+		return cache == null ? 0 : cache.getMissCount();
+	}
+
+	@Override
+	public long getTileCacheEvictionCount() {
+		final TileCache cache = tileCache();
+		return cache == null ? 0 : cache.getEvictionCount();
+	}
+
+	@Override
+	public long getTileCacheSize() {
+		final TileCache cache = tileCache();
+		return cache == null ? 0 : cache.getSize();
+	}
+
+	@Override
+	public void reset() {
+		metrics.reset();
+	}
+
+	// -- Disposable methods --
+
+	@Override
+	public void dispose() {
+		setJMXEnabled(false);
+	}
+
+	// -- Helper methods --
+
+	// NB: The other services are looked up on demand rather than injected,
+	// since the session service itself records into this one.
+
+	private OMEROSessionService sessionService() {
+		return getContext().getService(OMEROSessionService.class);
+	}
+
+	private TileCache tileCache() {
+		final OMEROCacheService cacheService =
+			getContext().getService(OMEROCacheService.class);
+		return cacheService == null ? null : cacheService.getTileCache();
+	}
+
+}
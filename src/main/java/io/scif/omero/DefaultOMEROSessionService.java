@@ -0,0 +1,392 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import omero.ServerError;
+import omero.api.ServiceFactoryPrx;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default implementation of {@link OMEROSessionService}.
+ * <p>
+ * A single daemon thread periodically pings every pooled session and closes
+ * those which have been unused for longer than the idle timeout, as well as
+ * those whose keep-alive ping fails.
+ * </p>
+ */
+@Plugin(type = Service.class)
+public class DefaultOMEROSessionService extends AbstractService implements
+	OMEROSessionService
+{
+
+	// -- Constants --
+
+	/** Default time (in ms) an unused session is kept in the pool. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/** Default time (in ms) between keep-alive pings of pooled sessions. */
+	public static final long DEFAULT_KEEP_ALIVE_INTERVAL = 60 * 1000;
+
+	// -- Parameters --
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private OMEROMetricsService metricsService;
+
+	// -- Fields --
+
+	/** Pool entries by credentials key; one entry may have several keys. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** Pool entries by session, for fast release. */
+	private final Map<OMEROSession, Entry> sessions =
+		new IdentityHashMap<OMEROSession, Entry>();
+
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+
+	private long hits, misses, loginTime;
+
+	private ScheduledExecutorService maintenance;
+
+	// -- OMEROSessionService methods --
+
+	@Override
+	public OMEROSession acquire(final OMEROCredentials credentials)
+		throws ServerError, PermissionDeniedException,
+		CannotCreateSessionException
+	{
+		final String key = key(credentials);
+		synchronized (this) {
+			final Entry entry = entries.get(key);
+			if (entry != null) {
+				entry.refCount++;
+				entry.lastUsed = System.currentTimeMillis();
+				hits++;
+				return entry.session;
+			}
+		}
+
+		// NB: Log in outside the lock, so that other servers are not held up.
+		final long start = System.nanoTime();
+		final OMEROSession session = new OMEROSession(credentials);
+		final long elapsed = System.nanoTime() - start;
+		metricsService.getMetrics().login(start);
+
+		synchronized (this) {
+			misses++;
+			loginTime += elapsed;
+			final Entry entry = new Entry(session);
+			entry.refCount = 1;
+			entry.lastUsed = System.currentTimeMillis();
+			addKey(entry, key);
+			// NB: Logging in with a user name replaces it with a session ID;
+			// register that key too, so later lookups with the same (updated)
+			// credentials find this session.
+			addKey(entry, key(credentials));
+			sessions.put(session, entry);
+			startMaintenance();
+		}
+		return session;
+	}
+
+	@Override
+	public void release(final OMEROSession session) {
+		if (session == null) return;
+		synchronized (this) {
+			final Entry entry = sessions.get(session);
+			if (entry != null) {
+				if (entry.refCount > 0) entry.refCount--;
+				entry.lastUsed = System.currentTimeMillis();
+				return;
+			}
+		}
+		// not a pooled session
+		session.close();
+	}
+
+	@Override
+	public synchronized void register(final OMEROCredentials credentials,
+		final OMEROSession session)
+	{
+		Entry entry = sessions.get(session);
+		if (entry == null) {
+			entry = new Entry(session);
+			entry.lastUsed = System.currentTimeMillis();
+			sessions.put(session, entry);
+			startMaintenance();
+		}
+		addKey(entry, key(credentials));
+	}
+
+	@Override
+	public void evictIdle() {
+		for (final Entry entry : removeEntries(0)) {
+			entry.session.close();
+		}
+	}
+
+	@Override
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+	@Override
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	@Override
+	public synchronized void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	@Override
+	public synchronized long getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	@Override
+	public synchronized void setKeepAliveInterval(final long keepAliveInterval)
+	{
+		this.keepAliveInterval = keepAliveInterval;
+		if (maintenance != null) {
+			// restart with the new interval
+			maintenance.shutdownNow();
+			maintenance = null;
+			if (!sessions.isEmpty()) startMaintenance();
+		}
+	}
+
+	@Override
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	@Override
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	@Override
+	public synchronized long getLoginTime() {
+		return loginTime;
+	}
+
+	// -- Disposable methods --
+
+	@Override
+	public void dispose() {
+		final List<Entry> all;
+		synchronized (this) {
+			if (maintenance != null) maintenance.shutdownNow();
+			maintenance = null;
+			all = new ArrayList<Entry>(sessions.values());
+			entries.clear();
+			sessions.clear();
+		}
+		for (final Entry entry : all) {
+			entry.session.close();
+		}
+	}
+
+	// -- Helper methods --
+
+	private void addKey(final Entry entry, final String key) {
+		if (entries.containsKey(key)) return;
+		entries.put(key, entry);
+		entry.keys.add(key);
+	}
+
+	/**
+	 * Removes unused entries which have been idle for at least the given number
+	 * of milliseconds.
+	 */
+	private synchronized List<Entry> removeEntries(final long idle) {
+		final long now = System.currentTimeMillis();
+		final List<Entry> removed = new ArrayList<Entry>();
+		final Iterator<Entry> iter = sessions.values().iterator();
+		while (iter.hasNext()) {
+			final Entry entry = iter.next();
+			if (entry.refCount > 0) continue;
+			if (now - entry.lastUsed < idle) continue;
+			iter.remove();
+			for (final String key : entry.keys) {
+				entries.remove(key);
+			}
+			removed.add(entry);
+		}
+		return removed;
+	}
+
+	/** Removes the given entry from the pool, regardless of its usage. */
+	private synchronized void removeEntry(final Entry entry) {
+		if (sessions.remove(entry.session) == null) return;
+		for (final String key : entry.keys) {
+			entries.remove(key);
+		}
+	}
+
+	private void startMaintenance() {
+		if (maintenance != null || keepAliveInterval <= 0) return;
+		maintenance = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "OMERO-session-maintenance");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/** Closes expired sessions and keeps the remaining ones alive. */
+	private void maintain() {
+		final long timeout = getIdleTimeout();
+		for (final Entry entry : removeEntries(timeout)) {
+			entry.session.close();
+		}
+
+		final List<Entry> alive;
+		synchronized (this) {
+			alive = new ArrayList<Entry>(sessions.values());
+		}
+		for (final Entry entry : alive) {
+			if (ping(entry.session)) continue;
+			// NB: The session is dead; nobody should get it from the pool again.
+			removeEntry(entry);
+			synchronized (this) {
+				if (entry.refCount > 0) continue; // still in use; let user close it
+			}
+			entry.session.close();
+		}
+	}
+
+	/**
+	 * Pings the given session. The server answers {@code false} when asked to
+	 * keep a null proxy alive, so only an exception means the session is dead.
+	 */
+	private boolean ping(final OMEROSession session) {
+		final ServiceFactoryPrx proxy = session.getSession();
+		if (proxy == null) return false; // already closed
+		try {
+			proxy.keepAlive(null);
+			return true;
+		}
+		catch (final Ice.LocalException exc) {
+			log.debug("OMERO session keep-alive failed", exc);
+			return false;
+		}
+	}
+
+	/** Computes the pool key for the given credentials. */
+	private static String key(final OMEROCredentials credentials) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(credentials.getServer());
+		sb.append(":");
+		sb.append(credentials.getPort());
+		if (credentials.getSessionID() != null) {
+			sb.append("#");
+			sb.append(credentials.getSessionID());
+		}
+		else if (credentials.getUser() != null) {
+			sb.append("@");
+			sb.append(credentials.getUser());
+			// NB: Distinguish passwords, so that a wrong one never reuses a
+			// session, without keeping the password itself in the pool.
+			sb.append("/");
+			sb.append(digest(credentials.getPassword()));
+		}
+		return sb.toString();
+	}
+
+	private static String digest(final String s) {
+		if (s == null) return "";
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final byte[] hash = md.digest(s.getBytes("UTF-8"));
+			final StringBuilder sb = new StringBuilder();
+			for (final byte b : hash) {
+				sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return sb.toString();
+		}
+		catch (final NoSuchAlgorithmException exc) {
+			throw new IllegalStateException(exc);
+		}
+		catch (final UnsupportedEncodingException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	// -- Helper classes --
+
+	/** A pooled session together with its bookkeeping. */
+	private static class Entry {
+
+		private final OMEROSession session;
+		private final List<String> keys = new ArrayList<String>();
+		private int refCount;
+		private long lastUsed;
+
+		private Entry(final OMEROSession session) {
+			this.session = session;
+		}
+	}
+
+}
@@ -0,0 +1,642 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent local mirror of OMERO pixels, shared across runs and across
+ * the JVMs of one machine.
+ * <p>
+ * Each pixels set (at each resolution level) is mirrored in a file of its
+ * own, with a fixed slot for every native tile of every plane, so that a tile
+ * is found at a computed offset, and served as a view of a memory-mapped
+ * region without copying. Tiles are written as they are fetched from the
+ * server; a tile counts as present only once a flag for it is set, after its
+ * data is in place, so no process ever sees a partially written tile.
+ * </p>
+ * <p>
+ * A file records the update event of its pixels; when the server reports
+ * another one, the file is discarded and mirrored anew. Files are trusted for
+ * a limited time after being validated. When the mirrored tiles exceed the
+ * disk budget, the least recently opened files are deleted.
+ * </p>
+ * <p>
+ * Every process using a file holds a shared lock on its header; a file is
+ * only replaced or deleted under an exclusive lock, so files in use elsewhere
+ * are left alone. A file is never changed in place: an outdated one is
+ * replaced by a new file, so that the views of the old one stay valid. Files
+ * open in this JVM are never opened a second time, as closing any channel of
+ * a file would release the locks of them all.
+ * </p>
+ */
+public class DiskMirror implements Closeable {
+
+	// -- Constants --
+
+	/** Default disk budget for mirrored tiles: 10 GiB. */
+	public static final long DEFAULT_BUDGET = 10L * 1024 * 1024 * 1024;
+
+	/** Default time to trust a file without revalidating it: 5 minutes. */
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+	/** The suffix of mirror files. */
+	public static final String SUFFIX = ".mirror";
+
+	/** "OMEROMIR" */
+	private static final long MAGIC = 0x4f4d45524f4d4952L;
+
+	/** "OMERORIP": marks a file which was replaced or deleted. */
+	private static final long RETIRED = 0x4f4d45524f524950L;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final byte[] PRESENT = { 1 };
+
+	/** Files open in this JVM, by any mirror, by absolute path. */
+	private static final Map<File, MirrorFile> OPEN =
+		new HashMap<File, MirrorFile>();
+
+	// -- Fields --
+
+	private File directory = new File(new File(System.getProperty("user.home"),
+		".scifio"), "omero-mirror");
+
+	private long budget = DEFAULT_BUDGET;
+
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	/** Files open in this JVM, by file name. */
+	private final Map<String, MirrorFile> files =
+		new HashMap<String, MirrorFile>();
+
+	/** Bytes of mirrored tiles on disk, or -1 if not yet known. */
+	private long usage = -1;
+
+	// -- DiskMirror methods --
+
+	public synchronized File getDirectory() {
+		return directory;
+	}
+
+	/** Sets the directory of the mirror files, closing those already open. */
+	public synchronized void setDirectory(final File directory) {
+		close();
+		this.directory = directory;
+		usage = -1;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Sets the disk budget for mirrored tiles, in bytes. */
+	public synchronized void setBudget(final long budget) {
+		this.budget = budget;
+	}
+
+	public synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/** Sets the time (in ms) to trust a file without revalidating it. */
+	public synchronized void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/** Gets the bytes of mirrored tiles on disk. */
+	public synchronized long getUsage() {
+		if (usage < 0) usage = scan();
+		return usage;
+	}
+
+	/**
+	 * Gets the open mirror of the given pixels and resolution level, if it was
+	 * validated recently enough to be trusted.
+	 *
+	 * @return The mirror file, or null if it needs to be (re)opened.
+	 */
+	public synchronized MirrorFile get(final OMEROCredentials credentials,
+		final long pixelsID, final int level)
+	{
+		final MirrorFile file = files.get(name(credentials, pixelsID, level));
+		if (file == null) return null;
+		if (System.currentTimeMillis() - file.validated > timeToLive) return null;
+		return file;
+	}
+
+	/**
+	 * Opens the mirror of the given pixels and resolution level, discarding
+	 * its tiles if they are of another update event.
+	 *
+	 * @param sizes The X, Y, Z, C and T lengths of the pixels at this level.
+	 * @param tileSize The width and height of the tiles to mirror.
+	 * @return The mirror file, or null if the pixels cannot be mirrored: they
+	 *         are too large, or an outdated mirror of them is in use elsewhere.
+	 */
+	public synchronized MirrorFile open(final OMEROCredentials credentials,
+		final long pixelsID, final int level, final long updateEvent,
+		final int[] sizes, final int[] tileSize, final int bpp) throws IOException
+	{
+		final String name = name(credentials, pixelsID, level);
+		final MirrorFile existing = files.remove(name);
+		if (existing != null) existing.close();
+
+		final Layout layout = new Layout(sizes, tileSize, bpp, updateEvent);
+		if (!layout.isMappable()) return null;
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs()) {
+				throw new IOException("Cannot create mirror directory: " + directory);
+			}
+			// NB: Mirrored pixels are for the eyes of this system user only.
+			directory.setReadable(false, false);
+			directory.setReadable(true, true);
+			directory.setExecutable(false, false);
+			directory.setExecutable(true, true);
+		}
+		final File file = new File(directory, name);
+		final MirrorFile mirrorFile = new MirrorFile(this, file, layout);
+		boolean initialized = false;
+		try {
+			initialized = mirrorFile.init();
+		}
+		finally {
+			if (!initialized) mirrorFile.close();
+		}
+		if (!initialized) return null;
+		files.put(name, mirrorFile);
+		// NB: The modification time orders files for eviction.
+		file.setLastModified(System.currentTimeMillis());
+		return mirrorFile;
+	}
+
+	/**
+	 * Closes the mirrors of the given pixels ID, on any server, so that they
+	 * are revalidated when next opened.
+	 */
+	public synchronized void invalidate(final long pixelsID) {
+		final String infix = "_" + pixelsID + "_";
+		for (final String name : files.keySet().toArray(new String[0])) {
+			if (name.contains(infix)) files.remove(name).close();
+		}
+	}
+
+	// -- Closeable methods --
+
+	@Override
+	public synchronized void close() {
+		for (final MirrorFile file : files.values()) {
+			file.close();
+		}
+		files.clear();
+	}
+
+	// -- Helper methods --
+
+	/** Notes that a tile was mirrored, evicting files if over budget. */
+	private synchronized void written(final MirrorFile current,
+		final long bytes)
+	{
+		if (usage < 0) usage = scan();
+		else usage += bytes;
+		if (usage > budget) evict(current);
+	}
+
+	/**
+	 * Deletes the least recently opened files until the usage is well within
+	 * budget, sparing the given one. The usage is recounted from the disk, to
+	 * account for the tiles written by other processes.
+	 */
+	private void evict(final MirrorFile current) {
+		final File[] list = list();
+		Arrays.sort(list, new Comparator<File>() {
+
+			@Override
+			public int compare(final File f1, final File f2) {
+				final long t1 = f1.lastModified(), t2 = f2.lastModified();
+				return t1 < t2 ? -1 : t1 > t2 ? 1 : 0;
+			}
+		});
+		final long[] sizes = new long[list.length];
+		usage = 0;
+		for (int i = 0; i < list.length; i++) {
+			sizes[i] = usage(list[i]);
+			usage += sizes[i];
+		}
+		// NB: Evict down to 3/4 of the budget, so as not to rescan every write.
+		final long target = budget / 4 * 3;
+		for (int i = 0; i < list.length && usage > target; i++) {
+			if (current != null && list[i].equals(current.file)) continue;
+			if (delete(list[i])) usage -= sizes[i];
+		}
+	}
+
+	/**
+	 * Deletes the given file, unless it is in use by another mirror or another
+	 * process.
+	 */
+	private boolean delete(final File file) {
+		final MirrorFile open = files.remove(file.getName());
+		if (open != null) open.close();
+		synchronized (OPEN) {
+			if (OPEN.containsKey(file.getAbsoluteFile())) return false;
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				final FileChannel channel = raf.getChannel();
+				if (channel.tryLock(0, HEADER_SIZE, false) == null) return false;
+				channel.write(retired(), 0);
+				return file.delete();
+			}
+			catch (final IOException exc) {
+				return false;
+			}
+			finally {
+				close(raf);
+			}
+		}
+	}
+
+	/** Counts the bytes of mirrored tiles in all files. */
+	private long scan() {
+		long total = 0;
+		for (final File file : list()) {
+			total += usage(file);
+		}
+		return total;
+	}
+
+	private File[] list() {
+		final File[] list = directory.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(final File file) {
+				return file.getName().endsWith(SUFFIX);
+			}
+		});
+		return list == null ? new File[0] : list;
+	}
+
+	/**
+	 * Counts the bytes of mirrored tiles in the given file, from its mapped
+	 * flags if it is open in this JVM.
+	 */
+	private static long usage(final File file) {
+		synchronized (OPEN) {
+			final MirrorFile open = OPEN.get(file.getAbsoluteFile());
+			if (open != null) return open.usage();
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "r");
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				if (raf.getChannel().read(header, 0) < HEADER_SIZE) return 0;
+				final Layout layout = Layout.read(header);
+				if (layout == null) return 0;
+				final byte[] flags = new byte[(int) layout.slots];
+				raf.seek(HEADER_SIZE);
+				raf.readFully(flags);
+				return count(ByteBuffer.wrap(flags)) * layout.slotSize;
+			}
+			catch (final IOException exc) {
+				return 0;
+			}
+			finally {
+				close(raf);
+			}
+		}
+	}
+
+	/** Counts the present flags among the remaining ones. */
+	private static long count(final ByteBuffer flags) {
+		long count = 0;
+		for (int i = flags.position(); i < flags.limit(); i++) {
+			if (flags.get(i) != 0) count++;
+		}
+		return count;
+	}
+
+	/** Gets a header marking its file as retired. */
+	private static ByteBuffer retired() {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(RETIRED);
+		header.rewind();
+		return header;
+	}
+
+	private static String name(final OMEROCredentials credentials,
+		final long pixelsID, final int level)
+	{
+		final String server =
+			TileCache.server(credentials).replaceAll("[^A-Za-z0-9.-]", "-");
+		return server + "_" + pixelsID + "_" + level + SUFFIX;
+	}
+
+	private static void close(final Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		}
+		catch (final IOException exc) {
+			// NB: No action needed.
+		}
+	}
+
+	// -- Helper classes --
+
+	/** The layout of a mirror file, as recorded in its header. */
+	private static class Layout {
+
+		private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+		private final int tileW, tileH, bpp;
+		private final long updateEvent;
+
+		private final int tilesX, tilesPerPlane, slotSize;
+		private final long slots, flagsOffset, dataOffset, planeBytes;
+
+		private Layout(final int[] sizes, final int[] tileSize, final int bpp,
+			final long updateEvent)
+		{
+			sizeX = sizes[0];
+			sizeY = sizes[1];
+			sizeZ = Math.max(sizes[2], 1);
+			sizeC = Math.max(sizes[3], 1);
+			sizeT = Math.max(sizes[4], 1);
+			tileW = Math.min(tileSize[0], sizeX);
+			tileH = Math.min(tileSize[1], sizeY);
+			this.bpp = bpp;
+			this.updateEvent = updateEvent;
+
+			tilesX = (sizeX + tileW - 1) / tileW;
+			tilesPerPlane = tilesX * ((sizeY + tileH - 1) / tileH);
+			slotSize = tileW * tileH * bpp;
+			slots = (long) sizeZ * sizeC * sizeT * tilesPerPlane;
+			flagsOffset = HEADER_SIZE;
+			// NB: Align the tiles with the pages of the file system.
+			dataOffset = (flagsOffset + slots + 4095) / 4096 * 4096;
+			planeBytes = (long) tilesPerPlane * slotSize;
+		}
+
+		/** Parses the given header, or returns null if it is not one. */
+		private static Layout read(final ByteBuffer header) {
+			header.rewind();
+			if (header.getLong() != MAGIC || header.getInt() != VERSION) return null;
+			final int[] sizes = new int[5];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = header.getInt();
+			}
+			final int[] tileSize = { header.getInt(), header.getInt() };
+			final int bpp = header.getInt();
+			final long updateEvent = header.getLong();
+			return new Layout(sizes, tileSize, bpp, updateEvent);
+		}
+
+		private ByteBuffer write() {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC).putInt(VERSION);
+			header.putInt(sizeX).putInt(sizeY).putInt(sizeZ).putInt(sizeC)
+				.putInt(sizeT);
+			header.putInt(tileW).putInt(tileH).putInt(bpp).putLong(updateEvent);
+			header.rewind();
+			return header;
+		}
+
+		/** Gets whether the flags and each plane fit in one mapping. */
+		private boolean isMappable() {
+			return sizeX > 0 && sizeY > 0 && bpp > 0 &&
+				slots <= Integer.MAX_VALUE && planeBytes <= Integer.MAX_VALUE;
+		}
+
+		private boolean matches(final Layout other) {
+			return other != null && sizeX == other.sizeX && sizeY == other.sizeY &&
+				sizeZ == other.sizeZ && sizeC == other.sizeC &&
+				sizeT == other.sizeT && tileW == other.tileW &&
+				tileH == other.tileH && bpp == other.bpp &&
+				updateEvent == other.updateEvent;
+		}
+
+		/**
+		 * Gets the slot of the given tile, or -1 if it is not one of the tiles of
+		 * this layout.
+		 */
+		private long slot(final TileCache.Key key) {
+			final int x = key.getX(), y = key.getY();
+			if (x % tileW != 0 || y % tileH != 0) return -1;
+			if (key.getW() != Math.min(tileW, sizeX - x) ||
+				key.getH() != Math.min(tileH, sizeY - y))
+			{
+				return -1;
+			}
+			final int z = key.getZ(), c = key.getC(), t = key.getT();
+			if (z >= sizeZ || c >= sizeC || t >= sizeT) return -1;
+			final long plane = ((long) t * sizeC + c) * sizeZ + z;
+			return plane * tilesPerPlane + y / tileH * tilesX + x / tileW;
+		}
+	}
+
+	/** An open mirror file. Its methods may be called from any thread. */
+	public static class MirrorFile {
+
+		private final DiskMirror mirror;
+		private final File file;
+		private final Layout layout;
+
+		private RandomAccessFile raf;
+		private FileChannel channel;
+
+		/** Shared lock on the header, while the file is open. */
+		private FileLock lock;
+
+		/** The present flags of all tiles. */
+		private MappedByteBuffer flags;
+
+		/** The tile data of each plane, mapped on demand. */
+		private final MappedByteBuffer[] planes;
+
+		/** When the file was last validated against the server. */
+		private final long validated = System.currentTimeMillis();
+
+		private MirrorFile(final DiskMirror mirror, final File file,
+			final Layout layout)
+		{
+			this.mirror = mirror;
+			this.file = file;
+			this.layout = layout;
+			planes = new MappedByteBuffer[layout.sizeZ * layout.sizeC * layout.sizeT];
+		}
+
+		/**
+		 * Reads the given tile, if mirrored.
+		 *
+		 * @return A read-only view of the mapped tile, or null if not mirrored.
+		 */
+		public ByteBuffer read(final TileCache.Key key) {
+			final long slot = layout.slot(key);
+			if (slot < 0 || flags.get((int) slot) == 0) return null;
+			final int plane = (int) (slot / layout.tilesPerPlane);
+			final ByteBuffer data = plane(plane);
+			if (data == null) return null;
+			final ByteBuffer view = data.duplicate();
+			final int offset = (int) (slot % layout.tilesPerPlane) * layout.slotSize;
+			view.limit(offset + key.getW() * key.getH() * layout.bpp);
+			view.position(offset);
+			return view.slice();
+		}
+
+		/**
+		 * Mirrors the given tile, unless it already is.
+		 *
+		 * @return True if the tile was written.
+		 */
+		public boolean write(final TileCache.Key key, final byte[] tile) {
+			final long slot = layout.slot(key);
+			if (slot < 0 || flags.get((int) slot) != 0) return false;
+			try {
+				final ByteBuffer data = ByteBuffer.wrap(tile);
+				long pos = layout.dataOffset + slot * layout.slotSize;
+				while (data.hasRemaining()) {
+					pos += channel.write(data, pos);
+				}
+				// NB: Mark the tile present only once its data is in place.
+				channel.write(ByteBuffer.wrap(PRESENT), layout.flagsOffset + slot);
+			}
+			catch (final IOException exc) {
+				// NB: The file was closed or evicted; mirroring is best effort.
+				return false;
+			}
+			mirror.written(this, layout.slotSize);
+			return true;
+		}
+
+		/**
+		 * Opens the file and takes a shared lock on it, first replacing it if its
+		 * layout differs.
+		 *
+		 * @return False if the file is open in another mirror of this JVM, or is
+		 *         outdated but in use elsewhere.
+		 */
+		private boolean init() throws IOException {
+			synchronized (OPEN) {
+				if (OPEN.containsKey(file.getAbsoluteFile())) return false;
+				OPEN.put(file.getAbsoluteFile(), this);
+			}
+			// NB: A file may be replaced between opening and locking it, once by
+			// this process and maybe once by another, with another layout.
+			for (int attempt = 0; attempt < 3; attempt++) {
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+				lock = channel.lock(0, HEADER_SIZE, true);
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				final boolean complete = channel.read(header, 0) == HEADER_SIZE;
+				if (complete && header.getLong(0) == RETIRED) {
+					DiskMirror.close(raf);
+					continue;
+				}
+				if (complete && layout.matches(Layout.read(header))) {
+					flags =
+						channel.map(FileChannel.MapMode.READ_ONLY, layout.flagsOffset,
+							layout.slots);
+					return true;
+				}
+				lock.release();
+				lock = channel.tryLock(0, HEADER_SIZE, false);
+				if (lock == null) return false;
+				replace();
+				DiskMirror.close(raf);
+			}
+			return false;
+		}
+
+		/**
+		 * Replaces the file with an empty one of this layout. The old file is
+		 * left intact for the views of it still in use, but marked as retired,
+		 * so that processes waiting to lock it open the new one instead.
+		 */
+		private void replace() throws IOException {
+			final File temp =
+				File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			RandomAccessFile out = null;
+			try {
+				out = new RandomAccessFile(temp, "rw");
+				out.setLength(layout.dataOffset + layout.slots * layout.slotSize);
+				out.getChannel().write(layout.write(), 0);
+			}
+			finally {
+				DiskMirror.close(out);
+			}
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("Cannot replace mirror file: " + file);
+			}
+			channel.write(retired(), 0);
+		}
+
+		/** Counts the bytes of mirrored tiles in this file. */
+		private long usage() {
+			// NB: The file may still be opening in another thread.
+			final MappedByteBuffer mapped = flags;
+			return mapped == null ? 0 : count(mapped.duplicate()) * layout.slotSize;
+		}
+
+		private synchronized ByteBuffer plane(final int plane) {
+			if (planes[plane] == null) {
+				try {
+					planes[plane] =
+						channel.map(FileChannel.MapMode.READ_ONLY, layout.dataOffset +
+							plane * layout.planeBytes, layout.planeBytes);
+				}
+				catch (final IOException exc) {
+					return null;
+				}
+			}
+			return planes[plane];
+		}
+
+		private void close() {
+			// NB: Mapped regions stay valid for views already handed out.
+			DiskMirror.close(raf);
+			synchronized (OPEN) {
+				if (OPEN.get(file.getAbsoluteFile()) == this) {
+					OPEN.remove(file.getAbsoluteFile());
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies, with one bucket per power of two
+ * nanoseconds. Recording a value allocates nothing.
+ */
+public class LatencyHistogram {
+
+	// -- Fields --
+
+	/** Bucket {@code i} counts latencies in [2^i, 2^(i+1)) ns. */
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	// -- LatencyHistogram methods --
+
+	/** Records the given latency, in nanoseconds. */
+	public void record(final long nanos) {
+		final long value = Math.max(nanos, 1);
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/** Gets the number of recorded latencies. */
+	public long getCount() {
+		return count.get();
+	}
+
+	/** Gets the sum of all recorded latencies, in nanoseconds. */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/** Gets the largest recorded latency, in nanoseconds. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Gets the mean recorded latency, in nanoseconds. */
+	public double getMean() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * Gets an upper bound on the given percentile of the recorded latencies, in
+	 * nanoseconds; accurate to within a factor of two.
+	 *
+	 * @param percentile The percentile, between 0 and 100.
+	 */
+	public long getPercentile(final double percentile) {
+		final long n = count.get();
+		if (n == 0) return 0;
+		final long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen < rank) continue;
+			final long upper = i < 62 ? 2L << i : Long.MAX_VALUE;
+			return Math.min(upper, getMax());
+		}
+		return getMax();
+	}
+
+	/** Discards all recorded latencies. */
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+}
@@ -0,0 +1,554 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import omero.RDouble;
+import omero.RInt;
+import omero.model.Event;
+import omero.model.Pixels;
+
+/**
+ * A cache of the pixels descriptors parsed by {@link OMEROFormat}, and of the
+ * image IDs resolved to pixels IDs, so that re-opening a known image needs no
+ * server calls.
+ * <p>
+ * Descriptors are trusted for a limited time after being validated; after
+ * that, the Parser checks the update event of the pixels on the server, and
+ * only retrieves the descriptor again if it changed. When a cache file is
+ * set, entries are also stored there, and thus shared across runs.
+ * </p>
+ * <p>
+ * Changes are written to the cache file in batches, shortly after they are
+ * made, and when the cache is flushed or closed. Each write merges the
+ * entries other processes have stored in the file meanwhile, under a file
+ * lock.
+ * </p>
+ */
+public class MetadataCache implements Closeable {
+
+	// -- Constants --
+
+	/** Default time to trust an entry without revalidating it: 5 minutes. */
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+	/** Time (in ms) changes are collected before the cache file is written. */
+	private static final long SAVE_DELAY = 2000;
+
+	/** Guards the cache files against concurrent writes from this process. */
+	private static final Object FILE_LOCK = new Object();
+
+	// -- Fields --
+
+	/** Cached descriptors, by server and pixels ID. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** Cached pixels IDs, by server and image ID. */
+	private final Map<String, Long> pixelsIDs = new HashMap<String, Long>();
+
+	/** Keys discarded since the cache file was last written. */
+	private final Set<String> removed = new HashSet<String>();
+
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	private File file;
+
+	/** Whether there are changes not yet written to the cache file. */
+	private boolean dirty;
+
+	/** Whether all entries were discarded since the file was last written. */
+	private boolean cleared;
+
+	/** Whether a write of the cache file is scheduled. */
+	private boolean pending;
+
+	private ScheduledExecutorService saver;
+
+	// -- MetadataCache methods --
+
+	/**
+	 * Gets the cached descriptor of the given pixels ID on the given server, or
+	 * null if none.
+	 */
+	public synchronized Entry get(final OMEROCredentials credentials,
+		final long pixelsID)
+	{
+		return entries.get(key(credentials, "pixels", pixelsID));
+	}
+
+	/** Caches the descriptor of a pixels set on the given server. */
+	public synchronized void put(final OMEROCredentials credentials,
+		final Entry entry)
+	{
+		entries.put(key(credentials, "pixels", entry.getPixelsID()), entry);
+		changed();
+	}
+
+	/**
+	 * Caches the descriptors of many pixels sets on the given server, along
+	 * with the IDs of their images.
+	 */
+	public synchronized void putAll(final OMEROCredentials credentials,
+		final List<Entry> list, final long[] imageIDs)
+	{
+		for (int i = 0; i < list.size(); i++) {
+			final Entry entry = list.get(i);
+			entries.put(key(credentials, "pixels", entry.getPixelsID()), entry);
+			pixelsIDs.put(key(credentials, "image", imageIDs[i]), entry
+				.getPixelsID());
+		}
+		changed();
+	}
+
+	/**
+	 * Gets the cached pixels ID of the given image ID on the given server, or 0
+	 * if unknown.
+	 */
+	public synchronized long getPixelsID(final OMEROCredentials credentials,
+		final long imageID)
+	{
+		final Long pixelsID = pixelsIDs.get(key(credentials, "image", imageID));
+		return pixelsID == null ? 0 : pixelsID;
+	}
+
+	/** Caches the pixels ID of an image ID on the given server. */
+	public synchronized void putPixelsID(final OMEROCredentials credentials,
+		final long imageID, final long pixelsID)
+	{
+		pixelsIDs.put(key(credentials, "image", imageID), pixelsID);
+		changed();
+	}
+
+	/** Discards the cached descriptor of the given pixels ID, on any server. */
+	public synchronized void invalidate(final long pixelsID) {
+		final String suffix = "/pixels/" + pixelsID;
+		boolean changed = false;
+		for (final String key : entries.keySet().toArray(new String[0])) {
+			if (!key.endsWith(suffix)) continue;
+			entries.remove(key);
+			// NB: Do not merge the entry back in from the cache file.
+			removed.add(key);
+			changed = true;
+		}
+		if (changed) changed();
+	}
+
+	/** Discards all cached metadata, including that in the cache file. */
+	public synchronized void clear() {
+		entries.clear();
+		pixelsIDs.clear();
+		removed.clear();
+		cleared = true;
+		dirty = true;
+		flush();
+	}
+
+	/** Writes any pending changes to the cache file, if one is set. */
+	public synchronized void flush() {
+		pending = false;
+		if (!dirty || file == null) return;
+		dirty = false;
+		save();
+	}
+
+	/** Gets the time in milliseconds to trust an entry without revalidation. */
+	public synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Sets the time in milliseconds to trust an entry without revalidation.
+	 * Zero revalidates every entry on every use.
+	 */
+	public synchronized void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/** Gets the file in which entries are stored, or null if none. */
+	public synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Sets the file in which entries are stored, loading any entries it
+	 * already holds. Null keeps entries in memory only.
+	 */
+	public synchronized void setFile(final File file) {
+		flush();
+		this.file = file;
+		removed.clear();
+		cleared = false;
+		if (file != null && file.exists()) load();
+	}
+
+	/** Gets the number of cached descriptors. */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	// -- Closeable methods --
+
+	/** Writes any pending changes, and stops writing them in the background. */
+	@Override
+	public void close() {
+		final ScheduledExecutorService oldSaver;
+		synchronized (this) {
+			flush();
+			oldSaver = saver;
+			saver = null;
+		}
+		if (oldSaver != null) oldSaver.shutdownNow();
+	}
+
+	// -- Helper methods --
+
+	/** Notes a change, scheduling a write of the cache file if needed. */
+	private void changed() {
+		dirty = true;
+		if (file == null || pending) return;
+		pending = true;
+		if (saver == null) {
+			saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "OMERO-metadata-cache");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		saver.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		}, SAVE_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private static String key(final OMEROCredentials credentials,
+		final String type, final long id)
+	{
+		return TileCache.server(credentials) + "/" + type + "/" + id;
+	}
+
+	/** Merges the entries of the cache file into those in memory. */
+	private void load() {
+		final Properties props = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			props.load(in);
+		}
+		catch (final IOException exc) {
+			// NB: An unreadable cache file is an empty cache.
+			return;
+		}
+		finally {
+			close(in);
+		}
+		for (final String key : props.stringPropertyNames()) {
+			if (removed.contains(key)) continue;
+			final String value = props.getProperty(key);
+			try {
+				if (key.contains("/image/")) {
+					if (!pixelsIDs.containsKey(key)) {
+						pixelsIDs.put(key, Long.valueOf(value));
+					}
+					continue;
+				}
+				// NB: Keep whichever entry was validated last.
+				final Entry entry = Entry.parse(value);
+				final Entry current = entries.get(key);
+				if (current == null || current.validated < entry.validated) {
+					entries.put(key, entry);
+				}
+			}
+			catch (final RuntimeException exc) {
+				// NB: Skip malformed entries.
+			}
+		}
+	}
+
+	/**
+	 * Writes the entries to the cache file, merged with those other processes
+	 * wrote there meanwhile.
+	 */
+	private void save() {
+		synchronized (FILE_LOCK) {
+			RandomAccessFile lockFile = null;
+			FileLock lock = null;
+			try {
+				lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+				lock = lockFile.getChannel().lock();
+				if (!cleared && file.exists()) load();
+				write();
+				removed.clear();
+				cleared = false;
+			}
+			catch (final IOException exc) {
+				// NB: The cache file is only a cache; try again on the next flush.
+				dirty = true;
+			}
+			finally {
+				if (lock != null) {
+					try {
+						lock.release();
+					}
+					catch (final IOException exc) {
+						// NB: No action needed.
+					}
+				}
+				close(lockFile);
+			}
+		}
+	}
+
+	private void write() throws IOException {
+		final Properties props = new Properties();
+		for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+			props.setProperty(entry.getKey(), entry.getValue().format());
+		}
+		for (final Map.Entry<String, Long> entry : pixelsIDs.entrySet()) {
+			props.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+		// NB: Write a sibling file and rename it, so that concurrent readers
+		// never see a partially written cache.
+		final File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			// NB: Cached metadata are for the eyes of this system user only.
+			temp.setReadable(false, false);
+			temp.setReadable(true, true);
+			props.store(out, "OMERO metadata cache");
+		}
+		catch (final IOException exc) {
+			close(out);
+			temp.delete();
+			throw exc;
+		}
+		close(out);
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("Cannot write " + file);
+			}
+		}
+	}
+
+	private static void close(final Closeable stream) {
+		if (stream == null) return;
+		try {
+			stream.close();
+		}
+		catch (final IOException exc) {
+			// NB: No action needed.
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * The fields of a pixels descriptor which populate an
+	 * {@link OMEROFormat.Metadata}.
+	 */
+	public static final class Entry {
+
+		private final long pixelsID;
+		private final long updateEvent;
+		private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+		private final Double physSizeX, physSizeY, physSizeZ;
+		private final Integer physSizeC;
+		private final Double physSizeT;
+		private final String pixelType;
+		private final int[][] resolutionSizes;
+
+		/** When the entry was last known to be current. */
+		private volatile long validated;
+
+		/**
+		 * @param resolutionSizes The X and Y sizes of each resolution level, from
+		 *          full resolution to the smallest level.
+		 */
+		public Entry(final Pixels pix, final int[][] resolutionSizes) {
+			this(pix.getId().getValue(), updateEvent(pix), pix.getSizeX()
+				.getValue(), pix.getSizeY().getValue(), pix.getSizeZ().getValue(),
+				pix.getSizeC().getValue(), pix.getSizeT().getValue(), value(pix
+					.getPhysicalSizeX()), value(pix.getPhysicalSizeY()), value(pix
+					.getPhysicalSizeZ()), value(pix.getWaveIncrement()), value(pix
+					.getTimeIncrement()), pix.getPixelsType().getValue().getValue(),
+				resolutionSizes, System.currentTimeMillis());
+		}
+
+		private Entry(final long pixelsID, final long updateEvent,
+			final int sizeX, final int sizeY, final int sizeZ, final int sizeC,
+			final int sizeT, final Double physSizeX, final Double physSizeY,
+			final Double physSizeZ, final Integer physSizeC, final Double physSizeT,
+			final String pixelType, final int[][] resolutionSizes,
+			final long validated)
+		{
+			this.pixelsID = pixelsID;
+			this.updateEvent = updateEvent;
+			this.sizeX = sizeX;
+			this.sizeY = sizeY;
+			this.sizeZ = sizeZ;
+			this.sizeC = sizeC;
+			this.sizeT = sizeT;
+			this.physSizeX = physSizeX;
+			this.physSizeY = physSizeY;
+			this.physSizeZ = physSizeZ;
+			this.physSizeC = physSizeC;
+			this.physSizeT = physSizeT;
+			this.pixelType = pixelType;
+			this.resolutionSizes = resolutionSizes;
+			this.validated = validated;
+		}
+
+		public long getPixelsID() {
+			return pixelsID;
+		}
+
+		/** Gets the ID of the pixels' last update event, or 0 if unknown. */
+		public long getUpdateEvent() {
+			return updateEvent;
+		}
+
+		/** Gets whether the entry must be revalidated before use. */
+		public boolean isExpired(final long timeToLive) {
+			return System.currentTimeMillis() - validated > timeToLive;
+		}
+
+		/** Notes that the entry was just found to be current. */
+		public void validate() {
+			validated = System.currentTimeMillis();
+		}
+
+		/** Copies the cached fields into the given metadata. */
+		public void populate(final OMEROFormat.Metadata meta) {
+			meta.setPixelsID(pixelsID);
+			meta.setSizeX(sizeX);
+			meta.setSizeY(sizeY);
+			meta.setSizeZ(sizeZ);
+			meta.setSizeC(sizeC);
+			meta.setSizeT(sizeT);
+			if (physSizeX != null) meta.setPhysicalSizeX(physSizeX);
+			if (physSizeY != null) meta.setPhysicalSizeY(physSizeY);
+			if (physSizeZ != null) meta.setPhysicalSizeZ(physSizeZ);
+			if (physSizeC != null) meta.setPhysicalSizeC(physSizeC);
+			if (physSizeT != null) meta.setPhysicalSizeT(physSizeT);
+			meta.setPixelType(pixelType);
+			meta.setResolutionSizes(resolutionSizes);
+		}
+
+		// -- Helper methods --
+
+		private String format() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(pixelsID).append(',').append(updateEvent);
+			sb.append(',').append(sizeX).append(',').append(sizeY);
+			sb.append(',').append(sizeZ).append(',').append(sizeC);
+			sb.append(',').append(sizeT);
+			sb.append(',').append(str(physSizeX)).append(',').append(str(physSizeY));
+			sb.append(',').append(str(physSizeZ)).append(',').append(str(physSizeC));
+			sb.append(',').append(str(physSizeT));
+			sb.append(',').append(pixelType).append(',');
+			for (int level = 0; level < resolutionSizes.length; level++) {
+				if (level > 0) sb.append(';');
+				sb.append(resolutionSizes[level][0]).append('x');
+				sb.append(resolutionSizes[level][1]);
+			}
+			sb.append(',').append(validated);
+			return sb.toString();
+		}
+
+		private static Entry parse(final String s) {
+			final String[] t = s.split(",", -1);
+			return new Entry(Long.parseLong(t[0]), Long.parseLong(t[1]), Integer
+				.parseInt(t[2]), Integer.parseInt(t[3]), Integer.parseInt(t[4]),
+				Integer.parseInt(t[5]), Integer.parseInt(t[6]), dbl(t[7]), dbl(t[8]),
+				dbl(t[9]), t[10].isEmpty() ? null : Integer.valueOf(t[10]), dbl(t[11]),
+				t[12], sizes(t[13]), Long.parseLong(t[14]));
+		}
+
+		/** Parses resolution sizes formatted as {@code WxH;WxH;...}. */
+		private static int[][] sizes(final String s) {
+			final String[] levels = s.split(";");
+			final int[][] sizes = new int[levels.length][];
+			for (int level = 0; level < levels.length; level++) {
+				final String[] size = levels[level].split("x");
+				sizes[level] =
+					new int[] { Integer.parseInt(size[0]), Integer.parseInt(size[1]) };
+			}
+			return sizes;
+		}
+
+		private static long updateEvent(final Pixels pix) {
+			if (pix.getDetails() == null) return 0;
+			final Event event = pix.getDetails().getUpdateEvent();
+			return event == null || event.getId() == null ? 0 : event.getId()
+				.getValue();
+		}
+
+		private static Double value(final RDouble value) {
+			return value == null ? null : value.getValue();
+		}
+
+		private static Integer value(final RInt value) {
+			return value == null ? null : value.getValue();
+		}
+
+		private static String str(final Object value) {
+			return value == null ? "" : value.toString();
+		}
+
+		private static Double dbl(final String s) {
+			return s.isEmpty() ? null : Double.valueOf(s);
+		}
+	}
+
+}
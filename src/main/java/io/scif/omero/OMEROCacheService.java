@@ -0,0 +1,48 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.SCIFIOService;
+
+/**
+ * Interface for services which hold the client-side caches shared by all
+ * {@link OMEROFormat} readers.
+ */
+public interface OMEROCacheService extends SCIFIOService {
+
+	/** Gets the cache of pixel tiles read from OMERO. */
+	TileCache getTileCache();
+
+	/** Gets the cache of pixels descriptors parsed from OMERO. */
+	MetadataCache getMetadataCache();
+
+	/** Gets the cache of pixel cells read by {@link CellReader}s. */
+	CellCache getCellCache();
+
+	/** Gets the persistent local mirror of pixels read from OMERO. */
+	DiskMirror getDiskMirror();
+
+}
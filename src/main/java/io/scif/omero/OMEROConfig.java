@@ -0,0 +1,398 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.config.SCIFIOConfig;
+
+import java.io.File;
+
+/**
+ * Utility methods for reading and writing {@link OMEROFormat}-specific
+ * options of a {@link SCIFIOConfig}.
+ */
+public final class OMEROConfig {
+
+	// -- Constants --
+
+	/** Key for whether the Reader uses the shared {@link TileCache}. */
+	public static final String TILE_CACHE = "omero.tileCache";
+
+	/** Key for whether the Parser uses the shared {@link MetadataCache}. */
+	public static final String METADATA_CACHE = "omero.metadataCache";
+
+	/** Key for whether the Reader fetches whole native tiles of the server. */
+	public static final String TILE_ALIGNMENT = "omero.tileAlignment";
+
+	/** Key for the number of planes the Reader reads ahead. */
+	public static final String PREFETCH_COUNT = "omero.prefetchCount";
+
+	/** Key for the maximum number of bytes the Reader reads ahead. */
+	public static final String PREFETCH_BUDGET = "omero.prefetchBudget";
+
+	/** Default maximum number of bytes read ahead: 64 MiB. */
+	public static final long DEFAULT_PREFETCH_BUDGET = 64L * 1024 * 1024;
+
+	/** Key for whether the Reader fetches whole stacks for sequential reads. */
+	public static final String STACK_STREAMING = "omero.stackStreaming";
+
+	/**
+	 * Key for the maximum number of bytes fetched in one stack or hypercube
+	 * read.
+	 */
+	public static final String STACK_BUDGET = "omero.stackBudget";
+
+	/**
+	 * Default maximum number of bytes fetched in one stack or hypercube read:
+	 * 32 MiB, well within the default Ice message size limit of OMERO clients.
+	 */
+	public static final long DEFAULT_STACK_BUDGET = 32L * 1024 * 1024;
+
+	/** Key for the number of Z planes spanned by one cell of a CellReader. */
+	public static final String CELL_DEPTH = "omero.cellDepth";
+
+	/** Default number of Z planes spanned by one cell. */
+	public static final int DEFAULT_CELL_DEPTH = 8;
+
+	/** Key for whether the Reader compresses its pixel traffic. */
+	public static final String COMPRESSION = "omero.compression";
+
+	/** Key for whether the Reader uses the shared {@link DiskMirror}. */
+	public static final String DISK_MIRROR = "omero.diskMirror";
+
+	/** Key for the journal file with which the Writer resumes uploads. */
+	public static final String UPLOAD_JOURNAL = "omero.uploadJournal";
+
+	/** Key for whether the Reader returns pixels in native byte order. */
+	public static final String NATIVE_ORDER = "omero.nativeOrder";
+
+	/** Key for the pixel type to which the Reader converts pixels. */
+	public static final String PIXEL_TYPE = "omero.pixelType";
+
+	/** Key for the projection of Z the server computes for the Reader. */
+	public static final String PROJECTION = "omero.projection";
+
+	/** Key for the factor by which the server downsamples planes in X and Y. */
+	public static final String DOWNSAMPLE = "omero.downsample";
+
+	/**
+	 * Key for the maximum number of raw pixels stores a Reader opens to serve
+	 * concurrent reads.
+	 */
+	public static final String CONNECTIONS = "omero.connections";
+
+	/** Default maximum number of raw pixels stores per Reader. */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	// -- Constructor --
+
+	private OMEROConfig() {
+		// NB: Prevent instantiation of utility class.
+	}
+
+	// -- Utility methods --
+
+	/** Gets whether tiles read from OMERO are cached. Defaults to true. */
+	public static boolean isTileCacheEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, TILE_CACHE, true);
+	}
+
+	/** Sets whether tiles read from OMERO are cached. */
+	public static SCIFIOConfig setTileCacheEnabled(final SCIFIOConfig config,
+		final boolean enabled)
+	{
+		config.put(TILE_CACHE, enabled);
+		return config;
+	}
+
+	/**
+	 * Gets whether pixels descriptors parsed from OMERO are cached. Defaults to
+	 * true.
+	 */
+	public static boolean isMetadataCacheEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, METADATA_CACHE, true);
+	}
+
+	/** Sets whether pixels descriptors parsed from OMERO are cached. */
+	public static SCIFIOConfig setMetadataCacheEnabled(
+		final SCIFIOConfig config, final boolean enabled)
+	{
+		config.put(METADATA_CACHE, enabled);
+		return config;
+	}
+
+	/**
+	 * Gets whether regions are read as the server's native tiles, and assembled
+	 * client-side. Defaults to true.
+	 */
+	public static boolean isTileAlignmentEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, TILE_ALIGNMENT, true);
+	}
+
+	/** Sets whether regions are read as the server's native tiles. */
+	public static SCIFIOConfig setTileAlignmentEnabled(
+		final SCIFIOConfig config, final boolean enabled)
+	{
+		config.put(TILE_ALIGNMENT, enabled);
+		return config;
+	}
+
+	/**
+	 * Gets the number of planes to read ahead along the traversed axis.
+	 * Defaults to 0, i.e., no read-ahead.
+	 */
+	public static int getPrefetchCount(final SCIFIOConfig config) {
+		return (int) getLong(config, PREFETCH_COUNT, 0);
+	}
+
+	/** Sets the number of planes to read ahead along the traversed axis. */
+	public static SCIFIOConfig setPrefetchCount(final SCIFIOConfig config,
+		final int count)
+	{
+		config.put(PREFETCH_COUNT, count);
+		return config;
+	}
+
+	/** Gets the maximum number of bytes to read ahead. */
+	public static long getPrefetchBudget(final SCIFIOConfig config) {
+		return getLong(config, PREFETCH_BUDGET, DEFAULT_PREFETCH_BUDGET);
+	}
+
+	/** Sets the maximum number of bytes to read ahead. */
+	public static SCIFIOConfig setPrefetchBudget(final SCIFIOConfig config,
+		final long budget)
+	{
+		config.put(PREFETCH_BUDGET, budget);
+		return config;
+	}
+
+	/**
+	 * Gets whether sequential full-plane reads are served from whole
+	 * timepoints, stacks or Z chunks, fetched in one call each. Defaults to
+	 * false.
+	 */
+	public static boolean isStackStreamingEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, STACK_STREAMING, false);
+	}
+
+	/** Sets whether sequential full-plane reads fetch whole stacks. */
+	public static SCIFIOConfig setStackStreamingEnabled(
+		final SCIFIOConfig config, final boolean enabled)
+	{
+		config.put(STACK_STREAMING, enabled);
+		return config;
+	}
+
+	/** Gets the maximum number of bytes fetched in one stack or cube read. */
+	public static long getStackBudget(final SCIFIOConfig config) {
+		return getLong(config, STACK_BUDGET, DEFAULT_STACK_BUDGET);
+	}
+
+	/** Sets the maximum number of bytes fetched in one stack or cube read. */
+	public static SCIFIOConfig setStackBudget(final SCIFIOConfig config,
+		final long budget)
+	{
+		config.put(STACK_BUDGET, budget);
+		return config;
+	}
+
+	/** Gets the number of Z planes spanned by one cell of a CellReader. */
+	public static int getCellDepth(final SCIFIOConfig config) {
+		return (int) Math.max(getLong(config, CELL_DEPTH, DEFAULT_CELL_DEPTH), 1);
+	}
+
+	/** Sets the number of Z planes spanned by one cell of a CellReader. */
+	public static SCIFIOConfig setCellDepth(final SCIFIOConfig config,
+		final int depth)
+	{
+		config.put(CELL_DEPTH, depth);
+		return config;
+	}
+
+	/**
+	 * Gets whether the Reader uses Ice protocol compression for pixel traffic,
+	 * in addition to sources whose credentials request it. Defaults to false.
+	 */
+	public static boolean isCompressionEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, COMPRESSION, false);
+	}
+
+	/** Sets whether the Reader uses Ice protocol compression. */
+	public static SCIFIOConfig setCompressionEnabled(final SCIFIOConfig config,
+		final boolean enabled)
+	{
+		config.put(COMPRESSION, enabled);
+		return config;
+	}
+
+	/**
+	 * Gets the maximum number of raw pixels stores a Reader opens to serve
+	 * concurrent reads; threads beyond it wait for a store to come free.
+	 */
+	public static int getConnections(final SCIFIOConfig config) {
+		return (int) Math.max(getLong(config, CONNECTIONS, DEFAULT_CONNECTIONS),
+			1);
+	}
+
+	/** Sets the maximum number of raw pixels stores per Reader. */
+	public static SCIFIOConfig setConnections(final SCIFIOConfig config,
+		final int connections)
+	{
+		config.put(CONNECTIONS, connections);
+		return config;
+	}
+
+	/**
+	 * Gets whether the Reader serves tiles from, and saves them to, the
+	 * persistent local mirror. Defaults to false.
+	 */
+	public static boolean isDiskMirrorEnabled(final SCIFIOConfig config) {
+		return getBoolean(config, DISK_MIRROR, false);
+	}
+
+	/** Sets whether the Reader uses the persistent local mirror. */
+	public static SCIFIOConfig setDiskMirrorEnabled(final SCIFIOConfig config,
+		final boolean enabled)
+	{
+		config.put(DISK_MIRROR, enabled);
+		return config;
+	}
+
+	/**
+	 * Gets whether pixels are read in the native byte order of the platform,
+	 * rather than as stored (big-endian). Must be set when parsing, since it
+	 * changes the metadata. Defaults to false.
+	 */
+	public static boolean isNativeOrder(final SCIFIOConfig config) {
+		return getBoolean(config, NATIVE_ORDER, false);
+	}
+
+	/** Sets whether pixels are read in native byte order. */
+	public static SCIFIOConfig setNativeOrder(final SCIFIOConfig config,
+		final boolean nativeOrder)
+	{
+		config.put(NATIVE_ORDER, nativeOrder);
+		return config;
+	}
+
+	/**
+	 * Gets the pixel type (e.g. {@code "float"}) to which pixels are converted
+	 * when read, or null to read them as stored. Must be set when parsing,
+	 * since it changes the metadata.
+	 */
+	public static String getPixelType(final SCIFIOConfig config) {
+		if (config == null) return null;
+		final Object value = config.get(PIXEL_TYPE);
+		return value == null ? null : value.toString();
+	}
+
+	/** Sets the pixel type to which pixels are converted when read. */
+	public static SCIFIOConfig setPixelType(final SCIFIOConfig config,
+		final String pixelType)
+	{
+		config.put(PIXEL_TYPE, pixelType);
+		return config;
+	}
+
+	/**
+	 * Gets the projection along Z ({@code max}, {@code mean} or {@code sum})
+	 * the server computes for each plane, or null to read the image as is. Can
+	 * also be given as the {@code projection} field of the source string. Must
+	 * be set when parsing, since it changes the metadata.
+	 */
+	public static String getProjection(final SCIFIOConfig config) {
+		if (config == null) return null;
+		final Object value = config.get(PROJECTION);
+		return value == null ? null : value.toString();
+	}
+
+	/** Sets the projection along Z the server computes for each plane. */
+	public static SCIFIOConfig setProjection(final SCIFIOConfig config,
+		final String projection)
+	{
+		config.put(PROJECTION, projection);
+		return config;
+	}
+
+	/**
+	 * Gets the factor by which the server downsamples planes in X and Y, with
+	 * 1 for none. Can also be given as the {@code downsample} field of the
+	 * source string. Must be set when parsing, since it changes the metadata.
+	 * Defaults to 1.
+	 */
+	public static int getDownsample(final SCIFIOConfig config) {
+		return (int) Math.max(getLong(config, DOWNSAMPLE, 1), 1);
+	}
+
+	/** Sets the factor by which the server downsamples planes in X and Y. */
+	public static SCIFIOConfig setDownsample(final SCIFIOConfig config,
+		final int factor)
+	{
+		config.put(DOWNSAMPLE, factor);
+		return config;
+	}
+
+	/**
+	 * Gets the journal file with which the Writer records its progress, and
+	 * resumes an interrupted upload; or null to upload without one.
+	 */
+	public static File getUploadJournal(final SCIFIOConfig config) {
+		if (config == null) return null;
+		final Object value = config.get(UPLOAD_JOURNAL);
+		if (value instanceof File) return (File) value;
+		return value == null ? null : new File(value.toString());
+	}
+
+	/** Sets the journal file with which the Writer resumes uploads. */
+	public static SCIFIOConfig setUploadJournal(final SCIFIOConfig config,
+		final File journal)
+	{
+		config.put(UPLOAD_JOURNAL, journal);
+		return config;
+	}
+
+	// -- Helper methods --
+
+	private static boolean getBoolean(final SCIFIOConfig config,
+		final String key, final boolean defaultValue)
+	{
+		if (config == null) return defaultValue;
+		final Object value = config.get(key);
+		if (value instanceof Boolean) return (Boolean) value;
+		if (value != null) return Boolean.parseBoolean(value.toString());
+		return defaultValue;
+	}
+
+	private static long getLong(final SCIFIOConfig config, final String key,
+		final long defaultValue)
+	{
+		if (config == null) return defaultValue;
+		final Object value = config.get(key);
+		if (value instanceof Number) return ((Number) value).longValue();
+		if (value != null) return Long.parseLong(value.toString());
+		return defaultValue;
+	}
+
+}
@@ -54,6 +54,9 @@ public class OMEROCredentials {
 	@Field
 	private boolean encrypted;
 
+	@Field
+	private boolean compressed;
+
 	// -- OMEROCredentials methods --
 
 	public String getServer() {
@@ -80,6 +83,11 @@ public class OMEROCredentials {
 		return encrypted;
 	}
 
+	/** Gets whether pixel traffic uses Ice protocol compression. */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
 	public void setServer(final String server) {
 		this.server = server;
 	}
@@ -108,4 +116,8 @@ public class OMEROCredentials {
 		this.encrypted = encrypted;
 	}
 
+	public void setCompressed(final boolean compressed) {
+		this.compressed = compressed;
+	}
+
 }
@@ -44,17 +44,25 @@ import io.scif.config.SCIFIOConfig;
 import io.scif.io.RandomAccessInputStream;
 import io.scif.util.FormatTools;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.imglib2.meta.Axes;
+import net.imglib2.meta.AxisType;
 import net.imglib2.meta.CalibratedAxis;
 import net.imglib2.meta.axis.DefaultLinearAxis;
 import net.imglib2.meta.axis.LinearAxis;
-import omero.RDouble;
-import omero.RInt;
 import omero.ServerError;
 import omero.api.RawPixelsStorePrx;
+import omero.model.Image;
 import omero.model.Pixels;
 
 import org.scijava.log.LogService;
@@ -70,6 +78,11 @@ import org.scijava.plugin.Plugin;
 @Plugin(type = Format.class)
 public class OMEROFormat extends AbstractFormat {
 
+	// -- Fields --
+
+	/** Whether the lack of Ice compression was reported already. */
+	private static volatile boolean compressionWarned;
+
 	// -- Format methods --
 
 	@Override
@@ -90,7 +103,7 @@ public class OMEROFormat extends AbstractFormat {
 
 		@Override
 		public boolean isFormat(final String name, final SCIFIOConfig config) {
-			if (name != null && name.startsWith("omero:")) return true;
+			if (OMEROLocator.isLocator(name)) return true;
 			return super.isFormat(name, config);
 		}
 
@@ -110,6 +123,12 @@ public class OMEROFormat extends AbstractFormat {
 		@Field(label = "Pixels ID")
 		private long pixelsID;
 
+		@Field(label = "Dataset ID")
+		private long datasetID;
+
+		@Field(label = "Plate ID")
+		private long plateID;
+
 		@Field
 		private int sizeX;
 
@@ -143,6 +162,34 @@ public class OMEROFormat extends AbstractFormat {
 		@Field
 		private String pixelType;
 
+		/**
+		 * The X and Y sizes of each resolution level, as reported by the server,
+		 * or null for full resolution only.
+		 */
+		@Field(label = "Resolution sizes")
+		private int[][] resolutionSizes;
+
+		/** The pixel type reported and read, or null for that as stored. */
+		@Field(label = "Decoded pixel type")
+		private String decodedPixelType;
+
+		@Field(label = "Native byte order")
+		private boolean nativeOrder;
+
+		/** The projection along Z the server computes, or null for none. */
+		@Field
+		private String projection;
+
+		/** The factor by which the server downsamples X and Y; 1 for none. */
+		@Field
+		private int downsample = 1;
+
+		/** The images of the dataset or plate, or null for a single image. */
+		private List<Metadata> images;
+
+		/** The plane index of each image index, or null if not yet computed. */
+		private volatile PlaneIndex[] planeIndices;
+
 		// -- io.scif.omero.OMEROFormat.Metadata methods --
 
 		public String getName() {
@@ -161,6 +208,49 @@ public class OMEROFormat extends AbstractFormat {
 			return pixelsID;
 		}
 
+		public long getDatasetID() {
+			return datasetID;
+		}
+
+		public long getPlateID() {
+			return plateID;
+		}
+
+		/** Gets whether this metadata describes a dataset or plate. */
+		public boolean isContainer() {
+			return datasetID != 0 || plateID != 0;
+		}
+
+		/**
+		 * Gets the metadata of the OMERO image at the given image index: for a
+		 * dataset or plate, that of its image; otherwise, this metadata.
+		 */
+		public Metadata getImage(final int imageIndex) {
+			return images == null ? this : images.get(imageIndex);
+		}
+
+		/**
+		 * Gets the mapping of the given image's plane indices to Z, C and T. It
+		 * is computed when the image metadata is populated, or on first use for
+		 * metadata populated otherwise (e.g., to write).
+		 */
+		public PlaneIndex getPlaneIndex(final int imageIndex) {
+			PlaneIndex[] indices = planeIndices;
+			if (indices == null || indices.length != getImageCount()) {
+				indices = createPlaneIndices();
+				planeIndices = indices;
+			}
+			return indices[imageIndex];
+		}
+
+		/**
+		 * Gets the resolution level of the given image index within its OMERO
+		 * image, with 0 being full resolution.
+		 */
+		public int getLevel(final int imageIndex) {
+			return images == null ? imageIndex : 0;
+		}
+
 		public int getSizeX() {
 			return sizeX;
 		}
@@ -201,10 +291,61 @@ public class OMEROFormat extends AbstractFormat {
 			return physSizeT;
 		}
 
+		/** Gets the pixel type as stored by OMERO. */
 		public String getPixelType() {
 			return pixelType;
 		}
 
+		/**
+		 * Gets the pixel type the Reader converts pixels to, and reports in the
+		 * image metadata.
+		 */
+		public String getDecodedPixelType() {
+			return decodedPixelType == null ? pixelType : decodedPixelType;
+		}
+
+		/** Gets whether the Reader returns pixels in native byte order. */
+		public boolean isNativeOrder() {
+			return nativeOrder;
+		}
+
+		/**
+		 * Gets the projection along Z ({@code max}, {@code mean} or {@code sum})
+		 * the server computes for each plane, or null for none.
+		 */
+		public String getProjection() {
+			return projection;
+		}
+
+		/** Gets the factor by which the server downsamples X and Y. */
+		public int getDownsample() {
+			return Math.max(downsample, 1);
+		}
+
+		/**
+		 * Gets whether this is a derived image, whose planes the server computes
+		 * from the stored pixels: a projection, or downsampled planes.
+		 */
+		public boolean isDerived() {
+			return projection != null || getDownsample() > 1;
+		}
+
+		/**
+		 * Gets the number of pyramid resolution levels. Each is exposed as its own
+		 * image index, from full resolution (0) to the smallest level.
+		 */
+		public int getResolutionLevels() {
+			return resolutionSizes == null ? 1 : resolutionSizes.length;
+		}
+
+		/**
+		 * Gets the X and Y sizes of each resolution level, from full resolution
+		 * to the smallest level, or null for full resolution only.
+		 */
+		public int[][] getResolutionSizes() {
+			return resolutionSizes;
+		}
+
 		public void setName(final String name) {
 			this.name = name;
 		}
@@ -221,6 +362,74 @@ public class OMEROFormat extends AbstractFormat {
 			this.pixelsID = pixelsID;
 		}
 
+		public void setDatasetID(final long datasetID) {
+			this.datasetID = datasetID;
+		}
+
+		public void setPlateID(final long plateID) {
+			this.plateID = plateID;
+		}
+
+		/**
+		 * Sets the metadata of the images of this dataset or plate, one per image
+		 * index.
+		 */
+		public void setImages(final List<Metadata> images) {
+			this.images = images;
+			for (final Metadata image : images) {
+				image.setDecoding(decodedPixelType, nativeOrder);
+				image.setDerivation(projection, downsample);
+			}
+		}
+
+		/**
+		 * Sets how the server derives the planes of this image: the projection
+		 * along Z to compute (null for none), and the factor by which to
+		 * downsample X and Y (1 for none).
+		 */
+		public void setDerivation(final String projection, final int downsample)
+		{
+			final boolean changed =
+				downsample != this.downsample ||
+					(projection == null ? this.projection != null : !projection
+						.equals(this.projection));
+			this.projection = projection;
+			this.downsample = downsample;
+			if (images != null) {
+				for (final Metadata image : images) {
+					image.setDerivation(projection, downsample);
+				}
+			}
+			else if (changed && getImageCount() > 0) {
+				// NB: The dimensions changed; populate the image metadata anew.
+				createImageMetadata(0);
+				populateImageMetadata();
+			}
+		}
+
+		/**
+		 * Sets how the Reader decodes pixels: the pixel type to convert them to
+		 * (null to keep that as stored), and whether to return them in native
+		 * byte order rather than big-endian.
+		 */
+		public void setDecoding(final String pixelType, final boolean nativeOrder)
+		{
+			decodedPixelType = pixelType;
+			this.nativeOrder = nativeOrder;
+			if (images != null) {
+				for (final Metadata image : images) {
+					image.setDecoding(pixelType, nativeOrder);
+				}
+				return;
+			}
+			// NB: Update the image metadata, if already populated.
+			for (int i = 0; i < getImageCount(); i++) {
+				get(i).setPixelType(
+					FormatTools.pixelTypeFromString(getDecodedPixelType()));
+				get(i).setLittleEndian(isLittleEndian());
+			}
+		}
+
 		public void setSizeX(final int sizeX) {
 			this.sizeX = sizeX;
 		}
@@ -265,6 +474,10 @@ public class OMEROFormat extends AbstractFormat {
 			this.pixelType = pixelType;
 		}
 
+		public void setResolutionSizes(final int[][] resolutionSizes) {
+			this.resolutionSizes = resolutionSizes;
+		}
+
 		// -- io.scif.Metadata methods --
 
 		@Override
@@ -274,90 +487,338 @@ public class OMEROFormat extends AbstractFormat {
 			// metadata fields overwrite the values populated by the ImgSaver.
 			if (getImageCount() > 0) return; // already populated
 
-			// construct dimensional axes
-			final LinearAxis xAxis = new DefaultLinearAxis(Axes.X);
-			if (physSizeX != null) xAxis.setScale(physSizeX);
-			final LinearAxis yAxis = new DefaultLinearAxis(Axes.Y);
-			if (physSizeY != null) yAxis.setScale(physSizeY);
-			final LinearAxis zAxis = new DefaultLinearAxis(Axes.Z);
-			if (physSizeZ != null) zAxis.setScale(physSizeZ);
-			final LinearAxis cAxis = new DefaultLinearAxis(Axes.CHANNEL);
-			if (physSizeC != null) cAxis.setScale(physSizeC);
-			final LinearAxis tAxis = new DefaultLinearAxis(Axes.TIME);
-			if (physSizeT != null) tAxis.setScale(physSizeT);
-			final CalibratedAxis[] axes = { xAxis, yAxis, zAxis, cAxis, tAxis };
-			final long[] axisLengths = { sizeX, sizeY, sizeZ, sizeC, sizeT };
-
-			// obtain pixel type
-			final int pixType = FormatTools.pixelTypeFromString(pixelType);
-
-			// populate SCIFIO ImageMetadata
-			createImageMetadata(1);
-			final ImageMetadata imageMeta = get(0);
-			imageMeta.setAxes(axes, axisLengths);
-			imageMeta.setPixelType(pixType);
-			imageMeta.setMetadataComplete(true);
-			imageMeta.setOrderCertain(true);
+			if (images != null) {
+				// one image per OMERO image, at full resolution
+				for (final Metadata image : images) {
+					add(image.get(0));
+				}
+				planeIndices = createPlaneIndices();
+				return;
+			}
+
+			// obtain pixel type, as the Reader decodes it
+			final int pixType =
+				FormatTools.pixelTypeFromString(getDecodedPixelType());
+			final boolean littleEndian = isLittleEndian();
+
+			// NB: A derived image is a single plane per channel and timepoint, as
+			// projected, or downsampled by the server.
+			final int factor = getDownsample();
+			final int derivedX = (sizeX + factor - 1) / factor;
+			final int derivedY = (sizeY + factor - 1) / factor;
+			final int derivedZ = projection == null ? sizeZ : 1;
+
+			// populate SCIFIO ImageMetadata: one image per resolution level
+			final int levels = isDerived() ? 1 : getResolutionLevels();
+			createImageMetadata(levels);
+			for (int level = 0; level < levels; level++) {
+				// NB: The server decides the size of each pyramid level.
+				final int levelX = level == 0 ? derivedX : resolutionSizes[level][0];
+				final int levelY = level == 0 ? derivedY : resolutionSizes[level][1];
+				final double scaleX = level == 0 ? factor : (double) sizeX / levelX;
+				final double scaleY = level == 0 ? factor : (double) sizeY / levelY;
+
+				// construct dimensional axes
+				final LinearAxis xAxis = new DefaultLinearAxis(Axes.X);
+				if (physSizeX != null) xAxis.setScale(physSizeX * scaleX);
+				final LinearAxis yAxis = new DefaultLinearAxis(Axes.Y);
+				if (physSizeY != null) yAxis.setScale(physSizeY * scaleY);
+				final LinearAxis zAxis = new DefaultLinearAxis(Axes.Z);
+				if (physSizeZ != null) zAxis.setScale(physSizeZ);
+				final LinearAxis cAxis = new DefaultLinearAxis(Axes.CHANNEL);
+				if (physSizeC != null) cAxis.setScale(physSizeC);
+				final LinearAxis tAxis = new DefaultLinearAxis(Axes.TIME);
+				if (physSizeT != null) tAxis.setScale(physSizeT);
+				final CalibratedAxis[] axes = { xAxis, yAxis, zAxis, cAxis, tAxis };
+				final long[] axisLengths = { levelX, levelY, derivedZ, sizeC, sizeT };
+
+				final ImageMetadata imageMeta = get(level);
+				imageMeta.setAxes(axes, axisLengths);
+				imageMeta.setPixelType(pixType);
+				imageMeta.setLittleEndian(littleEndian);
+				imageMeta.setMetadataComplete(true);
+				imageMeta.setOrderCertain(true);
+			}
+			planeIndices = createPlaneIndices();
+		}
+
+		// -- Helper methods --
+
+		private PlaneIndex[] createPlaneIndices() {
+			final PlaneIndex[] indices = new PlaneIndex[getImageCount()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = new PlaneIndex(get(i));
+			}
+			return indices;
+		}
+
+		/** Gets whether the Reader returns pixels little-endian. */
+		private boolean isLittleEndian() {
+			return nativeOrder && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
 		}
 
 	}
 
 	public static class Parser extends AbstractParser<Metadata> {
 
+		/**
+		 * The largest plane width or height OMERO stores without a pyramid, by
+		 * default ({@code omero.pixeldata.max_plane_width} and {@code _height}).
+		 */
+		private static final int MAX_PLANE_SIZE = 3192;
+
 		@Parameter
 		private MetadataService metadataService;
 
+		@Parameter
+		private OMEROSessionService sessionService;
+
+		@Parameter
+		private OMEROCacheService cacheService;
+
 		@Override
 		public void typedParse(final RandomAccessInputStream stream,
 			final Metadata meta, final SCIFIOConfig config) throws IOException,
 			FormatException
 		{
 			// parse OMERO credentials from source string
-			parseArguments(metadataService, stream.getFileName(), meta);
+			locate(metadataService, stream.getFileName(), meta);
+
+			// decode pixels as configured
+			final String pixelType = OMEROConfig.getPixelType(config);
+			if (pixelType != null) {
+				try {
+					if (FormatTools.pixelTypeFromString(pixelType) == FormatTools.BIT) {
+						throw new FormatException("Cannot convert pixels to bits");
+					}
+				}
+				catch (final IllegalArgumentException exc) {
+					throw new FormatException("Unknown pixel type: " + pixelType, exc);
+				}
+			}
+			meta.setDecoding(pixelType, OMEROConfig.isNativeOrder(config));
+
+			// derive the image on the server, as requested
+			final String projection =
+				meta.getProjection() != null ? meta.getProjection() : OMEROConfig
+					.getProjection(config);
+			final int downsample =
+				meta.getDownsample() > 1 ? meta.getDownsample() : OMEROConfig
+					.getDownsample(config);
+			if (projection != null &&
+				OMEROSession.getProjectionType(projection) == null)
+			{
+				throw new FormatException("Unknown projection: " + projection);
+			}
+			if (projection != null && downsample > 1) {
+				throw new FormatException("Cannot both project and downsample");
+			}
+			meta.setDerivation(projection, downsample);
+
+			// NB: A dataset or plate needs just one query for all its images.
+			if (meta.isContainer()) {
+				final List<Metadata> images =
+					meta.getDatasetID() != 0 ? parseDataset(meta.getCredentials(), meta
+						.getDatasetID()) : parsePlate(meta.getCredentials(), meta
+						.getPlateID());
+				if (images.isEmpty()) {
+					throw new FormatException("No images in " + stream.getFileName());
+				}
+				meta.setImages(images);
+				return;
+			}
+
+			// use the cached descriptor, if known to be current
+			final MetadataCache cache =
+				OMEROConfig.isMetadataCacheEnabled(config) ? cacheService
+					.getMetadataCache() : null;
+			MetadataCache.Entry entry = cached(cache, meta);
+			if (entry != null && !entry.isExpired(cache.getTimeToLive())) {
+				entry.populate(meta);
+				return;
+			}
+
+			// obtain OMERO session
+			// NB: The session remains pooled after release, for use by the Reader.
+			final OMEROSession session =
+				createSession(sessionService, meta.getCredentials());
+			try {
+				if (entry != null && entry.getUpdateEvent() != 0 &&
+					entry.getUpdateEvent() == session.getUpdateEvent(entry.getPixelsID()))
+				{
+					// NB: The pixels are unchanged since they were cached.
+					entry.validate();
+				}
+				else {
+					final Pixels pix = session.getPixelsInfo(meta);
+					// NB: Remember the pixels ID, in case only the image ID was given.
+					meta.setPixelsID(pix.getId().getValue());
+					entry =
+						new MetadataCache.Entry(pix, resolutionSizes(session, pix));
+					if (cache != null && meta.getImageID() != 0) {
+						cache.putPixelsID(meta.getCredentials(), meta.getImageID(), entry
+							.getPixelsID());
+					}
+				}
+				if (cache != null) cache.put(meta.getCredentials(), entry);
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			finally {
+				sessionService.release(session);
+			}
+
+			entry.populate(meta);
+		}
+
+		/**
+		 * Parses the metadata of the given images at once, with a single query
+		 * for all their pixels descriptors. The resulting metadata can be handed
+		 * to a Reader directly, and are in the order of the given image IDs.
+		 *
+		 * @throws FormatException if any image does not exist, or is not
+		 *           accessible.
+		 */
+		public List<Metadata> parseImages(final OMEROCredentials credentials,
+			final long... imageIDs) throws FormatException
+		{
+			final OMEROSession session = createSession(sessionService, credentials);
+			try {
+				return toMetadata(credentials, session, session
+					.getPixelsInfo(imageIDs));
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			finally {
+				sessionService.release(session);
+			}
+		}
 
-			// initialize OMERO session
-			final OMEROSession session;
-			final Pixels pix;
+		/**
+		 * Parses the metadata of all images in the given dataset, with a single
+		 * query for all their pixels descriptors.
+		 */
+		public List<Metadata> parseDataset(final OMEROCredentials credentials,
+			final long datasetID) throws FormatException
+		{
+			final OMEROSession session = createSession(sessionService, credentials);
 			try {
-				session = createSession(meta);
-				pix = session.getPixelsInfo(meta);
+				return toMetadata(credentials, session, session
+					.getDatasetPixelsInfo(datasetID));
 			}
 			catch (final ServerError err) {
 				throw communicationException(err);
 			}
+			finally {
+				sessionService.release(session);
+			}
+		}
 
-			// parse pixel sizes
-			meta.setSizeX(pix.getSizeX().getValue());
-			meta.setSizeY(pix.getSizeY().getValue());
-			meta.setSizeZ(pix.getSizeZ().getValue());
-			meta.setSizeC(pix.getSizeC().getValue());
-			meta.setSizeT(pix.getSizeT().getValue());
+		/**
+		 * Parses the metadata of all images in the given plate, with a single
+		 * query for all their pixels descriptors.
+		 */
+		public List<Metadata> parsePlate(final OMEROCredentials credentials,
+			final long plateID) throws FormatException
+		{
+			final OMEROSession session = createSession(sessionService, credentials);
+			try {
+				return toMetadata(credentials, session, session
+					.getPlatePixelsInfo(plateID));
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			finally {
+				sessionService.release(session);
+			}
+		}
 
-			// parse physical pixel sizes
-			final RDouble physSizeX = pix.getPhysicalSizeX();
-			if (physSizeX != null) meta.setPhysicalSizeX(physSizeX.getValue());
-			final RDouble physSizeY = pix.getPhysicalSizeY();
-			if (physSizeY != null) meta.setPhysicalSizeY(physSizeY.getValue());
-			final RDouble physSizeZ = pix.getPhysicalSizeZ();
-			if (physSizeZ != null) meta.setPhysicalSizeZ(physSizeZ.getValue());
-			final RInt physSizeC = pix.getWaveIncrement();
-			if (physSizeC != null) meta.setPhysicalSizeC(physSizeC.getValue());
-			final RDouble physSizeT = pix.getTimeIncrement();
-			if (physSizeT != null) meta.setPhysicalSizeT(physSizeT.getValue());
+		/** Looks up the cached descriptor of the pixels to be parsed. */
+		private MetadataCache.Entry cached(final MetadataCache cache,
+			final Metadata meta)
+		{
+			if (cache == null) return null;
+			long pixelsID = meta.getPixelsID();
+			if (pixelsID == 0 && meta.getImageID() != 0) {
+				pixelsID = cache.getPixelsID(meta.getCredentials(), meta.getImageID());
+			}
+			return pixelsID == 0 ? null : cache.get(meta.getCredentials(), pixelsID);
+		}
 
-			// parse pixel type
-			meta.setPixelType(pix.getPixelsType().getValue().getValue());
+		/**
+		 * Converts the given pixels descriptors, with their images loaded, to
+		 * populated metadata, caching them along the way.
+		 */
+		private List<Metadata> toMetadata(final OMEROCredentials credentials,
+			final OMEROSession session, final List<Pixels> pixels)
+			throws ServerError, FormatException
+		{
+			final List<MetadataCache.Entry> entries =
+				new ArrayList<MetadataCache.Entry>(pixels.size());
+			final long[] imageIDs = new long[pixels.size()];
+			final List<Metadata> result = new ArrayList<Metadata>(pixels.size());
+			for (final Pixels pix : pixels) {
+				final MetadataCache.Entry entry =
+					new MetadataCache.Entry(pix, resolutionSizes(session, pix));
+
+				final Image image = pix.getImage();
+				final Metadata meta = (Metadata) getFormat().createMetadata();
+				meta.setCredentials(credentials);
+				meta.setImageID(image.getId().getValue());
+				if (image.getName() != null) meta.setName(image.getName().getValue());
+				entry.populate(meta);
+				meta.populateImageMetadata();
+
+				imageIDs[result.size()] = meta.getImageID();
+				entries.add(entry);
+				result.add(meta);
+			}
+			cacheService.getMetadataCache().putAll(credentials, entries, imageIDs);
+			return result;
+		}
 
-			// terminate OMERO session
-			session.close();
+		/**
+		 * Gets the X and Y sizes of each pyramid resolution level of the given
+		 * pixels. Only large planes can have a pyramid, so the others are spared
+		 * the round trips of opening a raw pixels store.
+		 */
+		private static int[][] resolutionSizes(final OMEROSession session,
+			final Pixels pix) throws ServerError
+		{
+			final int sizeX = pix.getSizeX().getValue();
+			final int sizeY = pix.getSizeY().getValue();
+			if (sizeX <= MAX_PLANE_SIZE && sizeY <= MAX_PLANE_SIZE) {
+				return new int[][] { { sizeX, sizeY } };
+			}
+			return session.getResolutionSizes(pix.getId().getValue());
 		}
 
 	}
 
 	public static class Reader extends ByteArrayReader<Metadata> {
 
-		private OMEROSession session;
-		private RawPixelsStorePrx store;
+		@Parameter
+		private OMEROSessionService sessionService;
+
+		@Parameter
+		private OMEROCacheService cacheService;
+
+		@Parameter
+		private OMEROMetricsService metricsService;
+
+		// NB: Reads may come from many threads at once. Each checks out a raw
+		// pixels store of its own from the pool, for the duration of the read.
+		private volatile OMEROSession session;
+		private volatile PixelsStorePool pool;
+
+		/** The server's native tile size, or null if not yet known. */
+		private volatile int[] tileSize;
+
+		/** The pixel decoder of each image, created on first use. */
+		private volatile PixelDecoder[] decoders;
 
 		@Override
 		public ByteArrayPlane openPlane(final int imageIndex,
@@ -365,31 +826,188 @@ public class OMEROFormat extends AbstractFormat {
 			final long[] planeMax, final SCIFIOConfig config) throws FormatException,
 			IOException
 		{
-			// TODO: Consider whether to reuse OMERO session from the parsing step.
-			if (session == null) initSession();
+			final int bpp =
+				FormatTools.getBytesPerPixel(getMetadata().get(imageIndex)
+					.getPixelType());
+			final int len = (int) (planeMax[0] * planeMax[1] * bpp);
+			// NB: Reuse the plane's buffer when it fits, e.g. from a PlanePool.
+			final byte[] current = plane.getData();
+			final byte[] data =
+				current != null && current.length == len ? current : new byte[len];
+			read(imageIndex, planeIndex, planeMin, planeMax, data, config);
+			plane.setData(data);
+			return plane;
+		}
+
+		/**
+		 * Reads the given region of a plane as a read-only buffer. Where the
+		 * region is a single native tile held by the tile cache, the buffer is a
+		 * view of the cached tile, and nothing is copied, unless the pixels are
+		 * decoded to another byte order or pixel type.
+		 */
+		public ByteBuffer openPlaneView(final int imageIndex,
+			final long planeIndex, final long[] planeMin, final long[] planeMax,
+			final SCIFIOConfig config) throws FormatException
+		{
+			return read(imageIndex, planeIndex, planeMin, planeMax, null, config);
+		}
+
+		/**
+		 * Reads a region spanning any of the X, Y, Z, C and T axes. Offsets and
+		 * sizes are given, and pixels returned, in XYZCT order (X varying
+		 * fastest), regardless of the dimension order of the metadata.
+		 * <p>
+		 * The region is fetched with {@code getHypercube}, split into as few
+		 * requests as the configured stack budget allows.
+		 * </p>
+		 *
+		 * @see OMEROConfig#getStackBudget(SCIFIOConfig)
+		 */
+		public byte[] openHypercube(final int imageIndex, final long[] offsets,
+			final long[] sizes, final SCIFIOConfig config) throws FormatException
+		{
+			final ImageMetadata imageMeta = getMetadata().get(imageIndex);
+			final AxisType[] axes =
+				{ Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME };
+			if (offsets.length != axes.length || sizes.length != axes.length) {
+				throw new FormatException("Hypercube needs XYZCT offsets and sizes");
+			}
+			final int bpp = rawBytesPerPixel(imageIndex);
+			final PixelDecoder decoder = decoder(imageIndex);
+			long count = 1;
+			for (int i = 0; i < axes.length; i++) {
+				final long length = Math.max(imageMeta.getAxisLength(axes[i]), 1);
+				if (offsets[i] < 0 || sizes[i] < 1 || offsets[i] + sizes[i] > length)
+				{
+					throw new FormatException("Invalid hypercube: " + axes[i] +
+						" offset=" + offsets[i] + ", size=" + sizes[i]);
+				}
+				count *= sizes[i];
+			}
+			// NB: Check the size of the pixels both as stored and as decoded.
+			final long total =
+				count *
+					(decoder == null ? bpp : Math.max(bpp, decoder
+						.getTargetBytesPerPixel()));
+			if (total > Integer.MAX_VALUE) {
+				throw new FormatException("Hypercube too large: " + total + " bytes");
+			}
+			final byte[] data = new byte[(int) count * bpp];
 
-			final int[] zct = zct(imageIndex, planeIndex, getMetadata());
+			final Metadata image = getMetadata().getImage(imageIndex);
+			if (image.isDerived()) {
+				readDerivedPlanes(imageIndex, offsets, sizes, bpp, data, config);
+			}
+			// NB: Pyramidal pixels cannot serve hypercubes; assemble from tiles.
+			else if (image.getResolutionLevels() > 1) {
+				readPlanes(imageIndex, offsets, sizes, bpp, data, config);
+			}
+			else readHypercube(imageIndex, offsets, sizes, bpp, data, config);
+
+			if (decoder == null) return data;
+			final byte[] decoded =
+				decoder.isInPlace() ? data : new byte[(int) count *
+					decoder.getTargetBytesPerPixel()];
+			decoder.decode(ByteBuffer.wrap(data), ByteBuffer.wrap(decoded),
+				(int) count);
+			return decoded;
+		}
+
+		/**
+		 * Creates a reader of the given image as lazily loaded cells, cached in
+		 * the shared cell cache.
+		 */
+		public CellReader createCellReader(final int imageIndex,
+			final SCIFIOConfig config)
+		{
+			return new CellReader(this, imageIndex, cacheService.getCellCache(),
+				config);
+		}
+
+		/**
+		 * Creates an ImgLib2 view of the given image as lazily loaded cells,
+		 * cached in the shared cell cache.
+		 */
+		public CellReaderView<?> createCellView(final int imageIndex,
+			final SCIFIOConfig config)
+		{
+			return CellReaderView.create(createCellReader(imageIndex, config));
+		}
+
+		/**
+		 * Creates a fetcher which reads this Reader's pixels over the given number
+		 * of additional connections, for bulk export.
+		 *
+		 * @see #getPlaneTiles(int, long)
+		 */
+		public ParallelPlaneFetcher createFetcher(final int connections,
+			final int capacity) throws FormatException
+		{
+			for (int i = 0; i < getMetadata().getImageCount(); i++) {
+				if (getMetadata().getImage(i).isDerived()) {
+					throw new FormatException(
+						"Derived images cannot be fetched in bulk");
+				}
+			}
+			final OMEROSession current = pool().getSession();
 			try {
-				// FIXME: Check before array access, and before casting.
-				final int x = (int) planeMin[0];
-				final int y = (int) planeMin[1];
-				final int w = (int) (planeMax[0] - planeMin[0]);
-				final int h = (int) (planeMax[1] - planeMin[1]);
-				final byte[] tile = store.getTile(zct[0], zct[1], zct[2], x, y, w, h);
-				plane.setData(tile);
+				return new ParallelPlaneFetcher(Collections.singletonList(current),
+					getMetadata(), connections, capacity);
 			}
 			catch (final ServerError err) {
 				throw communicationException(err);
 			}
+		}
 
-			return plane;
+		/** Gets the native tiles which make up the given plane. */
+		public List<TileCache.Key> getPlaneTiles(final int imageIndex,
+			final long planeIndex)
+		{
+			final ImageMetadata imageMeta = getMetadata().get(imageIndex);
+			final PlaneIndex index = getMetadata().getPlaneIndex(imageIndex);
+			return tiles(null, imageIndex, index.getZ(planeIndex), index
+				.getC(planeIndex), index.getT(planeIndex), 0, 0, (int) imageMeta
+				.getAxisLength(Axes.X), (int) imageMeta.getAxisLength(Axes.Y), null);
+		}
+
+		@Override
+		public long getOptimalTileWidth(final int imageIndex) {
+			// NB: The server derives whole planes at once.
+			if (getMetadata().getImage(imageIndex).isDerived()) {
+				return getMetadata().get(imageIndex).getAxisLength(Axes.X);
+			}
+			final int[] size = tileSize();
+			if (size == null) return super.getOptimalTileWidth(imageIndex);
+			return Math.min(size[0], getMetadata().get(imageIndex).getAxisLength(
+				Axes.X));
+		}
+
+		@Override
+		public long getOptimalTileHeight(final int imageIndex) {
+			if (getMetadata().getImage(imageIndex).isDerived()) {
+				return getMetadata().get(imageIndex).getAxisLength(Axes.Y);
+			}
+			final int[] size = tileSize();
+			if (size == null) return super.getOptimalTileHeight(imageIndex);
+			return Math.min(size[1], getMetadata().get(imageIndex).getAxisLength(
+				Axes.Y));
 		}
 
 		@Override
 		public void close() {
-			if (session != null) session.close();
-			session = null;
-			store = null;
+			final PixelsStorePool oldPool;
+			final OMEROSession oldSession;
+			synchronized (this) {
+				oldPool = pool;
+				oldSession = session;
+				pool = null;
+				session = null;
+				tileSize = null;
+				decoders = null;
+			}
+			// NB: Waits for reads in progress to release their stores.
+			if (oldPool != null) oldPool.close();
+			if (oldSession != null) sessionService.release(oldSession);
 		}
 
 		@Override
@@ -398,137 +1016,1024 @@ public class OMEROFormat extends AbstractFormat {
 			return new String[] { FormatTools.LM_DOMAIN };
 		}
 
-		private void initSession() throws FormatException {
+		/**
+		 * Reads the given region of a plane into the given buffer, or into a new
+		 * one if null, returning a read-only view of it. Given no buffer, a
+		 * region which is a single native tile is not copied at all, unless its
+		 * pixels must be decoded.
+		 */
+		private ByteBuffer read(final int imageIndex, final long planeIndex,
+			final long[] planeMin, final long[] planeMax, final byte[] buffer,
+			final SCIFIOConfig config) throws FormatException
+		{
+			final PlaneIndex index = getMetadata().getPlaneIndex(imageIndex);
+			final int z = index.getZ(planeIndex);
+			final int c = index.getC(planeIndex);
+			final int t = index.getT(planeIndex);
+			final int[] region =
+				region(getMetadata().get(imageIndex), planeMin, planeMax);
+			final int x = region[0], y = region[1], w = region[2], h = region[3];
+
+			final PixelDecoder decoder = decoder(imageIndex);
+			if (decoder == null) {
+				return read(imageIndex, z, c, t, x, y, w, h, buffer, config);
+			}
+			// NB: Pixels of unchanged size are decoded in the buffer they fill.
+			final ByteBuffer pixels =
+				read(imageIndex, z, c, t, x, y, w, h, decoder.isInPlace() ? buffer
+					: null, config);
+			return decode(decoder, pixels, w * h, buffer);
+		}
+
+		/**
+		 * Reads the given region of a plane as stored, into the given buffer or
+		 * into a new one if null, returning a read-only view of it.
+		 */
+		private ByteBuffer read(final int imageIndex, final int z, final int c,
+			final int t, final int x, final int y, final int w, final int h,
+			final byte[] buffer, final SCIFIOConfig config) throws FormatException
+		{
+			if (getMetadata().getImage(imageIndex).isDerived()) {
+				return derive(imageIndex, z, c, t, x, y, w, h, buffer, config);
+			}
+			final PixelsStorePool storePool = pool();
+			final PixelsStorePool.Connection connection = acquire(storePool, config);
+			try {
+				final ByteBuffer streamed =
+					stream(connection, imageIndex, z, c, t, x, y, w, h, config);
+				if (streamed != null) {
+					metricsService.getMetrics().planeRead(streamed.remaining());
+					if (buffer == null) return streamed;
+					streamed.get(buffer);
+					return ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+				}
+
+				final TileCache cache =
+					OMEROConfig.isTileCacheEnabled(config) ? cacheService
+						.getTileCache() : null;
+				final List<TileCache.Key> keys =
+					tiles(connection, imageIndex, z, c, t, x, y, w, h, config);
+				final DiskMirror.MirrorFile mirrored =
+					mirror(connection, imageIndex, config);
+
+				final ByteBuffer result;
+				if (buffer == null && keys.size() == 1 &&
+					matches(keys.get(0), x, y, w, h))
+				{
+					result =
+						fetch(connection, imageIndex, keys.get(0), cache, mirrored);
+				}
+				else {
+					// assemble the requested region from the native tiles
+					final int bpp = rawBytesPerPixel(imageIndex);
+					final byte[] data = buffer == null ? new byte[w * h * bpp] : buffer;
+					for (final TileCache.Key key : keys) {
+						copy(fetch(connection, imageIndex, key, cache, mirrored), key, data,
+							x, y, w, h, bpp);
+					}
+					result = ByteBuffer.wrap(data).asReadOnlyBuffer();
+				}
+				metricsService.getMetrics().planeRead(result.remaining());
+
+				prefetch(connection, imageIndex, keys, cache, config);
+
+				return result;
+			}
+			finally {
+				storePool.release(connection);
+			}
+		}
+
+		/**
+		 * Reads a full plane from a whole stack, if stack streaming is enabled
+		 * and access is sequential.
+		 *
+		 * @return The plane, or null if it should be read tile by tile.
+		 */
+		private ByteBuffer stream(final PixelsStorePool.Connection connection,
+			final int imageIndex, final int z, final int c, final int t,
+			final int x, final int y, final int w, final int h,
+			final SCIFIOConfig config) throws FormatException
+		{
+			if (!OMEROConfig.isStackStreamingEnabled(config)) return null;
+			final Metadata image = getMetadata().getImage(imageIndex);
+			// NB: Stacks are only available at full resolution.
+			if (image.getResolutionLevels() > 1) return null;
+			if (x != 0 || y != 0 || w != image.getSizeX() || h != image.getSizeY()) {
+				return null;
+			}
+			final int[] sizes =
+				{ image.getSizeX(), image.getSizeY(), image.getSizeZ(),
+					image.getSizeC(), image.getSizeT() };
+			final int bpp = rawBytesPerPixel(imageIndex);
 			try {
-				session = createSession(getMetadata());
-				store = session.openPixels(getMetadata());
+				select(connection, imageIndex);
+				return connection.getStreamer().read(image.getPixelsID(), z, c, t,
+					sizes, bpp, OMEROConfig.getStackBudget(config));
 			}
 			catch (final ServerError err) {
 				throw communicationException(err);
 			}
 		}
 
+		/**
+		 * Reads the given region of a plane of a derived image, as computed by
+		 * the server: a projection along Z, or a downsampled plane. Only the
+		 * derived pixels are transferred; they are not cached.
+		 */
+		private ByteBuffer derive(final int imageIndex, final int z,
+			final int c, final int t, final int x, final int y, final int w,
+			final int h, final byte[] buffer, final SCIFIOConfig config)
+			throws FormatException
+		{
+			final Metadata image = getMetadata().getImage(imageIndex);
+			final int bpp = rawBytesPerPixel(imageIndex);
+			final byte[] data = buffer == null ? new byte[w * h * bpp] : buffer;
+			final PixelsStorePool storePool = pool();
+			final OMEROMetrics metrics = metricsService.getMetrics();
+			// NB: A checked out store keeps its session open, even if the Reader
+			// is closed meanwhile.
+			final PixelsStorePool.Connection connection = acquire(storePool, config);
+			try {
+				if (image.getProjection() != null) {
+					final long start = metrics.start();
+					final byte[] plane =
+						connection.getSession().projectStack(image.getPixelsID(),
+							image.getPixelType(),
+							OMEROSession.getProjectionType(image.getProjection()), c, t, 0,
+							image.getSizeZ() - 1);
+					metrics.tileRead(start);
+					final int length = image.getSizeX() * image.getSizeY() * bpp;
+					if (plane == null || plane.length < length) {
+						throw new FormatException("Short projection from OMERO: " +
+							(plane == null ? 0 : plane.length) + " of " + length +
+							" bytes");
+					}
+					final TileCache.Key key =
+						new TileCache.Key(server(), image.getPixelsID(), z, c, t, 0, 0,
+							image.getSizeX(), image.getSizeY());
+					copy(ByteBuffer.wrap(plane), key, data, x, y, w, h, bpp);
+				}
+				else {
+					// NB: Pyramidal pixels cannot serve hypercubes.
+					if (image.getResolutionLevels() > 1) {
+						throw new FormatException("Cannot downsample pyramidal pixels; " +
+							"read their resolution levels instead");
+					}
+					// sample every n-th pixel of the region at full resolution
+					final int n = image.getDownsample();
+					final List<Integer> offset = Arrays.asList(x * n, y * n, z, c, t);
+					final List<Integer> size =
+						Arrays.asList(Math.min(w * n, image.getSizeX() - x * n), Math.min(
+							h * n, image.getSizeY() - y * n), 1, 1, 1);
+					final List<Integer> step = Arrays.asList(n, n, 1, 1, 1);
+					select(connection, imageIndex);
+					final long start = metrics.start();
+					final byte[] plane =
+						connection.getStore().getHypercube(offset, size, step);
+					metrics.tileRead(start);
+					final int length = w * h * bpp;
+					if (plane == null || plane.length < length) {
+						throw new FormatException("Short hypercube from OMERO: " +
+							(plane == null ? 0 : plane.length) + " of " + length +
+							" bytes");
+					}
+					System.arraycopy(plane, 0, data, 0, Math.min(plane.length,
+						data.length));
+				}
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			finally {
+				storePool.release(connection);
+			}
+			metrics.planeRead(w * h * bpp);
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+		/** Gets the bytes per pixel of the given image, as stored. */
+		private int rawBytesPerPixel(final int imageIndex) {
+			return FormatTools.getBytesPerPixel(FormatTools
+				.pixelTypeFromString(getMetadata().getImage(imageIndex)
+					.getPixelType()));
+		}
+
+		/**
+		 * Gets the decoder of the given image's pixels, or null if they are
+		 * returned as stored.
+		 */
+		private PixelDecoder decoder(final int imageIndex)
+			throws FormatException
+		{
+			PixelDecoder[] cached = decoders;
+			if (cached == null) {
+				cached = new PixelDecoder[getMetadata().getImageCount()];
+				decoders = cached;
+			}
+			PixelDecoder decoder = cached[imageIndex];
+			if (decoder == null) {
+				final Metadata image = getMetadata().getImage(imageIndex);
+				final ByteOrder order =
+					image.isNativeOrder() ? ByteOrder.nativeOrder()
+						: ByteOrder.BIG_ENDIAN;
+				try {
+					decoder =
+						new PixelDecoder(FormatTools.pixelTypeFromString(image
+							.getPixelType()), FormatTools.pixelTypeFromString(image
+							.getDecodedPixelType()), order);
+				}
+				catch (final IllegalArgumentException exc) {
+					throw new FormatException(exc.getMessage(), exc);
+				}
+				// NB: Decoders keep their chunk arrays for reuse. Racing threads
+				// at worst create one twice.
+				cached[imageIndex] = decoder;
+			}
+			return decoder.isIdentity() ? null : decoder;
+		}
+
+		/**
+		 * Decodes the given pixels into the given buffer, or into a new one if
+		 * null, returning a read-only view of it. The pixels may be a view of the
+		 * buffer itself, if decoding does not change their size.
+		 */
+		private static ByteBuffer decode(final PixelDecoder decoder,
+			final ByteBuffer pixels, final int count, final byte[] buffer)
+		{
+			final byte[] data =
+				buffer == null ? new byte[count * decoder.getTargetBytesPerPixel()]
+					: buffer;
+			decoder.decode(pixels.duplicate(), ByteBuffer.wrap(data), count);
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+		/** Gets the pool of raw pixels stores, logging in if needed. */
+		private PixelsStorePool pool() throws FormatException {
+			final PixelsStorePool current = pool;
+			if (current != null) return current;
+			synchronized (this) {
+				if (pool == null) {
+					final OMEROSession newSession =
+						createSession(sessionService, getMetadata().getCredentials());
+					session = newSession;
+					pool = new PixelsStorePool(newSession, getMetadata());
+					if (getMetadata().getCredentials().isCompressed()) {
+						checkCompression(log());
+					}
+				}
+				return pool;
+			}
+		}
+
+		/**
+		 * Checks out a raw pixels store from the given pool, compressed if so
+		 * configured.
+		 *
+		 * @throws FormatException if the pool was closed meanwhile.
+		 */
+		private PixelsStorePool.Connection acquire(final PixelsStorePool storePool,
+			final SCIFIOConfig config) throws FormatException
+		{
+			final PixelsStorePool.Connection connection;
+			try {
+				connection = storePool.acquire(OMEROConfig.getConnections(config));
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new FormatException("Interrupted while waiting for OMERO", exc);
+			}
+			catch (final IllegalStateException exc) {
+				// NB: The pool was closed along with the Reader.
+				throw new FormatException("Reader is closed", exc);
+			}
+			if (OMEROConfig.isCompressionEnabled(config)) {
+				checkCompression(log());
+				connection.compress();
+			}
+			return connection;
+		}
+
+		/**
+		 * Switches the given store to the pixels and pyramid level of the given
+		 * image index.
+		 */
+		private void select(final PixelsStorePool.Connection connection,
+			final int imageIndex) throws ServerError
+		{
+			final Metadata image = getMetadata().getImage(imageIndex);
+			connection.select(image.getPixelsID(), getMetadata()
+				.getLevel(imageIndex), image.getResolutionLevels());
+		}
+
+		/** Gets the server of this Reader's pixels, as identified in caches. */
+		private String server() {
+			return TileCache.server(getMetadata().getCredentials());
+		}
+
+		/** Gets the server's native tile size, querying it if needed. */
+		private int[] tileSize() {
+			if (tileSize != null) return tileSize;
+			try {
+				final PixelsStorePool storePool = pool();
+				final PixelsStorePool.Connection connection =
+					acquire(storePool, null);
+				try {
+					return tileSize(connection);
+				}
+				finally {
+					storePool.release(connection);
+				}
+			}
+			catch (final FormatException exc) {
+				log().debug("Cannot query OMERO tile size", exc);
+			}
+			return tileSize;
+		}
+
+		/**
+		 * Gets the server's native tile size, querying it over the given store
+		 * if needed.
+		 */
+		private int[] tileSize(final PixelsStorePool.Connection connection) {
+			if (tileSize != null) return tileSize;
+			// NB: Never check out a second store while holding one.
+			if (connection == null) return tileSize();
+			try {
+				final int[] size = connection.getStore().getTileSize();
+				if (size != null && size.length >= 2 && size[0] > 0 && size[1] > 0) {
+					tileSize = size;
+				}
+			}
+			catch (final ServerError err) {
+				log().debug("Cannot query OMERO tile size", err);
+			}
+			return tileSize;
+		}
+
+		/**
+		 * Gets the local mirror of the given image, if so configured, opening and
+		 * validating it against the update event of its pixels if needed.
+		 *
+		 * @return The mirror file, or null if tiles are not to be mirrored.
+		 */
+		private DiskMirror.MirrorFile mirror(
+			final PixelsStorePool.Connection connection, final int imageIndex,
+			final SCIFIOConfig config)
+		{
+			if (!OMEROConfig.isDiskMirrorEnabled(config)) return null;
+			final DiskMirror mirror = cacheService.getDiskMirror();
+			final OMEROCredentials credentials = getMetadata().getCredentials();
+			final Metadata image = getMetadata().getImage(imageIndex);
+			final int imageLevel = getMetadata().getLevel(imageIndex);
+			final DiskMirror.MirrorFile mirrored =
+				mirror.get(credentials, image.getPixelsID(), imageLevel);
+			if (mirrored != null) return mirrored;
+
+			final ImageMetadata imageMeta = getMetadata().get(imageIndex);
+			final int[] sizes =
+				{ (int) imageMeta.getAxisLength(Axes.X),
+					(int) imageMeta.getAxisLength(Axes.Y), image.getSizeZ(),
+					image.getSizeC(), image.getSizeT() };
+			final int[] size = tileSize(connection);
+			final int[] tile = size == null ? new int[] { sizes[0], sizes[1] } : size;
+			final int bpp = rawBytesPerPixel(imageIndex);
+			try {
+				final long updateEvent =
+					connection.getSession().getUpdateEvent(image.getPixelsID());
+				// NB: Without an update event, the mirror cannot be validated.
+				if (updateEvent == 0) return null;
+				return mirror.open(credentials, image.getPixelsID(), imageLevel,
+					updateEvent, sizes, tile, bpp);
+			}
+			catch (final ServerError err) {
+				log().debug("Cannot validate local mirror", err);
+			}
+			catch (final IOException exc) {
+				log().debug("Cannot open local mirror", exc);
+			}
+			return null;
+		}
+
+		/**
+		 * Computes the tiles to fetch for the given region: the native tiles of
+		 * the server which overlap it, or the region itself if tile alignment is
+		 * disabled.
+		 */
+		private List<TileCache.Key> tiles(
+			final PixelsStorePool.Connection connection, final int imageIndex,
+			final int z, final int c, final int t, final int x, final int y,
+			final int w, final int h, final SCIFIOConfig config)
+		{
+			final String server = server();
+			final long imagePixelsID =
+				getMetadata().getImage(imageIndex).getPixelsID();
+			final int imageLevel = getMetadata().getLevel(imageIndex);
+			final int[] size =
+				OMEROConfig.isTileAlignmentEnabled(config) ? tileSize(connection)
+					: null;
+			if (size == null) {
+				return Collections.singletonList(new TileCache.Key(server,
+					imagePixelsID, imageLevel, z, c, t, x, y, w, h));
+			}
+			final ImageMetadata imageMeta = getMetadata().get(imageIndex);
+			final int sizeX = (int) imageMeta.getAxisLength(Axes.X);
+			final int sizeY = (int) imageMeta.getAxisLength(Axes.Y);
+			final int tw = size[0], th = size[1];
+			final List<TileCache.Key> keys = new ArrayList<TileCache.Key>();
+			for (int ty = y / th * th; ty < y + h; ty += th) {
+				for (int tx = x / tw * tw; tx < x + w; tx += tw) {
+					keys.add(new TileCache.Key(server, imagePixelsID, imageLevel, z, c,
+						t, tx, ty, Math.min(tw, sizeX - tx), Math.min(th, sizeY - ty)));
+				}
+			}
+			return keys;
+		}
+
+		/**
+		 * Obtains a read-only view of a tile from the cache, the local mirror, the
+		 * read-ahead buffer or the server.
+		 */
+		private ByteBuffer fetch(final PixelsStorePool.Connection connection,
+			final int imageIndex, final TileCache.Key key, final TileCache cache,
+			final DiskMirror.MirrorFile mirrored) throws FormatException
+		{
+			final ByteBuffer cached = cache == null ? null : cache.view(key);
+			if (cached != null) return cached;
+			// NB: Mirrored tiles are mapped from disk; no need to cache them too.
+			final ByteBuffer local = mirrored == null ? null : mirrored.read(key);
+			if (local != null) return local;
+			byte[] tile = connection.take(key);
+			if (tile == null) {
+				final OMEROMetrics metrics = metricsService.getMetrics();
+				try {
+					select(connection, imageIndex);
+					final long start = metrics.start();
+					tile =
+						connection.getStore().getTile(key.getZ(), key.getC(), key.getT(), key.getX(), key
+							.getY(), key.getW(), key.getH());
+					metrics.tileRead(start);
+				}
+				catch (final ServerError err) {
+					throw communicationException(err);
+				}
+			}
+			// NB: The tile is only ever read from, so the cache can keep it as is.
+			if (cache != null) cache.adopt(key, tile);
+			if (mirrored != null) mirrored.write(key, tile);
+			return ByteBuffer.wrap(tile).asReadOnlyBuffer();
+		}
+
+		/**
+		 * Reads a hypercube as stored, with {@code getHypercube} calls within the
+		 * configured stack budget.
+		 */
+		private void readHypercube(final int imageIndex, final long[] offsets,
+			final long[] sizes, final int bpp, final byte[] data,
+			final SCIFIOConfig config) throws FormatException
+		{
+			final int[] chunk =
+				chunk(sizes, bpp, OMEROConfig.getStackBudget(config));
+			final List<Integer> step = Arrays.asList(1, 1, 1, 1, 1);
+			final int[] pos = new int[5];
+			final PixelsStorePool storePool = pool();
+			final PixelsStorePool.Connection connection = acquire(storePool, config);
+			try {
+				select(connection, imageIndex);
+				while (true) {
+					final List<Integer> offset = new ArrayList<Integer>(5);
+					final List<Integer> size = new ArrayList<Integer>(5);
+					long index = 0, stride = 1;
+					for (int i = 0; i < 5; i++) {
+						offset.add((int) offsets[i] + pos[i]);
+						size.add((int) Math.min(chunk[i], sizes[i] - pos[i]));
+						index += pos[i] * stride;
+						stride *= sizes[i];
+					}
+					final long start = metricsService.getMetrics().start();
+					final byte[] cube =
+						connection.getStore().getHypercube(offset, size, step);
+					metricsService.getMetrics().tileRead(start);
+					// NB: Each chunk is a contiguous slab of the region.
+					System.arraycopy(cube, 0, data, (int) (index * bpp), cube.length);
+
+					// advance to the next chunk
+					int i = 1;
+					for (; i < 5; i++) {
+						pos[i] += chunk[i];
+						if (pos[i] < sizes[i]) break;
+						pos[i] = 0;
+					}
+					if (i == 5) break;
+				}
+			}
+			catch (final ServerError err) {
+				throw communicationException(err);
+			}
+			finally {
+				storePool.release(connection);
+			}
+			metricsService.getMetrics().planeRead(data.length);
+		}
+
+		/** Reads a hypercube of a derived image, plane by plane. */
+		private void readDerivedPlanes(final int imageIndex, final long[] offsets,
+			final long[] sizes, final int bpp, final byte[] data,
+			final SCIFIOConfig config) throws FormatException
+		{
+			final int x = (int) offsets[0], y = (int) offsets[1];
+			final int w = (int) sizes[0], h = (int) sizes[1];
+			final byte[] plane = new byte[w * h * bpp];
+			int offset = 0;
+			for (int t = 0; t < sizes[4]; t++) {
+				for (int c = 0; c < sizes[3]; c++) {
+					for (int z = 0; z < sizes[2]; z++) {
+						derive(imageIndex, (int) offsets[2] + z, (int) offsets[3] + c,
+							(int) offsets[4] + t, x, y, w, h, plane, config);
+						System.arraycopy(plane, 0, data, offset, plane.length);
+						offset += plane.length;
+					}
+				}
+			}
+		}
+
+		/** Reads a hypercube plane by plane, from the native tiles. */
+		private void readPlanes(final int imageIndex, final long[] offsets,
+			final long[] sizes, final int bpp, final byte[] data,
+			final SCIFIOConfig config) throws FormatException
+		{
+			final int x = (int) offsets[0], y = (int) offsets[1];
+			final int w = (int) sizes[0], h = (int) sizes[1];
+			final byte[] plane = new byte[w * h * bpp];
+			final TileCache cache =
+				OMEROConfig.isTileCacheEnabled(config) ? cacheService.getTileCache()
+					: null;
+			final PixelsStorePool storePool = pool();
+			final PixelsStorePool.Connection connection = acquire(storePool, config);
+			try {
+				final DiskMirror.MirrorFile mirrored =
+					mirror(connection, imageIndex, config);
+				int offset = 0;
+				for (int t = 0; t < sizes[4]; t++) {
+					for (int c = 0; c < sizes[3]; c++) {
+						for (int z = 0; z < sizes[2]; z++) {
+							for (final TileCache.Key key : tiles(connection, imageIndex,
+								(int) offsets[2] + z, (int) offsets[3] + c, (int) offsets[4] + t,
+								x, y, w, h, config))
+							{
+								copy(fetch(connection, imageIndex, key, cache, mirrored), key,
+									plane, x, y, w, h, bpp);
+							}
+							System.arraycopy(plane, 0, data, offset, plane.length);
+							offset += plane.length;
+						}
+					}
+				}
+			}
+			finally {
+				storePool.release(connection);
+			}
+			metricsService.getMetrics().planeRead(data.length);
+		}
+
+		/**
+		 * Computes the chunk sizes which split a hypercube into slabs within the
+		 * given budget: full along the inner axes, and of size 1 along the outer
+		 * axes, so that each is contiguous in XYZCT order. Rows (X) are never
+		 * split.
+		 */
+		private static int[] chunk(final long[] sizes, final int bpp,
+			final long budget)
+		{
+			final int[] chunk = new int[sizes.length];
+			long inner = bpp;
+			for (int i = 0; i < sizes.length; i++) {
+				chunk[i] = (int) sizes[i];
+				inner *= sizes[i];
+			}
+			// NB: Shrink axes from the outermost inward, until a chunk fits.
+			for (int i = sizes.length - 1; i > 0 && inner > budget; i--) {
+				inner /= sizes[i];
+				chunk[i] = (int) Math.max(Math.min(budget / inner, sizes[i]), 1);
+				if (chunk[i] > 1 || inner * chunk[i] <= budget) break;
+			}
+			return chunk;
+		}
+
+		/** Reads ahead of the given tiles, if so configured. */
+		private void prefetch(final PixelsStorePool.Connection connection,
+			final int imageIndex, final List<TileCache.Key> keys,
+			final TileCache cache, final SCIFIOConfig config)
+		{
+			final int count = OMEROConfig.getPrefetchCount(config);
+			if (count <= 0) return;
+
+			// bound the read-ahead by the configured memory budget
+			final int bpp = rawBytesPerPixel(imageIndex);
+			long planeSize = 0;
+			for (final TileCache.Key key : keys) {
+				planeSize += (long) key.getW() * key.getH() * bpp;
+			}
+			final long budget = OMEROConfig.getPrefetchBudget(config);
+			final int n = (int) Math.min(count, budget / Math.max(planeSize, 1));
+			if (n <= 0) return;
+
+			// NB: Cache and mirror hits leave the store as it was, possibly set to
+			// other pixels or another level.
+			try {
+				select(connection, imageIndex);
+			}
+			catch (final ServerError err) {
+				log().debug("Cannot read ahead", err);
+				return;
+			}
+			final Metadata meta = getMetadata().getImage(imageIndex);
+			final int[] sizes = { meta.getSizeZ(), meta.getSizeC(), meta.getSizeT() };
+			connection.prefetch(keys, sizes, n, cache);
+		}
+
+		private static boolean matches(final TileCache.Key key, final int x,
+			final int y, final int w, final int h)
+		{
+			return key.getX() == x && key.getY() == y && key.getW() == w &&
+				key.getH() == h;
+		}
+
+		/** Copies the part of a tile overlapping the given region into it. */
+		private static void copy(final ByteBuffer tile, final TileCache.Key key,
+			final byte[] data, final int x, final int y, final int w, final int h,
+			final int bpp)
+		{
+			final int x0 = Math.max(x, key.getX());
+			final int x1 = Math.min(x + w, key.getX() + key.getW());
+			final int y0 = Math.max(y, key.getY());
+			final int y1 = Math.min(y + h, key.getY() + key.getH());
+			if (x1 <= x0) return;
+			final int len = (x1 - x0) * bpp;
+			for (int row = y0; row < y1; row++) {
+				final int src =
+					((row - key.getY()) * key.getW() + (x0 - key.getX())) * bpp;
+				final int dest = ((row - y) * w + (x0 - x)) * bpp;
+				tile.position(src);
+				tile.get(data, dest, len);
+			}
+		}
+
 	}
 
 	public static class Writer extends AbstractWriter<Metadata> {
 
+		/** Compression type for uncompressed pixel traffic. */
+		public static final String COMPRESSION_NONE = "Uncompressed";
+
+		/** Compression type for Ice protocol compression of pixel traffic. */
+		public static final String COMPRESSION_ICE = "Ice";
+
 		@Parameter
 		private MetadataService metadataService;
 
 		@Parameter
-		private LogService log;
+		private OMEROSessionService sessionService;
+
+		@Parameter
+		private OMEROCacheService cacheService;
+
+		@Parameter
+		private OMEROMetricsService metricsService;
 
 		private OMEROSession session;
 		private RawPixelsStorePrx store;
+		private WritePipeline pipeline;
+
+		/** Whether the configured compression type is {@link #COMPRESSION_ICE}. */
+		private boolean compressed;
+
+		/** The configured upload journal file, or null for none. */
+		private File journalFile;
+
+		/** The journal of the upload in progress, or null for none. */
+		private UploadJournal journal;
+
+		@Override
+		public void setDest(final String fileName, final int imageIndex,
+			final SCIFIOConfig config) throws FormatException, IOException
+		{
+			compressed = COMPRESSION_ICE.equals(config.writerGetCompression());
+			journalFile = OMEROConfig.getUploadJournal(config);
+			super.setDest(fileName, imageIndex, config);
+		}
 
 		@Override
 		public void writePlane(final int imageIndex, final long planeIndex,
 			final Plane plane, final long[] planeMin, final long[] planeMax)
 			throws FormatException, IOException
 		{
-			// TODO: Consider whether to reuse OMERO session from somewhere else.
 			if (session == null) initSession();
 
 			final byte[] bytes = plane.getBytes();
-			final int[] zct = zct(imageIndex, planeIndex, getMetadata());
+			final PlaneIndex index = getMetadata().getPlaneIndex(imageIndex);
+			final int z = index.getZ(planeIndex);
+			final int c = index.getC(planeIndex);
+			final int t = index.getT(planeIndex);
+			final ImageMetadata imageMeta = getMetadata().get(imageIndex);
+			final int[] region = region(imageMeta, planeMin, planeMax);
+			final int x = region[0], y = region[1], w = region[2], h = region[3];
 			try {
-				log.info("writePlane: bytes = " + bytes.length);
-				log.info("writePlane: z = " + zct[0] + " c = " + zct[1] + " t = " + zct[2]);
-				log.info("writePlane: w = " + plane.getImageMetadata().getAxisLength(0));
-				log.info("writePlane: h = " + plane.getImageMetadata().getAxisLength(1));
-				log.info("writePlane: num planar = " + plane.getImageMetadata().getPlanarAxisCount());
-				store.setPlane(bytes, zct[0], zct[1], zct[2]);
+				// NB: Skip what a previous, interrupted upload already wrote.
+				if (journal != null && journal.isWritten(z, c, t, x, y, w, h)) {
+					return;
+				}
+				if (x == 0 && y == 0 && w == imageMeta.getAxisLength(Axes.X) &&
+					h == imageMeta.getAxisLength(Axes.Y))
+				{
+					pipeline.writePlane(bytes, z, c, t);
+				}
+				else {
+					pipeline.writeTile(bytes, z, c, t, x, y, w, h);
+				}
 			}
 			catch (final ServerError err) {
 				throw new FormatException("Error writing to OMERO: imageIndex=" +
 					imageIndex + ", planeIndex=" + planeIndex, err);
 			}
+			catch (final Ice.LocalException exc) {
+				throw new FormatException("Error writing to OMERO: imageIndex=" +
+					imageIndex + ", planeIndex=" + planeIndex, exc);
+			}
+			metricsService.getMetrics().planeWritten(bytes.length);
+		}
 
-			System.out.println(bytes.length);
+		/**
+		 * Waits until all planes written so far have reached the server, and
+		 * checkpoints the upload journal, if any.
+		 *
+		 * @throws FormatException if any of them could not be written.
+		 */
+		public void flush() throws FormatException {
+			if (pipeline == null) return;
+			try {
+				pipeline.flush();
+				if (journal != null) journal.checkpoint();
+			}
+			catch (final ServerError err) {
+				throw new FormatException("Error writing to OMERO", err);
+			}
+			catch (final Ice.LocalException exc) {
+				throw new FormatException("Error writing to OMERO", exc);
+			}
+			catch (final IOException exc) {
+				throw new FormatException("Error writing upload journal", exc);
+			}
 		}
 
 		@Override
 		public void close() {
-			if (store != null) {
-				// save the data
-				try {
-					store.save();
+			try {
+				if (store != null) save();
+			}
+			finally {
+				// NB: Release the session and journal, even if the connection broke.
+				closeSession();
+			}
+		}
+
+		/** Saves the written pixels, unless the upload is incomplete. */
+		private void save() {
+			try {
+				// NB: Do not save an incompletely written image.
+				if (pipeline != null) pipeline.flush();
+				if (journal != null) journal.checkpoint();
+				if (journal != null && !journal.isComplete()) {
+					// NB: Keep the journal, so that the upload can be resumed.
+					log().warn("Upload incomplete; resume with the upload journal: " +
+						journalFile);
 					store.close();
+					return;
 				}
-				catch (final ServerError err) {
-					log().error("Error communicating with OMERO", err);
+				final Pixels pix = store.save();
+				// NB: Discard anything cached about the pixels just written.
+				if (pix != null) {
+					final long pixelsID = pix.getId().getValue();
+					final OMEROCredentials credentials =
+						getMetadata().getCredentials();
+					cacheService.getTileCache().invalidate(credentials, pixelsID);
+					cacheService.getMetadataCache().invalidate(pixelsID);
+					cacheService.getCellCache().invalidate(credentials, pixelsID);
+					cacheService.getDiskMirror().invalidate(pixelsID);
 				}
+				store.close();
+				// NB: The upload is complete; nothing is left to resume.
+				if (journal != null) journal.delete();
 			}
+			catch (final ServerError err) {
+				log().error("Error communicating with OMERO", err);
+			}
+			catch (final Ice.LocalException exc) {
+				log().error("Error communicating with OMERO", exc);
+			}
+			catch (final IOException exc) {
+				log().error("Error writing upload journal", exc);
+			}
+		}
+
+		private void closeSession() {
+			if (journal != null) {
+				try {
+					journal.close();
+				}
+				catch (final IOException exc) {
+					log().error("Error writing upload journal", exc);
+				}
+			}
+			journal = null;
 			store = null;
-			if (session != null) session.close();
+			pipeline = null;
+			if (session != null) sessionService.release(session);
 			session = null;
 		}
 
 		@Override
 		protected String[] makeCompressionTypes() {
-			return new String[0];
+			return new String[] { COMPRESSION_NONE, COMPRESSION_ICE };
 		}
 
 		private void initSession() throws FormatException {
-			try {
-				final Metadata meta = getMetadata();
+			final Metadata meta = getMetadata();
+
+			// parse OMERO credentials from destination string
+			// HACK: Get destination string from the metadata's dataset name.
+			// This is set in the method: AbstractWriter#setDest(String, int).
+			locate(metadataService, meta.getDatasetName(), meta);
 
-				// parse OMERO credentials from destination string
-				// HACK: Get destination string from the metadata's dataset name.
-				// This is set in the method: AbstractWriter#setDest(String, int).
-				parseArguments(metadataService, meta.getDatasetName(), meta);
+			final ImageMetadata imageMeta = meta.get(0);
+			final int sizeZ = (int) Math.max(imageMeta.getAxisLength(Axes.Z), 1);
+			final int sizeC =
+				(int) Math.max(imageMeta.getAxisLength(Axes.CHANNEL), 1);
 
-				session = createSession(meta);
-				store = session.createPixels(meta);
+			session = createSession(sessionService, meta.getCredentials());
+			try {
+				if (journalFile == null) store = session.createPixels(meta);
+				else store = openJournaledPixels(meta, sizeZ, sizeC);
+				if (compressed) store = OMEROSession.compress(store, true);
+				if (compressed || meta.getCredentials().isCompressed()) {
+					checkCompression(log());
+				}
 			}
 			catch (final ServerError err) {
+				close();
 				throw communicationException(err);
 			}
+			catch (final Ice.LocalException exc) {
+				close();
+				throw communicationException(exc);
+			}
+			catch (final IOException exc) {
+				close();
+				throw new FormatException("Error opening upload journal: " +
+					journalFile, exc);
+			}
+
+			// batch whole stacks or timepoints when planes arrive in XYZCT order
+			final int planeSize =
+				(int) (imageMeta.getAxisLength(Axes.X) *
+					imageMeta.getAxisLength(Axes.Y) * FormatTools
+					.getBytesPerPixel(imageMeta.getPixelType()));
+			final long batchSize =
+				isStoreOrder(imageMeta) ? WritePipeline.DEFAULT_BATCH_SIZE : 0;
+			pipeline =
+				new WritePipeline(store, sizeZ, sizeC, planeSize, batchSize,
+					WritePipeline.DEFAULT_MAX_PENDING);
+			pipeline.setMetrics(metricsService.getMetrics());
+			pipeline.setListener(journal);
+		}
+
+		/**
+		 * Opens the upload journal, and the pixels it records, creating them if
+		 * the upload is just starting.
+		 */
+		private RawPixelsStorePrx openJournaledPixels(final Metadata meta,
+			final int sizeZ, final int sizeC) throws ServerError, FormatException,
+			IOException
+		{
+			final ImageMetadata imageMeta = meta.get(0);
+			journal =
+				new UploadJournal(journalFile, (int) imageMeta.getAxisLength(Axes.X),
+					(int) imageMeta.getAxisLength(Axes.Y), sizeZ, sizeC, (int) Math.max(
+						imageMeta.getAxisLength(Axes.TIME), 1));
+			if (journal.getPixelsID() != 0) {
+				// NB: Resume writing to the image created by the previous upload.
+				return session.openPixels(meta, journal.getPixelsID());
+			}
+			final long pixelsID = session.createPixelsSet(meta);
+			journal.setPixelsID(pixelsID);
+			return session.openPixels(meta, pixelsID);
+		}
+
+		/** Gets whether planes are ordered Z fastest, then C, then T. */
+		private static boolean isStoreOrder(final ImageMetadata imageMeta) {
+			int previous = -1;
+			for (final AxisType type : new AxisType[] { Axes.Z, Axes.CHANNEL,
+				Axes.TIME })
+			{
+				final int index = imageMeta.getAxisIndex(type);
+				if (index < 0) continue;
+				if (index < previous) return false;
+				previous = index;
+			}
+			return true;
 		}
 
 	}
 
 	// -- Utility methods --
 
+	/**
+	 * Gets the Z, C and T positions of the given plane. To map planes without
+	 * allocating, use {@link Metadata#getPlaneIndex(int)}.
+	 *
+	 * @throws IllegalArgumentException if the plane index is out of bounds.
+	 */
 	public static int[] zct(final int imageIndex, final long planeIndex,
 		final Metadata metadata)
 	{
-		final long[] pos =
-			FormatTools.rasterToPosition(imageIndex, planeIndex, metadata);
-		final int zIndex = metadata.get(imageIndex).getAxisIndex(Axes.Z);
-		final int tIndex = metadata.get(imageIndex).getAxisIndex(Axes.TIME);
-		final int cIndex = metadata.get(imageIndex).getAxisIndex(Axes.CHANNEL);
-		final int z = value(pos, zIndex);
-		final int c = value(pos, tIndex);
-		final int t = value(pos, cIndex);
-		return new int[] { z, c, t };
+		final PlaneIndex index = metadata.getPlaneIndex(imageIndex);
+		return new int[] { index.getZ(planeIndex), index.getC(planeIndex),
+			index.getT(planeIndex) };
 	}
 
 	// -- Utility methods --
 
+	/**
+	 * Populates the given metadata from an OMERO source string.
+	 *
+	 * @throws IllegalArgumentException if a numeric field is malformed.
+	 * @see OMEROLocator
+	 */
 	public static void parseArguments(final MetadataService metadataService,
 		final String string, final Metadata meta)
 	{
-		// strip omero prefix and/or suffix
-		final String clean =
-			string.replaceFirst("^omero:", "").replaceFirst("\\.omero$", "");
-
-		final Map<String, Object> map = metadataService.parse(clean, "&");
-		final OMEROCredentials credentials = new OMEROCredentials();
-		// populate OMERO credentials
-		metadataService.populate(credentials, map);
-		meta.setCredentials(credentials);
-		// populate other metadata: image ID, etc.
-		metadataService.populate(meta, map);
+		final OMEROLocator locator = OMEROLocator.get(string);
+		locator.populate(meta);
+		// NB: Only uncommon fields (e.g., physical sizes) need reflection.
+		final Map<String, String> options = locator.getOptions();
+		if (options.isEmpty()) return;
+		metadataService.populate(meta, new HashMap<String, Object>(options));
 	}
 
 	// -- Helper methods --
 
-	private static OMEROSession createSession(final Metadata meta)
-		throws FormatException
+	private static void locate(final MetadataService metadataService,
+		final String string, final Metadata meta) throws FormatException
+	{
+		try {
+			parseArguments(metadataService, string, meta);
+		}
+		catch (final IllegalArgumentException exc) {
+			throw new FormatException("Invalid OMERO source: " + exc.getMessage(),
+				exc);
+		}
+	}
+
+	/**
+	 * Gets the X, Y, width and height of the given region of a plane, whose
+	 * {@code planeMax} holds the lengths of the region rather than its end.
+	 *
+	 * @throws FormatException if the region is not a nonempty part of the
+	 *           plane.
+	 */
+	static int[] region(final ImageMetadata imageMeta,
+		final long[] planeMin, final long[] planeMax) throws FormatException
+	{
+		if (planeMin == null || planeMax == null || planeMin.length < 2 ||
+			planeMax.length < 2)
+		{
+			throw new FormatException("Region must span X and Y");
+		}
+		final long sizeX = imageMeta.getAxisLength(Axes.X);
+		final long sizeY = imageMeta.getAxisLength(Axes.Y);
+		// NB: Within a plane whose sizes fit an int, so do the region's.
+		if (planeMin[0] < 0 || planeMin[1] < 0 || planeMax[0] <= 0 ||
+			planeMax[1] <= 0 || planeMin[0] + planeMax[0] > sizeX ||
+			planeMin[1] + planeMax[1] > sizeY || sizeX > Integer.MAX_VALUE ||
+			sizeY > Integer.MAX_VALUE)
+		{
+			throw new FormatException("Invalid region: min=" +
+				Arrays.toString(planeMin) + ", max=" + Arrays.toString(planeMax) +
+				" of a " + sizeX + "x" + sizeY + " plane");
+		}
+		return new int[] { (int) planeMin[0], (int) planeMin[1],
+			(int) planeMax[0], (int) planeMax[1] };
+	}
+
+	private static OMEROSession createSession(
+		final OMEROSessionService sessionService,
+		final OMEROCredentials credentials) throws FormatException
 	{
 		try {
-			return new OMEROSession(meta.getCredentials());
+			return sessionService.acquire(credentials);
 		}
 		catch (final ServerError err) {
 			throw communicationException(err);
@@ -541,6 +2046,17 @@ public class OMEROFormat extends AbstractFormat {
 		}
 	}
 
+	/**
+	 * Warns, once, if Ice compression was asked for but cannot be done. Ice
+	 * then sends pixel traffic uncompressed, without complaint.
+	 */
+	private static void checkCompression(final LogService log) {
+		if (compressionWarned || OMEROSession.isCompressionAvailable()) return;
+		compressionWarned = true;
+		log.warn("Ice compression needs bzip2 (org.apache.ant:ant) on the " +
+			"class path; pixel traffic is uncompressed");
+	}
+
 	private static FormatException communicationException(final Throwable cause) {
 		return new FormatException("Error communicating with OMERO", cause);
 	}
@@ -549,13 +2065,4 @@ public class OMEROFormat extends AbstractFormat {
 		return new FormatException("Error connecting to OMERO", cause);
 	}
 
-	private static int value(final long[] pos, final int i) {
-		if (i < 0 || i >= pos.length) return 0;
-		final long value = pos[i];
-		if (value > Integer.MAX_VALUE) {
-			throw new IllegalArgumentException("Index too large: " + value);
-		}
-		return (int) value;
-	}
-
 }
@@ -0,0 +1,331 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable, pre-parsed OMERO source string, such as
+ * {@code omero:server=my.host&user=me&password=secret&imageID=12}.
+ * <p>
+ * Parsing is done by hand, with no regular expressions and no reflection, and
+ * {@link #get(String)} interns the most recently used locators, so that
+ * resolving the same source string again is a single map lookup. Locators
+ * carrying a password or session ID are never interned, so that credentials
+ * are not kept alive beyond their use.
+ * </p>
+ */
+public final class OMEROLocator {
+
+	// -- Constants --
+
+	/** The prefix which marks a source string as an OMERO locator. */
+	public static final String PREFIX = "omero:";
+
+	/** The suffix which marks a file name as an OMERO locator. */
+	public static final String SUFFIX = ".omero";
+
+	/** The most locators kept by {@link #get(String)}. */
+	private static final int MAX_INTERNED = 256;
+
+	private static final Map<String, OMEROLocator> INTERNED =
+		new LinkedHashMap<String, OMEROLocator>(16, 0.75f, true)
+		{
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<String, OMEROLocator> eldest)
+			{
+				return size() > MAX_INTERNED;
+			}
+		};
+
+	// -- Fields --
+
+	private final String server;
+	private final int port;
+	private final String sessionID;
+	private final String user;
+	private final String password;
+	private final boolean encrypted;
+	private final boolean compressed;
+
+	private final String name;
+	private final long imageID;
+	private final long pixelsID;
+	private final long datasetID;
+	private final long plateID;
+
+	/** Any other key/value pairs, in order of appearance. */
+	private final Map<String, String> options;
+
+	// -- Constructors --
+
+	private OMEROLocator(final String source) {
+		String server = null, sessionID = null, user = null, password = null;
+		String name = null;
+		int port = 4064;
+		boolean encrypted = false, compressed = false;
+		long imageID = 0, pixelsID = 0, datasetID = 0, plateID = 0;
+		Map<String, String> options = null;
+
+		final int start = source.startsWith(PREFIX) ? PREFIX.length() : 0;
+		final int end =
+			Math.max(start, source.endsWith(SUFFIX) ? source.length() -
+				SUFFIX.length() : source.length());
+
+		int pos = start;
+		while (pos < end) {
+			int amp = source.indexOf('&', pos);
+			if (amp < 0 || amp > end) amp = end;
+			final int equals = source.indexOf('=', pos);
+			if (equals >= 0 && equals < amp) {
+				final String key = source.substring(pos, equals).trim();
+				final String value = source.substring(equals + 1, amp).trim();
+				if (key.equals("server")) server = value;
+				else if (key.equals("port")) port = toInt(key, value);
+				else if (key.equals("sessionID")) sessionID = value;
+				else if (key.equals("user")) user = value;
+				else if (key.equals("password")) password = value;
+				else if (key.equals("encrypted")) encrypted = toBoolean(value);
+				else if (key.equals("compressed")) compressed = toBoolean(value);
+				else if (key.equals("name")) name = value;
+				else if (key.equals("imageID")) imageID = toLong(key, value);
+				else if (key.equals("pixelsID")) pixelsID = toLong(key, value);
+				else if (key.equals("datasetID")) datasetID = toLong(key, value);
+				else if (key.equals("plateID")) plateID = toLong(key, value);
+				else {
+					if (options == null) options = new LinkedHashMap<String, String>();
+					options.put(key, value);
+				}
+			}
+			pos = amp + 1;
+		}
+
+		this.server = server;
+		this.port = port;
+		this.sessionID = sessionID;
+		this.user = user;
+		this.password = password;
+		this.encrypted = encrypted;
+		this.compressed = compressed;
+		this.name = name;
+		this.imageID = imageID;
+		this.pixelsID = pixelsID;
+		this.datasetID = datasetID;
+		this.plateID = plateID;
+		this.options =
+			options == null ? Collections.<String, String> emptyMap() : Collections
+				.unmodifiableMap(options);
+	}
+
+	// -- Static utility methods --
+
+	/** Gets whether the given source string is an OMERO locator. */
+	public static boolean isLocator(final String source) {
+		return source != null &&
+			(source.startsWith(PREFIX) || source.endsWith(SUFFIX));
+	}
+
+	/**
+	 * Gets the locator for the given source string, parsing it only if it was
+	 * not among those most recently used. Source strings with a password or
+	 * session ID are parsed every time.
+	 *
+	 * @throws IllegalArgumentException if a numeric field is malformed.
+	 */
+	public static OMEROLocator get(final String source) {
+		synchronized (INTERNED) {
+			final OMEROLocator locator = INTERNED.get(source);
+			if (locator != null) return locator;
+		}
+		final OMEROLocator locator = new OMEROLocator(source);
+		// NB: Keep no credentials in a map which lives as long as the JVM.
+		if (locator.password != null || locator.sessionID != null) return locator;
+		synchronized (INTERNED) {
+			INTERNED.put(source, locator);
+		}
+		return locator;
+	}
+
+	/** Forgets all interned locators. */
+	public static void clear() {
+		synchronized (INTERNED) {
+			INTERNED.clear();
+		}
+	}
+
+	// -- OMEROLocator methods --
+
+	public String getServer() {
+		return server;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getSessionID() {
+		return sessionID;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getImageID() {
+		return imageID;
+	}
+
+	public long getPixelsID() {
+		return pixelsID;
+	}
+
+	public long getDatasetID() {
+		return datasetID;
+	}
+
+	public long getPlateID() {
+		return plateID;
+	}
+
+	/** Gets the key/value pairs which are not fields of the locator. */
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	/** Creates a fresh set of credentials from this locator. */
+	public OMEROCredentials createCredentials() {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer(server);
+		credentials.setPort(port);
+		credentials.setSessionID(sessionID);
+		credentials.setUser(user);
+		credentials.setPassword(password);
+		credentials.setEncrypted(encrypted);
+		credentials.setCompressed(compressed);
+		return credentials;
+	}
+
+	/**
+	 * Populates the given metadata with fresh credentials, plus the name and
+	 * IDs given by this locator; those not given are left as they are.
+	 */
+	public void populate(final OMEROFormat.Metadata meta) {
+		meta.setCredentials(createCredentials());
+		if (name != null) meta.setName(name);
+		if (imageID != 0) meta.setImageID(imageID);
+		if (pixelsID != 0) meta.setPixelsID(pixelsID);
+		if (datasetID != 0) meta.setDatasetID(datasetID);
+		if (plateID != 0) meta.setPlateID(plateID);
+	}
+
+	// -- Object methods --
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof OMEROLocator)) return false;
+		final OMEROLocator other = (OMEROLocator) o;
+		return equal(server, other.server) && port == other.port &&
+			equal(sessionID, other.sessionID) && equal(user, other.user) &&
+			equal(password, other.password) && encrypted == other.encrypted &&
+			compressed == other.compressed && equal(name, other.name) &&
+			imageID == other.imageID && pixelsID == other.pixelsID &&
+			datasetID == other.datasetID && plateID == other.plateID &&
+			options.equals(other.options);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = server == null ? 0 : server.hashCode();
+		hash = 31 * hash + port;
+		hash = 31 * hash + (int) (imageID ^ (imageID >>> 32));
+		hash = 31 * hash + (int) (pixelsID ^ (pixelsID >>> 32));
+		hash = 31 * hash + (int) (datasetID ^ (datasetID >>> 32));
+		hash = 31 * hash + (int) (plateID ^ (plateID >>> 32));
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		// NB: Never reveal the password or session ID.
+		final StringBuilder sb = new StringBuilder(PREFIX);
+		sb.append("server=").append(server);
+		sb.append("&port=").append(port);
+		if (user != null) sb.append("&user=").append(user);
+		if (imageID != 0) sb.append("&imageID=").append(imageID);
+		if (pixelsID != 0) sb.append("&pixelsID=").append(pixelsID);
+		if (datasetID != 0) sb.append("&datasetID=").append(datasetID);
+		if (plateID != 0) sb.append("&plateID=").append(plateID);
+		return sb.toString();
+	}
+
+	// -- Helper methods --
+
+	private static int toInt(final String key, final String value) {
+		final long result = toLong(key, value);
+		if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid " + key + ": " + value);
+		}
+		return (int) result;
+	}
+
+	private static long toLong(final String key, final String value) {
+		try {
+			return Long.parseLong(value);
+		}
+		catch (final NumberFormatException exc) {
+			throw new IllegalArgumentException("Invalid " + key + ": " + value, exc);
+		}
+	}
+
+	private static boolean toBoolean(final String value) {
+		return value.equalsIgnoreCase("true");
+	}
+
+	private static boolean equal(final Object o1, final Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the traffic between {@link OMEROFormat}
+ * and OMERO servers.
+ * <p>
+ * Recording is off until {@link #setEnabled} is called; while off, the
+ * recording methods return immediately, and {@link #start()} does not even
+ * read the clock. No recording method allocates.
+ * </p>
+ */
+public class OMEROMetrics {
+
+	// -- Fields --
+
+	private volatile boolean enabled;
+
+	private final AtomicLong planesRead = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong planesWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final LatencyHistogram tileReads = new LatencyHistogram();
+	private final LatencyHistogram writes = new LatencyHistogram();
+	private final LatencyHistogram planeWrites = new LatencyHistogram();
+	private final LatencyHistogram tileWrites = new LatencyHistogram();
+	private final LatencyHistogram stackWrites = new LatencyHistogram();
+	private final LatencyHistogram timepointWrites = new LatencyHistogram();
+	private final LatencyHistogram logins = new LatencyHistogram();
+
+	// -- OMEROMetrics methods --
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Gets a start time for a latency measurement, or 0 if recording is
+	 * disabled.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** Records a tile fetched from the server, begun at the given time. */
+	public void tileRead(final long start) {
+		if (!enabled || start == 0) return;
+		tileReads.record(System.nanoTime() - start);
+	}
+
+	/** Records a plane (or region of one) delivered by the Reader. */
+	public void planeRead(final int bytes) {
+		if (!enabled) return;
+		planesRead.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+	}
+
+	/** Records a plane (or region of one) accepted by the Writer. */
+	public void planeWritten(final int bytes) {
+		if (!enabled) return;
+		planesWritten.incrementAndGet();
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/** Records a {@code setPlane} request acknowledged by the server. */
+	public void planeWriteCompleted(final long start) {
+		writeCompleted(planeWrites, start);
+	}
+
+	/** Records a {@code setTile} request acknowledged by the server. */
+	public void tileWriteCompleted(final long start) {
+		writeCompleted(tileWrites, start);
+	}
+
+	/** Records a {@code setStack} request acknowledged by the server. */
+	public void stackWriteCompleted(final long start) {
+		writeCompleted(stackWrites, start);
+	}
+
+	/** Records a {@code setTimepoint} request acknowledged by the server. */
+	public void timepointWriteCompleted(final long start) {
+		writeCompleted(timepointWrites, start);
+	}
+
+	/** Records a login to the server, begun at the given time. */
+	public void login(final long start) {
+		if (!enabled || start == 0) return;
+		logins.record(System.nanoTime() - start);
+	}
+
+	public long getPlanesRead() {
+		return planesRead.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getPlanesWritten() {
+		return planesWritten.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/** Gets the latencies of tile reads ({@code getTile}). */
+	public LatencyHistogram getTileReadLatency() {
+		return tileReads;
+	}
+
+	/** Gets the latencies of all write requests, of any kind. */
+	public LatencyHistogram getWriteLatency() {
+		return writes;
+	}
+
+	/** Gets the latencies of {@code setPlane} requests. */
+	public LatencyHistogram getPlaneWriteLatency() {
+		return planeWrites;
+	}
+
+	/** Gets the latencies of {@code setTile} requests. */
+	public LatencyHistogram getTileWriteLatency() {
+		return tileWrites;
+	}
+
+	/** Gets the latencies of {@code setStack} requests. */
+	public LatencyHistogram getStackWriteLatency() {
+		return stackWrites;
+	}
+
+	/** Gets the latencies of {@code setTimepoint} requests. */
+	public LatencyHistogram getTimepointWriteLatency() {
+		return timepointWrites;
+	}
+
+	/** Gets the latencies of session creation (i.e., logging in). */
+	public LatencyHistogram getLoginLatency() {
+		return logins;
+	}
+
+	/** Resets all counters and histograms. */
+	public void reset() {
+		planesRead.set(0);
+		bytesRead.set(0);
+		planesWritten.set(0);
+		bytesWritten.set(0);
+		tileReads.reset();
+		writes.reset();
+		planeWrites.reset();
+		tileWrites.reset();
+		stackWrites.reset();
+		timepointWrites.reset();
+		logins.reset();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Records a write request into the given histogram of its kind, and into
+	 * that of all writes.
+	 */
+	private void writeCompleted(final LatencyHistogram histogram,
+		final long start)
+	{
+		if (!enabled || start == 0) return;
+		final long latency = System.nanoTime() - start;
+		writes.record(latency);
+		histogram.record(latency);
+	}
+
+}
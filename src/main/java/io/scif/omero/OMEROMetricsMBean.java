@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+/**
+ * JMX view of the {@link OMEROMetrics}, together with the statistics of the
+ * session pool and tile cache. Latencies are in nanoseconds.
+ *
+ * @see OMEROMetricsService#setJMXEnabled(boolean)
+ */
+public interface OMEROMetricsMBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getPlanesRead();
+
+	long getBytesRead();
+
+	long getPlanesWritten();
+
+	long getBytesWritten();
+
+	long getTileReadCount();
+
+	double getTileReadMeanLatency();
+
+	long getTileReadP99Latency();
+
+	long getTileReadMaxLatency();
+
+	long getWriteCount();
+
+	double getWriteMeanLatency();
+
+	long getWriteP99Latency();
+
+	long getWriteMaxLatency();
+
+	long getPlaneWriteCount();
+
+	double getPlaneWriteMeanLatency();
+
+	long getPlaneWriteP99Latency();
+
+	long getTileWriteCount();
+
+	double getTileWriteMeanLatency();
+
+	long getTileWriteP99Latency();
+
+	long getStackWriteCount();
+
+	double getStackWriteMeanLatency();
+
+	long getStackWriteP99Latency();
+
+	long getTimepointWriteCount();
+
+	double getTimepointWriteMeanLatency();
+
+	long getTimepointWriteP99Latency();
+
+	long getLoginCount();
+
+	double getLoginMeanLatency();
+
+	long getSessionHitCount();
+
+	long getSessionMissCount();
+
+	int getSessionCount();
+
+	long getTileCacheHitCount();
+
+	long getTileCacheMissCount();
+
+	long getTileCacheEvictionCount();
+
+	long getTileCacheSize();
+
+	void reset();
+
+}
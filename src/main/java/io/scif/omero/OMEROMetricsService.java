@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.SCIFIOService;
+
+/**
+ * Interface for services which collect {@link OMEROMetrics} of the traffic
+ * between {@link OMEROFormat} and OMERO servers, and optionally publish them
+ * as a JMX MBean.
+ */
+public interface OMEROMetricsService extends SCIFIOService {
+
+	/**
+	 * The domain and type of the JMX object names under which metrics are
+	 * published. Each service adds a {@code name} key of its own, so that the
+	 * metrics of several contexts can be published at once.
+	 */
+	String MBEAN_NAME = "io.scif.omero:type=Metrics";
+
+	/** Gets the metrics, for recording and querying. */
+	OMEROMetrics getMetrics();
+
+	/** Gets whether the metrics are published as a JMX MBean. */
+	boolean isJMXEnabled();
+
+	/**
+	 * Sets whether the metrics are published as a JMX MBean, named after
+	 * {@link #MBEAN_NAME}. Publishing also enables recording, and withdrawing
+	 * the MBean disables it.
+	 */
+	void setJMXEnabled(boolean enabled);
+
+	/** Gets the JMX object name of the metrics, or null if not published. */
+	String getMBeanName();
+
+}
@@ -32,19 +32,25 @@ import io.scif.ImageMetadata;
 import io.scif.util.FormatTools;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.imglib2.meta.Axes;
 import omero.RLong;
+import omero.RType;
 import omero.ServerError;
 import omero.api.RawPixelsStorePrx;
+import omero.api.RawPixelsStorePrxHelper;
 import omero.api.ServiceFactoryPrx;
+import omero.constants.projection.ProjectionType;
 import omero.model.IObject;
 import omero.model.Image;
 import omero.model.Pixels;
 import omero.model.PixelsType;
+import omero.sys.ParametersI;
 import pojos.ImageData;
 
 /**
@@ -54,11 +60,19 @@ import pojos.ImageData;
  */
 public class OMEROSession implements Closeable {
 
+	// -- Constants --
+
+	private static final boolean COMPRESSION_AVAILABLE = findClass(
+		"org.apache.tools.bzip2.CBZip2OutputStream");
+
 	// -- Fields --
 
 	private omero.client client;
 	private ServiceFactoryPrx session;
 
+	/** The server's pixel types, by value; loaded on first use. */
+	private volatile Map<String, PixelsType> pixelsTypes;
+
 	// -- Constructors --
 
 	public OMEROSession(final OMEROCredentials credentials) throws ServerError,
@@ -104,6 +118,14 @@ public class OMEROSession implements Closeable {
 		session.detachOnDestroy();
 	}
 
+	/**
+	 * Wraps an already established session. The session is not destroyed when
+	 * this object is closed.
+	 */
+	public OMEROSession(final ServiceFactoryPrx session) {
+		this.session = session;
+	}
+
 	// -- OMEROSession methods --
 
 	public omero.client getClient() {
@@ -121,27 +143,191 @@ public class OMEROSession implements Closeable {
 		return session.getPixelsService().retrievePixDescription(getPixelsID(meta));
 	}
 
+	/**
+	 * Gets the ID of the last update event of the given pixels, or 0 if
+	 * unknown.
+	 */
+	public long getUpdateEvent(final long pixelsID) throws ServerError {
+		final List<List<RType>> rows =
+			session.getQueryService().projection(
+				"select p.details.updateEvent.id from Pixels p where p.id = :id",
+				new ParametersI().addId(pixelsID));
+		if (rows == null || rows.isEmpty() || rows.get(0).isEmpty()) return 0;
+		final RType value = rows.get(0).get(0);
+		return value instanceof RLong ? ((RLong) value).getValue() : 0;
+	}
+
+	/**
+	 * Gets the default {@code Pixels} descriptors of the given images, with
+	 * their images loaded, in a single query. The descriptors are returned in
+	 * the order of the given image IDs.
+	 *
+	 * @throws FormatException if any image does not exist, or is not
+	 *           accessible.
+	 */
+	public List<Pixels> getPixelsInfo(final long... imageIDs)
+		throws ServerError, FormatException
+	{
+		final List<Long> ids = new ArrayList<Long>(imageIDs.length);
+		for (final long id : imageIDs) {
+			ids.add(id);
+		}
+		final Map<Long, Pixels> found = new HashMap<Long, Pixels>();
+		for (final Pixels pix : queryPixels("where i.id in (:ids)",
+			new ParametersI().addIds(ids)))
+		{
+			final long imageID = pix.getImage().getId().getValue();
+			if (!found.containsKey(imageID)) found.put(imageID, pix);
+		}
+		final List<Pixels> pixels = new ArrayList<Pixels>(imageIDs.length);
+		final List<Long> missing = new ArrayList<Long>();
+		for (final long id : imageIDs) {
+			final Pixels pix = found.get(id);
+			if (pix == null) missing.add(id);
+			else pixels.add(pix);
+		}
+		if (!missing.isEmpty()) {
+			throw new FormatException("Invalid image IDs: " + missing);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Gets the {@code Pixels} descriptors of all images in the given dataset,
+	 * with their images loaded, in a single query.
+	 */
+	public List<Pixels> getDatasetPixelsInfo(final long datasetID)
+		throws ServerError
+	{
+		return queryPixels("join i.datasetLinks l where l.parent.id = :id",
+			new ParametersI().addId(datasetID));
+	}
+
+	/**
+	 * Gets the {@code Pixels} descriptors of all images in the given plate,
+	 * with their images loaded, in a single query.
+	 */
+	public List<Pixels> getPlatePixelsInfo(final long plateID)
+		throws ServerError
+	{
+		return queryPixels("join i.wellSamples s where s.well.plate.id = :id",
+			new ParametersI().addId(plateID));
+	}
+
+	/**
+	 * Gets the X and Y sizes of each pyramid resolution level of the given
+	 * pixels, from full resolution to the smallest level.
+	 */
+	public int[][] getResolutionSizes(final long pixelsID) throws ServerError {
+		final RawPixelsStorePrx store = session.createRawPixelsStore();
+		try {
+			store.setPixelsId(pixelsID, false);
+			final int levels = store.getResolutionLevels();
+			final int bpp = store.getByteWidth();
+			final int[][] sizes = new int[levels][];
+			for (int level = 0; level < levels; level++) {
+				// NB: The server numbers its levels from the smallest one.
+				store.setResolutionLevel(levels - 1 - level);
+				final int rowSize = store.getRowSize();
+				sizes[level] =
+					new int[] { rowSize / bpp, (int) (store.getPlaneSize() / rowSize) };
+			}
+			return sizes;
+		}
+		finally {
+			store.close();
+		}
+	}
+
 	/** Obtains a raw pixels store for reading from the configured pixels ID. */
 	public RawPixelsStorePrx openPixels(final OMEROFormat.Metadata meta)
 		throws ServerError
 	{
-		final RawPixelsStorePrx store = session.createRawPixelsStore();
+		final RawPixelsStorePrx store = createRawPixelsStore(meta);
 		store.setPixelsId(getPixelsID(meta), false);
 		return store;
 	}
 
+	/**
+	 * Obtains a raw pixels store for the given pixels ID, e.g. to resume
+	 * writing to it.
+	 */
+	public RawPixelsStorePrx openPixels(final OMEROFormat.Metadata meta,
+		final long pixelsID) throws ServerError
+	{
+		final RawPixelsStorePrx store = createRawPixelsStore(meta);
+		store.setPixelsId(pixelsID, false);
+		return store;
+	}
+
 	/** Obtains a raw pixels store for writing to a newly created pixels ID. */
 	public RawPixelsStorePrx createPixels(final OMEROFormat.Metadata meta)
 		throws ServerError, FormatException
 	{
-		// create a new Image which will house the written pixels
-		final ImageData newImage = createImage(meta);
+		return openPixels(meta, createPixelsSet(meta));
+	}
 
-		// configure the raw pixels store
-		final RawPixelsStorePrx store = session.createRawPixelsStore();
-		store.setPixelsId(newImage.getDefaultPixels().getId(), false);
+	/**
+	 * Creates a new Image which will house the written pixels, and gets the ID
+	 * of its pixels.
+	 */
+	public long createPixelsSet(final OMEROFormat.Metadata meta)
+		throws ServerError, FormatException
+	{
+		return createImage(meta).getDefaultPixels().getId();
+	}
 
-		return store;
+	/**
+	 * Projects the Z planes of the given pixels on the server, returning the
+	 * projected plane as stored (big-endian), in the stored pixel type. Sums
+	 * saturate at the largest value of the pixel type.
+	 *
+	 * @param start The first Z plane of the projection.
+	 * @param end The last Z plane of the projection, inclusive.
+	 */
+	public byte[] projectStack(final long pixelsID, final String pixelType,
+		final ProjectionType algorithm, final int c, final int t,
+		final int start, final int end) throws ServerError, FormatException
+	{
+		return session.getProjectionService().projectStack(pixelsID,
+			getPixelsType(pixelType), algorithm, t, c, 1, start, end);
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Gets the server-side projection of the given name: {@code max},
+	 * {@code mean} or {@code sum}.
+	 *
+	 * @return The projection, or null if the name is unknown.
+	 */
+	public static ProjectionType getProjectionType(final String name) {
+		if ("max".equalsIgnoreCase(name)) return ProjectionType.MAXIMUMINTENSITY;
+		if ("mean".equalsIgnoreCase(name)) return ProjectionType.MEANINTENSITY;
+		if ("sum".equalsIgnoreCase(name)) return ProjectionType.SUMINTENSITY;
+		return null;
+	}
+
+	/**
+	 * Gets whether Ice can compress traffic, which needs the bzip2 classes of
+	 * Apache Ant on the class path.
+	 */
+	public static boolean isCompressionAvailable() {
+		return COMPRESSION_AVAILABLE;
+	}
+
+	/**
+	 * Gets a proxy to the given store whose requests and replies are (or are
+	 * not) compressed with Ice protocol compression. Compression only applies
+	 * where the server endpoint supports it, and where
+	 * {@link #isCompressionAvailable() bzip2 is available}; otherwise it is
+	 * silently skipped.
+	 */
+	public static RawPixelsStorePrx compress(final RawPixelsStorePrx store,
+		final boolean compressed)
+	{
+		return RawPixelsStorePrxHelper.uncheckedCast(store
+			.ice_compress(compressed));
 	}
 
 	// -- Closeable methods --
@@ -155,6 +341,16 @@ public class OMEROSession implements Closeable {
 
 	// -- Helper methods --
 
+	private static boolean findClass(final String name) {
+		try {
+			Class.forName(name);
+			return true;
+		}
+		catch (final ClassNotFoundException exc) {
+			return false;
+		}
+	}
+
 	private long getPixelsID(final OMEROFormat.Metadata meta) throws ServerError {
 		final long pixelsID = meta.getPixelsID();
 		if (pixelsID != 0) return pixelsID;
@@ -171,6 +367,34 @@ public class OMEROSession implements Closeable {
 		return images.get(0).getPixels(0).getId().getValue();
 	}
 
+	/**
+	 * Finds the pixels matching the given HQL clauses, in which the pixels'
+	 * image is {@code i}; ordered by image ID.
+	 */
+	private List<Pixels> queryPixels(final String clauses,
+		final ParametersI params) throws ServerError
+	{
+		final List<IObject> list =
+			session.getQueryService().findAllByQuery(
+				"select p from Pixels p join fetch p.pixelsType " +
+					"join fetch p.image i " + clauses + " order by i.id", params);
+		final List<Pixels> pixels = new ArrayList<Pixels>(list.size());
+		for (final IObject object : list) {
+			pixels.add((Pixels) object);
+		}
+		return pixels;
+	}
+
+	/** Creates a raw pixels store, compressed if the credentials say so. */
+	private RawPixelsStorePrx createRawPixelsStore(
+		final OMEROFormat.Metadata meta) throws ServerError
+	{
+		final RawPixelsStorePrx store = session.createRawPixelsStore();
+		final OMEROCredentials credentials = meta.getCredentials();
+		if (credentials == null || !credentials.isCompressed()) return store;
+		return compress(store, true);
+	}
+
 	private ImageData createImage(final OMEROFormat.Metadata meta)
 		throws ServerError, FormatException
 	{
@@ -210,15 +434,29 @@ public class OMEROSession implements Closeable {
 	private PixelsType getPixelsType(final String pixelType) throws ServerError,
 		FormatException
 	{
+		final PixelsType type = getPixelsTypes().get(pixelType);
+		if (type == null) {
+			throw new FormatException("Invalid pixel type: " + pixelType);
+		}
+		return type;
+	}
+
+	/**
+	 * Gets the server's pixel types, fetching them only once per session, since
+	 * pooled sessions are reused for many images.
+	 */
+	private Map<String, PixelsType> getPixelsTypes() throws ServerError {
+		Map<String, PixelsType> types = pixelsTypes;
+		if (types != null) return types;
+		types = new HashMap<String, PixelsType>();
 		final List<IObject> list =
 			session.getPixelsService().getAllEnumerations(PixelsType.class.getName());
-		final Iterator<IObject> iter = list.iterator();
-		while (iter.hasNext()) {
-			final PixelsType type = (PixelsType) iter.next();
-			final String value = type.getValue().getValue();
-			if (value.equals(pixelType)) return type;
+		for (final IObject object : list) {
+			final PixelsType type = (PixelsType) object;
+			types.put(type.getValue().getValue(), type);
 		}
-		throw new FormatException("Invalid pixel type: " + pixelType);
+		pixelsTypes = types;
+		return types;
 	}
 
 }
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import io.scif.SCIFIOService;
+import omero.ServerError;
+
+/**
+ * Interface for services which manage a pool of shared, reference-counted
+ * {@link OMEROSession}s.
+ * <p>
+ * Sessions are keyed by server, port, user and session ID. A session obtained
+ * via {@link #acquire} must be handed back via {@link #release} rather than
+ * being closed directly; once its reference count drops to zero, it is kept
+ * alive for a while so that the next parse, read or write of the same server
+ * can reuse it without logging in again.
+ * </p>
+ */
+public interface OMEROSessionService extends SCIFIOService {
+
+	/**
+	 * Obtains a session matching the given credentials, reusing a pooled one
+	 * when possible and logging in otherwise.
+	 */
+	OMEROSession acquire(OMEROCredentials credentials) throws ServerError,
+		PermissionDeniedException, CannotCreateSessionException;
+
+	/**
+	 * Hands back a session previously obtained via {@link #acquire}. Sessions
+	 * not managed by this service are simply closed.
+	 */
+	void release(OMEROSession session);
+
+	/**
+	 * Adds an already established session to the pool, so that it is reused by
+	 * subsequent requests with the given credentials.
+	 */
+	void register(OMEROCredentials credentials, OMEROSession session);
+
+	/** Closes all pooled sessions which are not currently in use. */
+	void evictIdle();
+
+	/** Gets the number of sessions currently held by the pool. */
+	int getSessionCount();
+
+	/** Gets how long (in ms) an unused session is kept before being closed. */
+	long getIdleTimeout();
+
+	/** Sets how long (in ms) an unused session is kept before being closed. */
+	void setIdleTimeout(long idleTimeout);
+
+	/** Gets how often (in ms) pooled sessions are pinged to keep them alive. */
+	long getKeepAliveInterval();
+
+	/** Sets how often (in ms) pooled sessions are pinged to keep them alive. */
+	void setKeepAliveInterval(long keepAliveInterval);
+
+	/** Gets the number of requests served by an already pooled session. */
+	long getHitCount();
+
+	/** Gets the number of requests which required a new login. */
+	long getMissCount();
+
+	/** Gets the total time (in ns) spent logging in to OMERO. */
+	long getLoginTime();
+
+}
@@ -0,0 +1,369 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.FormatException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+/**
+ * Fetches many tiles of one pixels set concurrently, over several raw pixels
+ * stores, for bulk export and analysis.
+ * <p>
+ * Each connection is a raw pixels store of its own, opened on one of the given
+ * sessions in turn; a store serves one request at a time. Tiles are delivered
+ * either in request order or in order of completion, and at most
+ * {@code capacity} tiles are in flight or waiting to be consumed at once, so
+ * memory use stays bounded however fast the connections are.
+ * </p>
+ */
+public class ParallelPlaneFetcher implements Closeable {
+
+	// -- Fields --
+
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	/** Connections not currently serving a request. */
+	private final BlockingQueue<Connection> idle;
+
+	private final ExecutorService executor;
+
+	private final int capacity;
+
+	/** The number of resolution levels of each pixels set, by pixels ID. */
+	private final Map<Long, Integer> resolutionLevels =
+		new HashMap<Long, Integer>();
+
+	// -- Constructors --
+
+	/**
+	 * Opens the given number of connections to the configured pixels set,
+	 * spread across the given sessions.
+	 *
+	 * @param sessions The sessions on which to open the raw pixels stores.
+	 * @param meta The metadata identifying the pixels set, or the pixels sets of
+	 *          a dataset or plate.
+	 * @param connectionCount The number of raw pixels stores to open.
+	 * @param capacity The maximum number of tiles in flight or awaiting
+	 *          consumption.
+	 */
+	public ParallelPlaneFetcher(final List<OMEROSession> sessions,
+		final OMEROFormat.Metadata meta, final int connectionCount,
+		final int capacity) throws ServerError
+	{
+		if (sessions.isEmpty() || connectionCount <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Invalid fetcher configuration");
+		}
+		this.capacity = capacity;
+		// NB: The images of a dataset or plate may have pyramids of their own.
+		for (int i = 0; i < Math.max(meta.getImageCount(), 1); i++) {
+			final OMEROFormat.Metadata image = meta.getImage(i);
+			resolutionLevels.put(image.getPixelsID(), image.getResolutionLevels());
+		}
+		idle = new ArrayBlockingQueue<Connection>(connectionCount);
+		try {
+			for (int i = 0; i < connectionCount; i++) {
+				final OMEROSession session = sessions.get(i % sessions.size());
+				final OMEROFormat.Metadata image = meta.getImage(0);
+				final Connection connection =
+					new Connection(session.openPixels(image), image.getPixelsID());
+				connections.add(connection);
+				idle.add(connection);
+			}
+		}
+		catch (final ServerError err) {
+			closeStores();
+			throw err;
+		}
+		executor =
+			Executors.newFixedThreadPool(connectionCount, new ThreadFactory() {
+
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "OMERO-fetcher-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	// -- ParallelPlaneFetcher methods --
+
+	/** Fetches the given tiles, delivering them in the order requested. */
+	public Results fetchOrdered(final Iterable<TileCache.Key> keys) {
+		return new OrderedResults(keys.iterator());
+	}
+
+	/** Fetches the given tiles, delivering them as soon as each arrives. */
+	public Results fetchUnordered(final Iterable<TileCache.Key> keys) {
+		return new UnorderedResults(keys.iterator());
+	}
+
+	/** Gets the number of connections. */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/** Gets the number of bytes fetched over the given connection. */
+	public long getBytesRead(final int connection) {
+		return connections.get(connection).bytes;
+	}
+
+	/** Gets the time (in ns) the given connection spent fetching. */
+	public long getReadTime(final int connection) {
+		return connections.get(connection).time;
+	}
+
+	/** Gets the throughput (in bytes per second) of the given connection. */
+	public double getThroughput(final int connection) {
+		final Connection c = connections.get(connection);
+		return c.time == 0 ? 0 : c.bytes * 1e9 / c.time;
+	}
+
+	// -- Closeable methods --
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		closeStores();
+	}
+
+	// -- Helper methods --
+
+	private void closeStores() {
+		for (final Connection connection : connections) {
+			try {
+				connection.store.close();
+			}
+			catch (final ServerError err) {
+				// NB: No action needed.
+			}
+			catch (final Ice.LocalException exc) {
+				// NB: No action needed.
+			}
+		}
+	}
+
+	private Callable<Tile> task(final TileCache.Key key) {
+		return new Callable<Tile>() {
+
+			@Override
+			public Tile call() throws Exception {
+				final Connection connection = idle.take();
+				try {
+					return new Tile(key, connection.fetch(key));
+				}
+				finally {
+					idle.put(connection);
+				}
+			}
+		};
+	}
+
+	private static Tile get(final Future<Tile> future) throws FormatException {
+		try {
+			return future.get();
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new FormatException("Interrupted while fetching from OMERO", exc);
+		}
+		catch (final ExecutionException exc) {
+			throw new FormatException("Error communicating with OMERO", exc
+				.getCause());
+		}
+	}
+
+	// -- Helper classes --
+
+	/** A fetched tile. */
+	public static class Tile {
+
+		private final TileCache.Key key;
+		private final byte[] data;
+
+		public Tile(final TileCache.Key key, final byte[] data) {
+			this.key = key;
+			this.data = data;
+		}
+
+		public TileCache.Key getKey() {
+			return key;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	/** A stream of fetched tiles. */
+	public interface Results {
+
+		/** Gets whether more tiles remain to be delivered. */
+		boolean hasNext();
+
+		/** Gets the next tile, waiting for it to arrive if necessary. */
+		Tile next() throws FormatException;
+	}
+
+	private class OrderedResults implements Results {
+
+		private final Iterator<TileCache.Key> keys;
+		private final LinkedList<Future<Tile>> window =
+			new LinkedList<Future<Tile>>();
+
+		private OrderedResults(final Iterator<TileCache.Key> keys) {
+			this.keys = keys;
+			fill();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !window.isEmpty();
+		}
+
+		@Override
+		public Tile next() throws FormatException {
+			final Tile tile = get(window.removeFirst());
+			fill();
+			return tile;
+		}
+
+		private void fill() {
+			while (window.size() < capacity && keys.hasNext()) {
+				window.add(executor.submit(task(keys.next())));
+			}
+		}
+	}
+
+	private class UnorderedResults implements Results {
+
+		private final Iterator<TileCache.Key> keys;
+		private final CompletionService<Tile> completion =
+			new ExecutorCompletionService<Tile>(executor);
+		private int outstanding;
+
+		private UnorderedResults(final Iterator<TileCache.Key> keys) {
+			this.keys = keys;
+			fill();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return outstanding > 0;
+		}
+
+		@Override
+		public Tile next() throws FormatException {
+			final Future<Tile> future;
+			try {
+				future = completion.take();
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new FormatException("Interrupted while fetching from OMERO",
+					exc);
+			}
+			outstanding--;
+			final Tile tile = get(future);
+			fill();
+			return tile;
+		}
+
+		private void fill() {
+			while (outstanding < capacity && keys.hasNext()) {
+				completion.submit(task(keys.next()));
+				outstanding++;
+			}
+		}
+	}
+
+	/** A raw pixels store, with its throughput statistics. */
+	private class Connection {
+
+		private final RawPixelsStorePrx store;
+
+		/** The pixels ID the store is set to. */
+		private long pixelsID;
+
+		/** The image index whose resolution level the store is set to. */
+		private int resolution;
+
+		private volatile long bytes, time;
+
+		private Connection(final RawPixelsStorePrx store, final long pixelsID) {
+			this.store = store;
+			this.pixelsID = pixelsID;
+		}
+
+		private byte[] fetch(final TileCache.Key key) throws ServerError {
+			final long start = System.nanoTime();
+			if (key.getPixelsID() != pixelsID) {
+				// NB: The tiles of a dataset or plate span many pixels sets.
+				store.setPixelsId(key.getPixelsID(), false);
+				pixelsID = key.getPixelsID();
+				resolution = 0;
+			}
+			if (key.getLevel() != resolution) {
+				final Integer levels = resolutionLevels.get(key.getPixelsID());
+				if (levels == null) {
+					throw new IllegalArgumentException("Pixels " + key.getPixelsID() +
+						" have no known resolution levels");
+				}
+				store.setResolutionLevel(levels - 1 - key.getLevel());
+				resolution = key.getLevel();
+			}
+			final byte[] tile =
+				store.getTile(key.getZ(), key.getC(), key.getT(), key.getX(), key
+					.getY(), key.getW(), key.getH());
+			time += System.nanoTime() - start;
+			bytes += tile.length;
+			return tile;
+		}
+	}
+
+}
@@ -0,0 +1,382 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.util.FormatTools;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes pixels as OMERO stores them (big-endian) into a given byte order,
+ * optionally converting them to another pixel type.
+ * <p>
+ * Pixels are decoded in chunks: each is bulk-read into a primitive array
+ * through a typed view of the source, widened to {@code double} and narrowed
+ * to the target type in simple loops the JIT can vectorize, then bulk-written
+ * through a typed view of the destination. The chunk arrays of each thread
+ * are kept for reuse, so a decoder allocates nothing per call but views. When
+ * only the byte order changes, pixels are copied between the views directly.
+ * Integer targets are rounded, and clamped to their range.
+ * </p>
+ */
+public class PixelDecoder {
+
+	// -- Constants --
+
+	/** The number of pixels decoded per chunk. */
+	private static final int CHUNK = 4096;
+
+	// -- Fields --
+
+	private final int sourceType;
+	private final int targetType;
+	private final ByteOrder order;
+	private final int sourceBpp;
+	private final int targetBpp;
+
+	/** The range of an integer target type. */
+	private final long min, max;
+
+	/** The chunk arrays of each thread. */
+	private final ThreadLocal<Chunk> chunks = new ThreadLocal<Chunk>() {
+
+		@Override
+		protected Chunk initialValue() {
+			return new Chunk(sourceType, targetType);
+		}
+	};
+
+	// -- Constructors --
+
+	/**
+	 * @param sourceType The {@link FormatTools} pixel type as stored.
+	 * @param targetType The {@link FormatTools} pixel type to decode to.
+	 * @param order The byte order to decode to.
+	 * @throws IllegalArgumentException if the types cannot be converted.
+	 */
+	public PixelDecoder(final int sourceType, final int targetType,
+		final ByteOrder order)
+	{
+		if (sourceType != targetType &&
+			(sourceType == FormatTools.BIT || targetType == FormatTools.BIT))
+		{
+			throw new IllegalArgumentException("Cannot convert bit pixels");
+		}
+		this.sourceType = sourceType;
+		this.targetType = targetType;
+		this.order = order;
+		sourceBpp = FormatTools.getBytesPerPixel(sourceType);
+		targetBpp = FormatTools.getBytesPerPixel(targetType);
+		final long[] range = range(targetType);
+		min = range[0];
+		max = range[1];
+	}
+
+	// -- PixelDecoder methods --
+
+	public int getSourceBytesPerPixel() {
+		return sourceBpp;
+	}
+
+	public int getTargetBytesPerPixel() {
+		return targetBpp;
+	}
+
+	/** Gets whether decoding leaves the pixels as they are. */
+	public boolean isIdentity() {
+		return sourceType == targetType &&
+			(sourceBpp == 1 || order == ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Gets whether pixels may be decoded in place, with the source and
+	 * destination sharing one buffer.
+	 */
+	public boolean isInPlace() {
+		return sourceBpp == targetBpp;
+	}
+
+	/**
+	 * Decodes the given number of pixels from the source into the destination,
+	 * advancing the position of both. The byte orders of the buffers are
+	 * ignored.
+	 */
+	public void decode(final ByteBuffer source, final ByteBuffer dest,
+		final int count)
+	{
+		final int sourceLength = count * sourceBpp;
+		final int targetLength = count * targetBpp;
+		final ByteBuffer src = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+		src.limit(src.position() + sourceLength);
+		final ByteBuffer dst = dest.duplicate().order(order);
+		dst.limit(dst.position() + targetLength);
+
+		if (sourceType == targetType) swap(src, dst);
+		else convert(src, dst, count);
+
+		source.position(source.position() + sourceLength);
+		dest.position(dest.position() + targetLength);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Copies pixels of the same type, changing only their byte order, from one
+	 * typed view to the other.
+	 */
+	private void swap(final ByteBuffer src, final ByteBuffer dst) {
+		switch (sourceBpp) {
+			case 2:
+				dst.asShortBuffer().put(src.asShortBuffer());
+				break;
+			case 4:
+				dst.asIntBuffer().put(src.asIntBuffer());
+				break;
+			case 8:
+				dst.asLongBuffer().put(src.asLongBuffer());
+				break;
+			default:
+				// NB: Single bytes have no byte order.
+				dst.put(src);
+		}
+	}
+
+	/** Converts pixels to the target type, in chunks. */
+	private void convert(final ByteBuffer src, final ByteBuffer dst,
+		final int count)
+	{
+		final Chunk chunk = chunks.get();
+		final Buffer sourceView = view(src, sourceType);
+		final Buffer targetView = view(dst, targetType);
+		for (int i = 0; i < count; i += CHUNK) {
+			final int len = Math.min(CHUNK, count - i);
+			load(sourceView, chunk.in, len);
+			widen(chunk.in, chunk.values, len);
+			narrow(chunk.values, chunk.out, len);
+			store(targetView, chunk.out, len);
+		}
+	}
+
+	/** Widens a chunk of source pixels to double precision. */
+	private void widen(final Object in, final double[] values, final int len) {
+		switch (sourceType) {
+			case FormatTools.INT8: {
+				final byte[] a = (byte[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i];
+				break;
+			}
+			case FormatTools.UINT8: {
+				final byte[] a = (byte[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i] & 0xff;
+				break;
+			}
+			case FormatTools.INT16: {
+				final short[] a = (short[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i];
+				break;
+			}
+			case FormatTools.UINT16: {
+				final short[] a = (short[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i] & 0xffff;
+				break;
+			}
+			case FormatTools.INT32: {
+				final int[] a = (int[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i];
+				break;
+			}
+			case FormatTools.UINT32: {
+				final int[] a = (int[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i] & 0xffffffffL;
+				break;
+			}
+			case FormatTools.FLOAT: {
+				final float[] a = (float[]) in;
+				for (int i = 0; i < len; i++) values[i] = a[i];
+				break;
+			}
+			default:
+				System.arraycopy(in, 0, values, 0, len);
+		}
+	}
+
+	/** Narrows a chunk of double precision values to the target type. */
+	private void narrow(final double[] values, final Object out, final int len)
+	{
+		switch (targetType) {
+			case FormatTools.FLOAT: {
+				final float[] a = (float[]) out;
+				for (int i = 0; i < len; i++) a[i] = (float) values[i];
+				break;
+			}
+			case FormatTools.DOUBLE:
+				System.arraycopy(values, 0, out, 0, len);
+				break;
+			case FormatTools.INT8:
+			case FormatTools.UINT8: {
+				final byte[] a = (byte[]) out;
+				for (int i = 0; i < len; i++) {
+					a[i] = (byte) clamp(values[i], min, max);
+				}
+				break;
+			}
+			case FormatTools.INT16:
+			case FormatTools.UINT16: {
+				final short[] a = (short[]) out;
+				for (int i = 0; i < len; i++) {
+					a[i] = (short) clamp(values[i], min, max);
+				}
+				break;
+			}
+			default: {
+				final int[] a = (int[]) out;
+				for (int i = 0; i < len; i++) {
+					a[i] = (int) clamp(values[i], min, max);
+				}
+			}
+		}
+	}
+
+	private static long clamp(final double value, final long min,
+		final long max)
+	{
+		return (long) Math.max(min, Math.min(max, Math.rint(value)));
+	}
+
+	/** Gets the range of values of the given integer pixel type. */
+	private static long[] range(final int pixelType) {
+		switch (pixelType) {
+			case FormatTools.INT8:
+				return new long[] { Byte.MIN_VALUE, Byte.MAX_VALUE };
+			case FormatTools.UINT8:
+				return new long[] { 0, 0xffL };
+			case FormatTools.INT16:
+				return new long[] { Short.MIN_VALUE, Short.MAX_VALUE };
+			case FormatTools.UINT16:
+				return new long[] { 0, 0xffffL };
+			case FormatTools.UINT32:
+				return new long[] { 0, 0xffffffffL };
+			default:
+				return new long[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+		}
+	}
+
+	/** Creates a primitive array holding pixels of the given type. */
+	private static Object array(final int pixelType, final int length) {
+		switch (pixelType) {
+			case FormatTools.INT8:
+			case FormatTools.UINT8:
+				return new byte[length];
+			case FormatTools.INT16:
+			case FormatTools.UINT16:
+				return new short[length];
+			case FormatTools.FLOAT:
+				return new float[length];
+			case FormatTools.DOUBLE:
+				return new double[length];
+			default:
+				return new int[length];
+		}
+	}
+
+	/** Creates a typed view of the given buffer, for pixels of the given type. */
+	private static Buffer view(final ByteBuffer buffer,
+		final int pixelType)
+	{
+		switch (pixelType) {
+			case FormatTools.INT8:
+			case FormatTools.UINT8:
+				return buffer;
+			case FormatTools.INT16:
+			case FormatTools.UINT16:
+				return buffer.asShortBuffer();
+			case FormatTools.FLOAT:
+				return buffer.asFloatBuffer();
+			case FormatTools.DOUBLE:
+				return buffer.asDoubleBuffer();
+			default:
+				return buffer.asIntBuffer();
+		}
+	}
+
+	private static void load(final Buffer view, final Object array,
+		final int len)
+	{
+		if (view instanceof ByteBuffer) {
+			((ByteBuffer) view).get((byte[]) array, 0, len);
+		}
+		else if (view instanceof ShortBuffer) {
+			((ShortBuffer) view).get((short[]) array, 0, len);
+		}
+		else if (view instanceof FloatBuffer) {
+			((FloatBuffer) view).get((float[]) array, 0, len);
+		}
+		else if (view instanceof DoubleBuffer) {
+			((DoubleBuffer) view).get((double[]) array, 0, len);
+		}
+		else ((IntBuffer) view).get((int[]) array, 0, len);
+	}
+
+	private static void store(final Buffer view, final Object array,
+		final int len)
+	{
+		if (view instanceof ByteBuffer) {
+			((ByteBuffer) view).put((byte[]) array, 0, len);
+		}
+		else if (view instanceof ShortBuffer) {
+			((ShortBuffer) view).put((short[]) array, 0, len);
+		}
+		else if (view instanceof FloatBuffer) {
+			((FloatBuffer) view).put((float[]) array, 0, len);
+		}
+		else if (view instanceof DoubleBuffer) {
+			((DoubleBuffer) view).put((double[]) array, 0, len);
+		}
+		else ((IntBuffer) view).put((int[]) array, 0, len);
+	}
+
+	// -- Helper classes --
+
+	/** The arrays one thread decodes chunks of pixels in. */
+	private static class Chunk {
+
+		private final double[] values = new double[CHUNK];
+		private final Object in;
+		private final Object out;
+
+		private Chunk(final int sourceType, final int targetType) {
+			in = array(sourceType, CHUNK);
+			out = array(targetType, CHUNK);
+		}
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+/**
+ * A pool of raw pixels stores on one session, from which each read checks out
+ * a store for its own exclusive use.
+ * <p>
+ * A raw pixels store is a stateful server-side service (its pixels ID and
+ * resolution level are set per store), so it cannot serve two threads at
+ * once. Stores are opened on demand, up to a given number; beyond that,
+ * threads wait for one to come free. Idle stores are reused most recently
+ * released first, so that a single thread always gets the same store, along
+ * with its read-ahead and stack state.
+ * </p>
+ */
+public class PixelsStorePool implements Closeable {
+
+	// -- Fields --
+
+	private final OMEROSession session;
+
+	/** The image whose pixels new stores are set to. */
+	private final OMEROFormat.Metadata image;
+
+	/** Stores not currently checked out, most recently released first. */
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+	/** The number of stores open or being opened. */
+	private int size;
+
+	/** The number of stores checked out. */
+	private int leased;
+
+	private boolean closed;
+
+	// -- Constructors --
+
+	/**
+	 * @param session The session on which to open the raw pixels stores.
+	 * @param meta The metadata identifying the pixels set, or the pixels sets of
+	 *          a dataset or plate.
+	 */
+	public PixelsStorePool(final OMEROSession session,
+		final OMEROFormat.Metadata meta)
+	{
+		this.session = session;
+		image = meta.getImage(0);
+	}
+
+	// -- PixelsStorePool methods --
+
+	/**
+	 * Checks out a store, opening a new one if all are in use and fewer than
+	 * the given number are open, or else waiting for one to be released.
+	 *
+	 * @throws IllegalStateException if the pool is closed.
+	 */
+	public Connection acquire(final int maxSize) throws ServerError,
+		InterruptedException
+	{
+		synchronized (this) {
+			while (true) {
+				if (closed) throw new IllegalStateException("Pool is closed");
+				if (!idle.isEmpty()) {
+					leased++;
+					return idle.removeFirst();
+				}
+				if (size < Math.max(maxSize, 1)) break;
+				wait();
+			}
+			size++;
+			leased++;
+		}
+		// NB: Opening a store is a round trip; do not hold the lock meanwhile.
+		boolean success = false;
+		try {
+			final Connection connection =
+				new Connection(session, session.openPixels(image), image
+					.getPixelsID());
+			success = true;
+			return connection;
+		}
+		finally {
+			if (!success) {
+				synchronized (this) {
+					size--;
+					leased--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Returns a store checked out by {@link #acquire}. */
+	public synchronized void release(final Connection connection) {
+		leased--;
+		idle.addFirst(connection);
+		notifyAll();
+	}
+
+	/** Gets the number of stores open or being opened. */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/** Gets the session on which the stores are opened. */
+	public OMEROSession getSession() {
+		return session;
+	}
+
+	// -- Closeable methods --
+
+	/** Waits for all checked out stores to be released, then closes them all. */
+	@Override
+	public void close() {
+		final List<Connection> stores;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			boolean interrupted = false;
+			while (leased > 0) {
+				try {
+					wait();
+				}
+				catch (final InterruptedException exc) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			stores = new ArrayList<Connection>(idle);
+			idle.clear();
+			size = 0;
+		}
+		for (final Connection connection : stores) {
+			connection.close();
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * A raw pixels store, with the state the Reader keeps for it. Only the
+	 * thread which checked it out may use it.
+	 */
+	public static class Connection {
+
+		private final OMEROSession session;
+		private RawPixelsStorePrx store;
+
+		/** The pixels ID the store is set to. */
+		private long pixelsID;
+
+		/** The resolution level the store is set to; 0 is full resolution. */
+		private int level;
+
+		/** Whether the store was switched to compressed traffic. */
+		private boolean compressed;
+
+		private PlanePrefetcher prefetcher;
+		private StackStreamer streamer;
+
+		private Connection(final OMEROSession session,
+			final RawPixelsStorePrx store, final long pixelsID)
+		{
+			this.session = session;
+			this.store = store;
+			this.pixelsID = pixelsID;
+		}
+
+		/**
+		 * Gets the session the store was opened on. It stays open at least while
+		 * the store is checked out, since closing the pool waits for its return.
+		 */
+		public OMEROSession getSession() {
+			return session;
+		}
+
+		public RawPixelsStorePrx getStore() {
+			return store;
+		}
+
+		/**
+		 * Switches the store to the given pixels and resolution level. OMERO
+		 * numbers its levels from the smallest (0) to full resolution.
+		 *
+		 * @param level The resolution level, as a SCIFIO image index: 0 is full
+		 *          resolution.
+		 * @param levels The number of resolution levels of the pixels.
+		 */
+		public void select(final long pixelsID, final int level,
+			final int levels) throws ServerError
+		{
+			if (pixelsID != this.pixelsID) {
+				store.setPixelsId(pixelsID, false);
+				// NB: Pending read-ahead is for other pixels.
+				if (prefetcher != null) prefetcher.cancel();
+				this.pixelsID = pixelsID;
+				this.level = 0;
+			}
+			if (level == this.level) return;
+			store.setResolutionLevel(levels - 1 - level);
+			// NB: Pending read-ahead is for another level.
+			if (prefetcher != null) prefetcher.cancel();
+			this.level = level;
+		}
+
+		/** Switches the store to compressed traffic, if not already. */
+		public void compress() {
+			if (compressed) return;
+			store = OMEROSession.compress(store, true);
+			// NB: The read-ahead and stack helpers hold the old proxy.
+			if (prefetcher != null) prefetcher.cancel();
+			prefetcher = null;
+			streamer = null;
+			compressed = true;
+		}
+
+		/**
+		 * Collects the read-ahead tile with the given key.
+		 *
+		 * @return The tile, or null if it was not read ahead.
+		 */
+		public byte[] take(final TileCache.Key key) {
+			return prefetcher == null ? null : prefetcher.take(key);
+		}
+
+		/**
+		 * Reads ahead of the given tiles, which must be of the pixels and level
+		 * the store was last {@link #select selected} for.
+		 *
+		 * @see PlanePrefetcher#prefetch
+		 */
+		public void prefetch(final List<TileCache.Key> served, final int[] sizes,
+			final int count, final TileCache cache)
+		{
+			if (prefetcher == null) prefetcher = new PlanePrefetcher(store);
+			prefetcher.prefetch(served, sizes, count, cache, pixelsID, level);
+		}
+
+		/** Gets the stack streamer of the store, creating it if needed. */
+		public StackStreamer getStreamer() {
+			if (streamer == null) streamer = new StackStreamer(store);
+			return streamer;
+		}
+
+		private void close() {
+			if (prefetcher != null) prefetcher.cancel();
+			try {
+				store.close();
+			}
+			catch (final ServerError err) {
+				// NB: No action needed.
+			}
+			catch (final Ice.LocalException exc) {
+				// NB: No action needed.
+			}
+		}
+	}
+
+}
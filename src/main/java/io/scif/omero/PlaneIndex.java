@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.ImageMetadata;
+
+import java.util.List;
+
+import net.imglib2.meta.Axes;
+import net.imglib2.meta.AxisType;
+import net.imglib2.meta.CalibratedAxis;
+
+/**
+ * Maps the plane indices of an image to its Z, C and T positions, by strides
+ * computed once from its dimension order. Mapping a plane allocates nothing.
+ */
+public class PlaneIndex {
+
+	// -- Fields --
+
+	private final long planeCount;
+	private final long strideZ, strideC, strideT;
+	private final long sizeZ, sizeC, sizeT;
+
+	// -- Constructors --
+
+	/** Computes the plane index of the given image, in its dimension order. */
+	public PlaneIndex(final ImageMetadata imageMeta) {
+		final List<CalibratedAxis> axes = imageMeta.getAxesNonPlanar();
+		final long[] lengths = imageMeta.getAxesLengthsNonPlanar();
+		final long[] strides = new long[lengths.length];
+		long stride = 1;
+		for (int i = 0; i < lengths.length; i++) {
+			strides[i] = stride;
+			stride *= lengths[i];
+		}
+		planeCount = stride;
+		final int z = indexOf(axes, Axes.Z);
+		final int c = indexOf(axes, Axes.CHANNEL);
+		final int t = indexOf(axes, Axes.TIME);
+		// NB: An absent axis maps every plane to position 0.
+		strideZ = z < 0 ? 1 : strides[z];
+		strideC = c < 0 ? 1 : strides[c];
+		strideT = t < 0 ? 1 : strides[t];
+		sizeZ = z < 0 ? 1 : lengths[z];
+		sizeC = c < 0 ? 1 : lengths[c];
+		sizeT = t < 0 ? 1 : lengths[t];
+	}
+
+	// -- PlaneIndex methods --
+
+	public long getPlaneCount() {
+		return planeCount;
+	}
+
+	/**
+	 * Gets the Z position of the given plane.
+	 *
+	 * @throws IllegalArgumentException if the plane index is out of bounds.
+	 */
+	public int getZ(final long planeIndex) {
+		return position(planeIndex, strideZ, sizeZ);
+	}
+
+	/**
+	 * Gets the C position of the given plane.
+	 *
+	 * @throws IllegalArgumentException if the plane index is out of bounds.
+	 */
+	public int getC(final long planeIndex) {
+		return position(planeIndex, strideC, sizeC);
+	}
+
+	/**
+	 * Gets the T position of the given plane.
+	 *
+	 * @throws IllegalArgumentException if the plane index is out of bounds.
+	 */
+	public int getT(final long planeIndex) {
+		return position(planeIndex, strideT, sizeT);
+	}
+
+	// -- Helper methods --
+
+	private int position(final long planeIndex, final long stride,
+		final long size)
+	{
+		if (planeIndex < 0 || planeIndex >= planeCount) {
+			throw new IllegalArgumentException("Invalid plane index: " +
+				planeIndex + " of " + planeCount);
+		}
+		return (int) (planeIndex / stride % size);
+	}
+
+	private static int indexOf(final List<CalibratedAxis> axes,
+		final AxisType type)
+	{
+		for (int i = 0; i < axes.size(); i++) {
+			if (axes.get(i).type() == type) return i;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import io.scif.ByteArrayPlane;
+import io.scif.ImageMetadata;
+import io.scif.util.FormatTools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.Context;
+
+/**
+ * A bounded pool of {@link ByteArrayPlane}s, so that steady-state reading
+ * allocates no pixel buffers.
+ * <p>
+ * {@link OMEROFormat.Reader} fills a plane's existing buffer when its size
+ * fits the requested region, so planes obtained via {@link #acquire} and
+ * handed back via {@link #release} once consumed are reused indefinitely:
+ * </p>
+ *
+ * <pre>
+ * ByteArrayPlane plane = pool.acquire(imageMeta, planeMin, planeMax);
+ * reader.openPlane(imageIndex, planeIndex, plane, planeMin, planeMax, config);
+ * ...
+ * pool.release(plane);
+ * </pre>
+ */
+public class PlanePool {
+
+	// -- Constants --
+
+	/** Default budget for idle planes: 64 MiB. */
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	// -- Fields --
+
+	private final Context context;
+
+	/** Idle planes, by buffer length. */
+	private final Map<Integer, List<ByteArrayPlane>> idle =
+		new HashMap<Integer, List<ByteArrayPlane>>();
+
+	private long budget = DEFAULT_BUDGET;
+	private long size;
+
+	// -- Constructors --
+
+	public PlanePool(final Context context) {
+		this.context = context;
+	}
+
+	// -- PlanePool methods --
+
+	/**
+	 * Obtains a plane for the given region, reusing an idle plane of the same
+	 * size if there is one.
+	 */
+	public ByteArrayPlane acquire(final ImageMetadata imageMeta,
+		final long[] planeMin, final long[] planeMax)
+	{
+		final ByteArrayPlane plane = take(length(imageMeta, planeMax));
+		if (plane == null) {
+			return new ByteArrayPlane(context, imageMeta, planeMin, planeMax);
+		}
+		plane.populate(imageMeta, plane.getData(), planeMin, planeMax);
+		return plane;
+	}
+
+	/**
+	 * Hands back a plane which is no longer needed. The plane is kept for reuse
+	 * if the budget allows.
+	 */
+	public synchronized void release(final ByteArrayPlane plane) {
+		final byte[] data = plane.getData();
+		if (data == null || size + data.length > budget) return;
+		List<ByteArrayPlane> planes = idle.get(data.length);
+		if (planes == null) {
+			planes = new ArrayList<ByteArrayPlane>();
+			idle.put(data.length, planes);
+		}
+		planes.add(plane);
+		size += data.length;
+	}
+
+	/** Discards all idle planes. */
+	public synchronized void clear() {
+		idle.clear();
+		size = 0;
+	}
+
+	/** Gets the budget in bytes for idle planes. */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Sets the budget in bytes for idle planes; zero disables pooling. */
+	public synchronized void setBudget(final long budget) {
+		this.budget = budget;
+		if (size > budget) clear();
+	}
+
+	/** Gets the number of bytes held by idle planes. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	// -- Helper methods --
+
+	private synchronized ByteArrayPlane take(final int length) {
+		final List<ByteArrayPlane> planes = idle.get(length);
+		if (planes == null || planes.isEmpty()) return null;
+		size -= length;
+		return planes.remove(planes.size() - 1);
+	}
+
+	private static int length(final ImageMetadata imageMeta,
+		final long[] planeMax)
+	{
+		long length = FormatTools.getBytesPerPixel(imageMeta.getPixelType());
+		// NB: The maximum of a region holds its lengths, not its end.
+		for (final long l : planeMax) {
+			length *= l;
+		}
+		return (int) length;
+	}
+
+}
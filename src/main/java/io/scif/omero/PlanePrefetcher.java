@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+/**
+ * Speculatively fetches the planes following the most recently read one, along
+ * the most recently traversed Z, C or T axis.
+ * <p>
+ * Fetches are issued as asynchronous Ice calls ({@code begin_getTile}), so no
+ * extra threads are needed; the pending calls form the read-ahead buffer, and
+ * their results are collected ({@code end_getTile}) when the matching plane is
+ * actually requested.
+ * </p>
+ */
+public class PlanePrefetcher {
+
+	// -- Fields --
+
+	private final RawPixelsStorePrx store;
+
+	/** Pending fetches, in the order they were issued. */
+	private final Map<TileCache.Key, Fetch> pending =
+		new LinkedHashMap<TileCache.Key, Fetch>();
+
+	/** The most recently served tile. */
+	private TileCache.Key last;
+
+	/** The axis being traversed: 0 = Z, 1 = C, 2 = T. */
+	private int axis = -1;
+
+	/** The direction of traversal: +1 or -1. */
+	private int step = 1;
+
+	// -- Constructors --
+
+	public PlanePrefetcher(final RawPixelsStorePrx store) {
+		this.store = store;
+	}
+
+	// -- PlanePrefetcher methods --
+
+	/**
+	 * Collects the prefetched tile with the given key, waiting for it to arrive
+	 * if necessary.
+	 *
+	 * @return The tile, or null if it was not prefetched, was fetched from
+	 *         other pixels or another level than the key's, or the fetch
+	 *         failed.
+	 */
+	public synchronized byte[] take(final TileCache.Key key) {
+		final Fetch fetch = pending.remove(key);
+		if (fetch == null) return null;
+		if (fetch.pixelsID != key.getPixelsID() || fetch.level != key.getLevel())
+		{
+			return null;
+		}
+		try {
+			return store.end_getTile(fetch.result);
+		}
+		catch (final ServerError err) {
+			return null;
+		}
+		catch (final Ice.LocalException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Notes that the given tiles of one plane were served, and begins fetching
+	 * the same tiles of the planes which are likely to be requested next.
+	 *
+	 * @param served The tiles which were just served.
+	 * @param sizes The Z, C and T lengths of the image.
+	 * @param count The maximum number of planes to read ahead.
+	 * @param cache The tile cache, whose tiles need not be fetched; or null.
+	 * @param pixelsID The pixels ID the store is set to.
+	 * @param level The resolution level the store is set to, as in the keys.
+	 */
+	public synchronized void prefetch(final List<TileCache.Key> served,
+		final int[] sizes, final int count, final TileCache cache,
+		final long pixelsID, final int level)
+	{
+		if (served.isEmpty()) return;
+		final TileCache.Key first = served.get(0);
+		// NB: The store would serve tiles of other pixels under these keys.
+		if (first.getPixelsID() != pixelsID || first.getLevel() != level) return;
+		updateDirection(first, sizes);
+		last = first;
+
+		// compute the tiles which should be in flight
+		final Map<TileCache.Key, Fetch> wanted =
+			new LinkedHashMap<TileCache.Key, Fetch>();
+		final int[] pos = { first.getZ(), first.getC(), first.getT() };
+		for (int i = 0; i < count; i++) {
+			pos[axis] += step;
+			if (pos[axis] < 0 || pos[axis] >= sizes[axis]) break;
+			for (final TileCache.Key tile : served) {
+				final TileCache.Key key = tile.atPlane(pos[0], pos[1], pos[2]);
+				wanted.put(key, pending.get(key));
+			}
+		}
+
+		// discard fetches which are no longer of interest
+		// NB: Ice 3.4 cannot cancel an asynchronous call; its result is ignored.
+		final Iterator<TileCache.Key> iter = pending.keySet().iterator();
+		while (iter.hasNext()) {
+			if (!wanted.containsKey(iter.next())) iter.remove();
+		}
+
+		// begin the missing fetches
+		for (final Map.Entry<TileCache.Key, Fetch> entry : wanted.entrySet()) {
+			if (entry.getValue() != null) continue;
+			final TileCache.Key key = entry.getKey();
+			if (cache != null && cache.contains(key)) continue;
+			try {
+				pending.put(key, new Fetch(store.begin_getTile(key.getZ(), key
+					.getC(), key.getT(), key.getX(), key.getY(), key.getW(), key
+					.getH()), pixelsID, level));
+			}
+			catch (final Ice.LocalException exc) {
+				// NB: Prefetching is best effort; the plane will be read on demand.
+				break;
+			}
+		}
+	}
+
+	/** Discards all pending fetches. */
+	public synchronized void cancel() {
+		pending.clear();
+		last = null;
+		axis = -1;
+		step = 1;
+	}
+
+	// -- Helper methods --
+
+	/** Infers the axis and direction of traversal from the last two reads. */
+	private void updateDirection(final TileCache.Key served, final int[] sizes)
+	{
+		if (last != null && last.getPixelsID() == served.getPixelsID() &&
+			last.getLevel() == served.getLevel())
+		{
+			final int dz = served.getZ() - last.getZ();
+			final int dc = served.getC() - last.getC();
+			final int dt = served.getT() - last.getT();
+			if (dz != 0 && dc == 0 && dt == 0) set(0, dz);
+			else if (dz == 0 && dc != 0 && dt == 0) set(1, dc);
+			else if (dz == 0 && dc == 0 && dt != 0) set(2, dt);
+		}
+		if (axis < 0) {
+			// NB: Until the traversal is known, assume the first non-trivial of Z,
+			// then T, then C.
+			if (sizes[0] > 1) set(0, 1);
+			else if (sizes[2] > 1) set(2, 1);
+			else set(1, 1);
+		}
+	}
+
+	private void set(final int a, final int delta) {
+		axis = a;
+		step = delta < 0 ? -1 : 1;
+	}
+
+	// -- Helper classes --
+
+	/** A pending fetch, with the pixels and level the store was set to. */
+	private static class Fetch {
+
+		private final Ice.AsyncResult result;
+		private final long pixelsID;
+		private final int level;
+
+		private Fetch(final Ice.AsyncResult result, final long pixelsID,
+			final int level)
+		{
+			this.result = result;
+			this.pixelsID = pixelsID;
+			this.level = level;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+/**
+ * Serves sequentially read planes from whole timepoints, stacks or Z chunks,
+ * each fetched in a single call.
+ * <p>
+ * Planes are considered sequential when they follow each other in Z, C, T
+ * order within one pixels set. Once two such planes are read, the rest of the
+ * unit is fetched at once: the whole timepoint ({@code getTimepoint}) or Z
+ * stack ({@code getStack}) if it fits the byte budget, or else as many planes
+ * of the stack as do ({@code getHypercube}). Planes are handed out as slices
+ * of the fetched buffer, without copying.
+ * </p>
+ */
+public class StackStreamer {
+
+	// -- Fields --
+
+	private final RawPixelsStorePrx store;
+
+	/** The most recently requested plane. */
+	private long lastPixelsID;
+	private int lastIndex = -1, lastT = -1;
+
+	/** The buffered chunk: planes [first, first + count) of one timepoint. */
+	private byte[] chunk;
+	private long chunkPixelsID;
+	private int chunkT, chunkFirst, chunkCount;
+
+	// -- Constructors --
+
+	public StackStreamer(final RawPixelsStorePrx store) {
+		this.store = store;
+	}
+
+	// -- StackStreamer methods --
+
+	/**
+	 * Obtains the given plane from the buffered chunk, fetching the next chunk
+	 * if access is sequential.
+	 *
+	 * @param sizes The X, Y, Z, C and T lengths of the pixels.
+	 * @param bpp The number of bytes per pixel.
+	 * @param budget The maximum number of bytes to fetch in one call.
+	 * @return A read-only view of the plane, or null if it is not buffered and
+	 *         access is not sequential.
+	 */
+	public ByteBuffer read(final long pixelsID, final int z, final int c,
+		final int t, final int[] sizes, final int bpp, final long budget)
+		throws ServerError
+	{
+		final int sizeZ = sizes[2], sizeC = sizes[3];
+		final int planeSize = sizes[0] * sizes[1] * bpp;
+		final int index = c * sizeZ + z;
+
+		final boolean sequential =
+			pixelsID == lastPixelsID &&
+				(t == lastT && index == lastIndex + 1 || t == lastT + 1 &&
+					index == 0 && lastIndex == sizeZ * sizeC - 1);
+		lastPixelsID = pixelsID;
+		lastIndex = index;
+		lastT = t;
+
+		if (!isBuffered(pixelsID, t, index)) {
+			if (!sequential || planeSize > budget) return null;
+			fetch(pixelsID, z, c, t, sizes, planeSize, budget);
+		}
+		final int offset = (index - chunkFirst) * planeSize;
+		return ByteBuffer.wrap(chunk, offset, planeSize).slice()
+			.asReadOnlyBuffer();
+	}
+
+	/** Discards the buffered chunk. */
+	public void reset() {
+		chunk = null;
+		lastIndex = lastT = -1;
+	}
+
+	// -- Helper methods --
+
+	private boolean isBuffered(final long pixelsID, final int t,
+		final int index)
+	{
+		return chunk != null && pixelsID == chunkPixelsID && t == chunkT &&
+			index >= chunkFirst && index < chunkFirst + chunkCount;
+	}
+
+	/** Fetches the largest unit starting at the given plane within budget. */
+	private void fetch(final long pixelsID, final int z, final int c,
+		final int t, final int[] sizes, final int planeSize, final long budget)
+		throws ServerError
+	{
+		final int sizeZ = sizes[2], sizeC = sizes[3];
+		final long stackSize = (long) sizeZ * planeSize;
+		// NB: Drop the old chunk first, so that both are never held at once.
+		chunk = null;
+		if (stackSize * sizeC <= budget) {
+			chunk = store.getTimepoint(t);
+			chunkFirst = 0;
+			chunkCount = sizeZ * sizeC;
+		}
+		else if (stackSize <= budget) {
+			chunk = store.getStack(c, t);
+			chunkFirst = c * sizeZ;
+			chunkCount = sizeZ;
+		}
+		else {
+			final int count = (int) Math.min(sizeZ - z, budget / planeSize);
+			chunk =
+				store.getHypercube(Arrays.asList(0, 0, z, c, t), Arrays.asList(
+					sizes[0], sizes[1], count, 1, 1), Arrays.asList(1, 1, 1, 1, 1));
+			chunkFirst = c * sizeZ + z;
+			chunkCount = count;
+		}
+		chunkPixelsID = pixelsID;
+		chunkT = t;
+	}
+
+}
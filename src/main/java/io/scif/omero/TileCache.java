@@ -0,0 +1,552 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded, least-recently-used cache of pixel tiles.
+ * <p>
+ * Tiles are kept in memory up to a byte budget, either on the Java heap or
+ * off-heap in direct {@link ByteBuffer}s. When a spill directory is set,
+ * tiles evicted from memory are written there (subject to a separate disk
+ * budget) and read back on demand.
+ * </p>
+ */
+public class TileCache {
+
+	// -- Constants --
+
+	/** Default memory budget: 64 MiB. */
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	// -- Fields --
+
+	/** Cached tiles in memory, in access order; values are byte[] or buffers. */
+	private final LinkedHashMap<Key, Object> memory =
+		new LinkedHashMap<Key, Object>(16, 0.75f, true);
+
+	/** Spilled tiles on disk, in access order. */
+	private final LinkedHashMap<Key, File> disk =
+		new LinkedHashMap<Key, File>(16, 0.75f, true);
+
+	private long budget = DEFAULT_BUDGET;
+	private long size;
+
+	private boolean offHeap;
+
+	private File spillDirectory;
+	private long spillBudget;
+	private long spillSize;
+
+	private long hits, misses, evictions;
+
+	// -- TileCache methods --
+
+	/**
+	 * Gets a copy of the cached tile with the given key, or null if the tile is
+	 * not cached.
+	 */
+	public synchronized byte[] get(final Key key) {
+		final Object value = memory.get(key);
+		if (value != null) {
+			hits++;
+			return copy(value);
+		}
+		final File file = disk.get(key);
+		if (file != null) {
+			final byte[] tile = readFile(file);
+			if (tile != null) {
+				hits++;
+				// promote back into memory
+				removeSpilled(key);
+				put(key, tile);
+				return tile;
+			}
+			removeSpilled(key);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Gets a read-only view of the cached tile with the given key, without
+	 * copying it; or null if the tile is not cached.
+	 */
+	public synchronized ByteBuffer view(final Key key) {
+		final Object value = memory.get(key);
+		if (value != null) {
+			hits++;
+			if (value instanceof byte[]) {
+				return ByteBuffer.wrap((byte[]) value).asReadOnlyBuffer();
+			}
+			return ((ByteBuffer) value).asReadOnlyBuffer();
+		}
+		final byte[] tile = get(key);
+		return tile == null ? null : ByteBuffer.wrap(tile).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets whether the tile with the given key is cached, without affecting the
+	 * hit and miss counts.
+	 */
+	public synchronized boolean contains(final Key key) {
+		return memory.containsKey(key) || disk.containsKey(key);
+	}
+
+	/** Adds the given tile to the cache. */
+	public synchronized void put(final Key key, final byte[] tile) {
+		if (tile == null) return;
+		// NB: Moving the tile off-heap copies it anyway.
+		adopt(key, offHeap ? tile : tile.clone());
+	}
+
+	/**
+	 * Adds the given tile to the cache without copying it. The caller must not
+	 * modify the array afterwards.
+	 */
+	public synchronized void adopt(final Key key, final byte[] tile) {
+		if (tile == null || tile.length > budget) return;
+		remove(key);
+		memory.put(key, offHeap ? toBuffer(tile) : tile);
+		size += tile.length;
+		evict();
+	}
+
+	/**
+	 * Discards all cached tiles of the given pixels ID on the given server, as
+	 * read by any user.
+	 */
+	public synchronized void invalidate(final OMEROCredentials credentials,
+		final long pixelsID)
+	{
+		final String server = host(credentials);
+		final List<Key> keys = new ArrayList<Key>();
+		for (final Key key : memory.keySet()) {
+			if (key.matches(server, pixelsID)) keys.add(key);
+		}
+		for (final Key key : disk.keySet()) {
+			if (key.matches(server, pixelsID)) keys.add(key);
+		}
+		for (final Key key : keys) {
+			remove(key);
+		}
+	}
+
+	/** Discards all cached tiles. */
+	public synchronized void clear() {
+		memory.clear();
+		size = 0;
+		for (final File file : disk.values()) {
+			file.delete();
+		}
+		disk.clear();
+		spillSize = 0;
+	}
+
+	/** Gets the memory budget in bytes. */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Sets the memory budget in bytes; zero disables caching. */
+	public synchronized void setBudget(final long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	/** Gets whether tiles are stored outside of the Java heap. */
+	public synchronized boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Sets whether tiles are stored outside of the Java heap. Only affects
+	 * tiles cached from now on.
+	 */
+	public synchronized void setOffHeap(final boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/** Gets the directory evicted tiles are spilled to, or null if none. */
+	public synchronized File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets the directory evicted tiles are spilled to. Null disables spilling
+	 * and discards any previously spilled tiles.
+	 */
+	public synchronized void setSpillDirectory(final File spillDirectory) {
+		if (spillDirectory != null && !spillDirectory.isDirectory() &&
+			!spillDirectory.mkdirs())
+		{
+			throw new IllegalArgumentException("Invalid spill directory: " +
+				spillDirectory);
+		}
+		for (final File file : disk.values()) {
+			file.delete();
+		}
+		disk.clear();
+		spillSize = 0;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/** Gets the disk budget in bytes for spilled tiles. */
+	public synchronized long getSpillBudget() {
+		return spillBudget;
+	}
+
+	/** Sets the disk budget in bytes for spilled tiles. */
+	public synchronized void setSpillBudget(final long spillBudget) {
+		this.spillBudget = spillBudget;
+		evictSpilled();
+	}
+
+	/** Gets the number of bytes currently cached in memory. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/** Gets the number of bytes currently spilled to disk. */
+	public synchronized long getSpillSize() {
+		return spillSize;
+	}
+
+	/** Gets the number of lookups which found their tile. */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/** Gets the number of lookups which did not find their tile. */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/** Gets the number of tiles evicted from memory. */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Gets the user and server of the given credentials, as identified in keys.
+	 * OMERO permissions differ between users, so cached data are only served
+	 * to the user who read them. Users are identified by a digest of their
+	 * name, or of the session ID for a session given by ID alone, which keeps
+	 * the ID out of keys and file names; such sessions share no cached data.
+	 */
+	public static String server(final OMEROCredentials credentials) {
+		final String identity;
+		if (credentials.getUser() != null) {
+			identity = digest("user:" + credentials.getUser());
+		}
+		else if (credentials.getSessionID() != null) {
+			identity = digest("session:" + credentials.getSessionID());
+		}
+		else identity = "anonymous";
+		return identity + host(credentials);
+	}
+
+	/**
+	 * Gets the suffix shared by the {@link #server} of all users of the given
+	 * server.
+	 */
+	static String host(final OMEROCredentials credentials) {
+		return "@" + credentials.getServer() + ":" + credentials.getPort();
+	}
+
+	// -- Helper methods --
+
+	private static String digest(final String s) {
+		final byte[] bytes;
+		try {
+			bytes = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+		}
+		catch (final NoSuchAlgorithmException exc) {
+			throw new IllegalStateException(exc);
+		}
+		catch (final UnsupportedEncodingException exc) {
+			throw new IllegalStateException(exc);
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			sb.append(String.format("%02x", bytes[i] & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private void remove(final Key key) {
+		final Object value = memory.remove(key);
+		if (value != null) size -= length(value);
+		removeSpilled(key);
+	}
+
+	private void removeSpilled(final Key key) {
+		final File file = disk.remove(key);
+		if (file == null) return;
+		spillSize -= file.length();
+		file.delete();
+	}
+
+	/** Evicts least recently used tiles until the memory budget is met. */
+	private void evict() {
+		final Iterator<Map.Entry<Key, Object>> iter =
+			memory.entrySet().iterator();
+		while (size > budget && iter.hasNext()) {
+			final Map.Entry<Key, Object> entry = iter.next();
+			iter.remove();
+			size -= length(entry.getValue());
+			evictions++;
+			spill(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/** Evicts least recently used spilled tiles until the disk budget is met. */
+	private void evictSpilled() {
+		final Iterator<File> iter = disk.values().iterator();
+		while (spillSize > spillBudget && iter.hasNext()) {
+			final File file = iter.next();
+			iter.remove();
+			spillSize -= file.length();
+			file.delete();
+		}
+	}
+
+	private void spill(final Key key, final Object value) {
+		final int length = length(value);
+		if (spillDirectory == null || length > spillBudget) return;
+		final File file =
+			new File(spillDirectory, key.toString().replaceAll("[^A-Za-z0-9.-]",
+				"-") + ".tile");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			if (value instanceof byte[]) out.write((byte[]) value);
+			else out.getChannel().write(((ByteBuffer) value).duplicate());
+		}
+		catch (final IOException exc) {
+			file.delete();
+			return;
+		}
+		finally {
+			close(out);
+		}
+		disk.put(key, file);
+		spillSize += length;
+		evictSpilled();
+	}
+
+	private static byte[] readFile(final File file) {
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			final byte[] tile = new byte[(int) in.length()];
+			in.readFully(tile);
+			return tile;
+		}
+		catch (final IOException exc) {
+			return null;
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (final IOException exc) {
+					// NB: No action needed.
+				}
+			}
+		}
+	}
+
+	private static void close(final FileOutputStream out) {
+		if (out == null) return;
+		try {
+			out.close();
+		}
+		catch (final IOException exc) {
+			// NB: No action needed.
+		}
+	}
+
+	private static ByteBuffer toBuffer(final byte[] tile) {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(tile.length);
+		buffer.put(tile);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] copy(final Object value) {
+		if (value instanceof byte[]) return ((byte[]) value).clone();
+		final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+		final byte[] tile = new byte[buffer.remaining()];
+		buffer.get(tile);
+		return tile;
+	}
+
+	private static int length(final Object value) {
+		if (value instanceof byte[]) return ((byte[]) value).length;
+		return ((ByteBuffer) value).capacity();
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Identifies a tile: a region of one plane of one resolution level of one
+	 * pixels set on one server, as read by one user.
+	 */
+	public static final class Key {
+
+		private final String server;
+		private final long pixelsID;
+		private final int level;
+		private final int z, c, t, x, y, w, h;
+
+		public Key(final String server, final long pixelsID, final int z,
+			final int c, final int t, final int x, final int y, final int w,
+			final int h)
+		{
+			this(server, pixelsID, 0, z, c, t, x, y, w, h);
+		}
+
+		/**
+		 * @param server The user and server, as given by
+		 *          {@link TileCache#server(OMEROCredentials)}.
+		 * @param level The resolution level, as a SCIFIO image index: 0 is full
+		 *          resolution.
+		 */
+		public Key(final String server, final long pixelsID, final int level,
+			final int z, final int c, final int t, final int x, final int y,
+			final int w, final int h)
+		{
+			this.server = server;
+			this.pixelsID = pixelsID;
+			this.level = level;
+			this.z = z;
+			this.c = c;
+			this.t = t;
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+		}
+
+		public String getServer() {
+			return server;
+		}
+
+		public long getPixelsID() {
+			return pixelsID;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public int getZ() {
+			return z;
+		}
+
+		public int getC() {
+			return c;
+		}
+
+		public int getT() {
+			return t;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getW() {
+			return w;
+		}
+
+		public int getH() {
+			return h;
+		}
+
+		/** Gets the key of the same region in another plane. */
+		public Key atPlane(final int z, final int c, final int t) {
+			return new Key(server, pixelsID, level, z, c, t, x, y, w, h);
+		}
+
+		/** Gets whether the key is of the given pixels ID and {@link #host}. */
+		private boolean matches(final String host, final long id) {
+			return pixelsID == id && server.endsWith(host);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key k = (Key) o;
+			return pixelsID == k.pixelsID && level == k.level && z == k.z &&
+				c == k.c && t == k.t && x == k.x && y == k.y && w == k.w && h == k.h &&
+				server.equals(k.server);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = server.hashCode();
+			hash = 31 * hash + (int) (pixelsID ^ (pixelsID >>> 32));
+			hash = 31 * hash + level;
+			hash = 31 * hash + z;
+			hash = 31 * hash + c;
+			hash = 31 * hash + t;
+			hash = 31 * hash + x;
+			hash = 31 * hash + y;
+			hash = 31 * hash + w;
+			hash = 31 * hash + h;
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return server + "-" + pixelsID + "-" + level + "-" + z + "-" + c + "-" +
+				t + "-" + x + "-" + y + "-" + w + "-" + h;
+		}
+	}
+
+}
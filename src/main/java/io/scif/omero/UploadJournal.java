@@ -0,0 +1,385 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local journal of an upload to OMERO, recording the pixels ID written to
+ * and every plane and tile the server has acknowledged, so that an
+ * interrupted upload can resume where it left off.
+ * <p>
+ * The journal is a text file to which one line is appended per acknowledged
+ * write; it is synced to disk at each {@link #checkpoint()}, and every
+ * {@link #CHECKPOINT_INTERVAL} lines. Writes acknowledged after the last
+ * checkpoint may be lost in a crash, and are then simply sent again.
+ * </p>
+ */
+public class UploadJournal implements WritePipeline.Listener, Closeable {
+
+	// -- Constants --
+
+	/** The number of lines appended between automatic checkpoints. */
+	public static final int CHECKPOINT_INTERVAL = 64;
+
+	private static final String HEADER = "# SCIFIO OMERO upload journal";
+
+	// -- Fields --
+
+	private final File file;
+	private final int sizeX, sizeY, sizeZ, sizeC;
+	private final int planeCount;
+
+	private long pixelsID;
+
+	/** The planes acknowledged as a whole. */
+	private final BitSet planes = new BitSet();
+
+	/** The tiles acknowledged, as "z c t x y w h". */
+	private final Set<String> tiles = new HashSet<String>();
+
+	/** The regions acknowledged per plane, of planes not acknowledged whole. */
+	private final Map<Integer, List<int[]>> regions =
+		new HashMap<Integer, List<int[]>>();
+
+	private FileOutputStream stream;
+	private Writer out;
+	private int unsynced;
+
+	/** The first error appending to the journal, not yet thrown. */
+	private IOException error;
+
+	// -- Constructors --
+
+	/**
+	 * Opens the given journal, loading what it recorded of a previous upload,
+	 * if any.
+	 *
+	 * @throws IOException if the journal cannot be read or written, or is of
+	 *           an image with other dimensions.
+	 */
+	public UploadJournal(final File file, final int sizeX, final int sizeY,
+		final int sizeZ, final int sizeC, final int sizeT) throws IOException
+	{
+		this.file = file;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.sizeC = sizeC;
+		planeCount = sizeZ * sizeC * sizeT;
+		final String image =
+			"image " + sizeX + " " + sizeY + " " + sizeZ + " " + sizeC + " " + sizeT;
+
+		final boolean resume = file.exists() && file.length() > 0;
+		if (resume) load(image);
+		stream = new FileOutputStream(file, true);
+		out = new OutputStreamWriter(stream, "UTF-8");
+		// NB: Terminate a line torn by a crash, so the next one stands alone.
+		if (resume && !endsWithNewline()) out.write('\n');
+		if (!resume) {
+			append(HEADER);
+			append(image);
+			checkpoint();
+		}
+	}
+
+	// -- UploadJournal methods --
+
+	/** Gets the pixels ID being written, or 0 if not yet created. */
+	public long getPixelsID() {
+		return pixelsID;
+	}
+
+	/** Records the pixels ID being written. */
+	public void setPixelsID(final long pixelsID) throws IOException {
+		this.pixelsID = pixelsID;
+		append("pixels " + pixelsID);
+		checkpoint();
+	}
+
+	/** Gets whether the given plane was acknowledged as a whole. */
+	public boolean isWritten(final int z, final int c, final int t) {
+		return planes.get(index(z, c, t));
+	}
+
+	/** Gets whether the given part of a plane was acknowledged. */
+	public boolean isWritten(final int z, final int c, final int t,
+		final int x, final int y, final int w, final int h)
+	{
+		return isWritten(z, c, t) || tiles.contains(tile(z, c, t, x, y, w, h));
+	}
+
+	/**
+	 * Gets whether every pixel of every plane was acknowledged, as part of a
+	 * whole plane or of any tiles, however they overlap.
+	 */
+	public boolean isComplete() {
+		for (int i = 0; i < planeCount; i++) {
+			if (!planes.get(i) && !isCovered(regions.get(i))) return false;
+		}
+		return true;
+	}
+
+	/** Syncs the journal to disk. */
+	public void checkpoint() throws IOException {
+		if (error != null) {
+			final IOException exc = error;
+			error = null;
+			throw exc;
+		}
+		out.flush();
+		stream.getFD().sync();
+		unsynced = 0;
+	}
+
+	/** Closes and deletes the journal, once the upload is complete. */
+	public void delete() throws IOException {
+		close();
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Cannot delete upload journal: " + file);
+		}
+	}
+
+	// -- WritePipeline.Listener methods --
+
+	@Override
+	public void written(final int z, final int c, final int t,
+		final int[] region)
+	{
+		final int index = index(z, c, t);
+		if (planes.get(index)) return;
+		try {
+			if (region == null) {
+				record(index);
+				append("plane " + z + " " + c + " " + t);
+			}
+			else {
+				final String tile =
+					tile(z, c, t, region[0], region[1], region[2], region[3]);
+				if (!record(index, tile, region)) return;
+				append("tile " + tile);
+			}
+			if (++unsynced >= CHECKPOINT_INTERVAL) checkpoint();
+		}
+		catch (final IOException exc) {
+			if (error == null) error = exc;
+		}
+	}
+
+	// -- Closeable methods --
+
+	@Override
+	public void close() throws IOException {
+		if (out == null) return;
+		try {
+			checkpoint();
+		}
+		finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	// -- Helper methods --
+
+	private void load(final String image) throws IOException {
+		final BufferedReader in =
+			new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				"UTF-8"));
+		try {
+			if (!HEADER.equals(in.readLine())) {
+				throw new IOException("Not an upload journal: " + file);
+			}
+			if (!image.equals(in.readLine())) {
+				throw new IOException("Upload journal is of another image: " + file);
+			}
+			while (true) {
+				final String line = in.readLine();
+				if (line == null) break;
+				// NB: The last line may be torn by a crash; ignore what is invalid.
+				final String[] tokens = line.split(" ");
+				try {
+					if (tokens[0].equals("pixels") && tokens.length == 2) {
+						pixelsID = Long.parseLong(tokens[1]);
+					}
+					else if (tokens[0].equals("plane") && tokens.length == 4) {
+						record(index(tokens, 1));
+					}
+					else if (tokens[0].equals("tile") && tokens.length == 8) {
+						final int[] region = new int[4];
+						for (int i = 0; i < region.length; i++) {
+							region[i] = Integer.parseInt(tokens[i + 4]);
+						}
+						record(index(tokens, 1), line.substring(5), region);
+					}
+				}
+				catch (final NumberFormatException exc) {
+					// NB: Torn line.
+				}
+				catch (final IndexOutOfBoundsException exc) {
+					// NB: Torn line.
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private void record(final int index) {
+		planes.set(index);
+		regions.remove(index);
+	}
+
+	/** Records a tile, returning false if it was already recorded. */
+	private boolean record(final int index, final String tile,
+		final int[] region)
+	{
+		if (!tiles.add(tile)) return false;
+		List<int[]> list = regions.get(index);
+		if (list == null) {
+			list = new ArrayList<int[]>();
+			regions.put(index, list);
+		}
+		list.add(region.clone());
+		return true;
+	}
+
+	/**
+	 * Gets whether the given regions cover a whole plane. The plane is split
+	 * into the grid of cells bounded by the regions' edges, so that each cell
+	 * is either inside or outside of every region.
+	 */
+	private boolean isCovered(final List<int[]> list) {
+		if (list == null) return false;
+		final int[] xs = edges(list, 0, sizeX);
+		final int[] ys = edges(list, 1, sizeY);
+		final boolean[][] cells = new boolean[ys.length - 1][xs.length - 1];
+		for (final int[] region : list) {
+			final int x0 = cell(xs, region[0]);
+			final int x1 = cell(xs, region[0] + region[2]);
+			final int y0 = cell(ys, region[1]);
+			final int y1 = cell(ys, region[1] + region[3]);
+			for (int y = y0; y < y1; y++) {
+				Arrays.fill(cells[y], x0, x1, true);
+			}
+		}
+		for (final boolean[] row : cells) {
+			for (final boolean cell : row) {
+				if (!cell) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the sorted, distinct edges of the given regions along the given
+	 * axis, clipped to the plane and including its bounds.
+	 */
+	private static int[] edges(final List<int[]> list, final int axis,
+		final int size)
+	{
+		final int[] edges = new int[2 * list.size() + 2];
+		int count = 0;
+		edges[count++] = 0;
+		edges[count++] = size;
+		for (final int[] region : list) {
+			edges[count++] = clip(region[axis], size);
+			edges[count++] = clip(region[axis] + region[axis + 2], size);
+		}
+		Arrays.sort(edges);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || edges[i] != edges[i - 1]) edges[distinct++] = edges[i];
+		}
+		return Arrays.copyOf(edges, distinct);
+	}
+
+	/** Gets the index of the grid cell starting at the given edge. */
+	private static int cell(final int[] edges, final int position) {
+		return Arrays.binarySearch(edges, clip(position, edges[edges.length - 1]));
+	}
+
+	private static int clip(final int position, final int size) {
+		return Math.max(0, Math.min(position, size));
+	}
+
+	private void append(final String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+	}
+
+	private int index(final String[] tokens, final int offset) {
+		return index(Integer.parseInt(tokens[offset]), Integer
+			.parseInt(tokens[offset + 1]), Integer.parseInt(tokens[offset + 2]));
+	}
+
+	private int index(final int z, final int c, final int t) {
+		final int index = (t * sizeC + c) * sizeZ + z;
+		if (z < 0 || z >= sizeZ || c < 0 || c >= sizeC || index < 0 ||
+			index >= planeCount)
+		{
+			throw new IndexOutOfBoundsException("Invalid plane: z=" + z + ", c=" +
+				c + ", t=" + t);
+		}
+		return index;
+	}
+
+	private static String tile(final int z, final int c, final int t,
+		final int x, final int y, final int w, final int h)
+	{
+		return z + " " + c + " " + t + " " + x + " " + y + " " + w + " " + h;
+	}
+
+}
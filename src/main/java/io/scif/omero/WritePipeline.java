@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import java.util.LinkedList;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+
+/**
+ * Buffers planes written to a raw pixels store into whole-stack or
+ * whole-timepoint batches, and sends them asynchronously.
+ * <p>
+ * Planes arriving in the store's own order (Z fastest, then C, then T) are
+ * gathered into the largest batch which fits the byte budget, and sent with
+ * {@code setTimepoint} or {@code setStack}; other planes and partial planes
+ * are sent with {@code setPlane} and {@code setTile}. All calls are issued as
+ * asynchronous Ice requests, of which at most a bounded number are pending;
+ * the producer only waits for the network when that bound is reached. A
+ * failed request, whether refused by the server ({@link ServerError}) or lost
+ * with the connection ({@link Ice.LocalException}), is reported by the next
+ * call to any method of the pipeline.
+ * </p>
+ */
+public class WritePipeline {
+
+	// -- Constants --
+
+	/** Default maximum size of one batch: 16 MiB. */
+	public static final long DEFAULT_BATCH_SIZE = 16L * 1024 * 1024;
+
+	/** Default maximum number of pending requests. */
+	public static final int DEFAULT_MAX_PENDING = 4;
+
+	private static final int PLANE = 0, STACK = 1, TIMEPOINT = 2;
+
+	// -- Fields --
+
+	private final RawPixelsStorePrx store;
+	private final int sizeZ, sizeC;
+	private final int planeSize;
+
+	/** The unit of batching: one plane, one stack or one timepoint. */
+	private final int unit;
+
+	private final int maxPending;
+
+	private final LinkedList<Request> pending = new LinkedList<Request>();
+
+	/** The batch being gathered, or null if none. */
+	private byte[] batch;
+
+	/** The C and T position of the batch being gathered. */
+	private int batchC, batchT;
+
+	/** The number of planes gathered in the batch. */
+	private int batchCount;
+
+	/**
+	 * The first error of a request, not yet thrown: a {@link ServerError} or an
+	 * {@link Ice.LocalException}.
+	 */
+	private Exception error;
+
+	/** The metrics into which write latencies are recorded, or null. */
+	private OMEROMetrics metrics;
+
+	/** The listener notified of acknowledged writes, or null. */
+	private Listener listener;
+
+	// -- Constructors --
+
+	public WritePipeline(final RawPixelsStorePrx store, final int sizeZ,
+		final int sizeC, final int planeSize)
+	{
+		this(store, sizeZ, sizeC, planeSize, DEFAULT_BATCH_SIZE,
+			DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * @param batchSize The maximum number of bytes sent in one batch; zero
+	 *          disables batching.
+	 * @param maxPending The maximum number of requests in flight.
+	 */
+	public WritePipeline(final RawPixelsStorePrx store, final int sizeZ,
+		final int sizeC, final int planeSize, final long batchSize,
+		final int maxPending)
+	{
+		this.store = store;
+		this.sizeZ = sizeZ;
+		this.sizeC = sizeC;
+		this.planeSize = planeSize;
+		this.maxPending = Math.max(maxPending, 1);
+		final long stackSize = (long) sizeZ * planeSize;
+		if (sizeZ * sizeC > 1 && stackSize * sizeC <= batchSize) unit = TIMEPOINT;
+		else if (sizeZ > 1 && stackSize <= batchSize) unit = STACK;
+		else unit = PLANE;
+	}
+
+	// -- WritePipeline methods --
+
+	/**
+	 * Sets the metrics into which write latencies are recorded. Since requests
+	 * are only checked for completion when another is sent, the recorded
+	 * latencies are upper bounds.
+	 */
+	public void setMetrics(final OMEROMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the listener notified of each plane or tile the server has
+	 * acknowledged, e.g. to checkpoint an upload.
+	 */
+	public void setListener(final Listener listener) {
+		this.listener = listener;
+	}
+
+	/** Writes a whole plane. */
+	public void writePlane(final byte[] bytes, final int z, final int c,
+		final int t) throws ServerError
+	{
+		checkError();
+		if (batch != null && !isNext(z, c, t)) sendBatchPlanes();
+
+		if (batch == null && unit != PLANE && z == 0 && (unit == STACK || c == 0))
+		{
+			// start a new batch
+			final int planes = unit == STACK ? sizeZ : sizeZ * sizeC;
+			batch = new byte[planes * planeSize];
+			batchC = c;
+			batchT = t;
+			batchCount = 0;
+		}
+
+		if (batch == null || bytes.length != planeSize) {
+			send(new Request(Request.PLANE, bytes, z, c, t));
+			return;
+		}
+		System.arraycopy(bytes, 0, batch, batchCount * planeSize, planeSize);
+		batchCount++;
+		if (batchCount * planeSize == batch.length) sendBatch();
+	}
+
+	/** Writes part of a plane. */
+	public void writeTile(final byte[] bytes, final int z, final int c,
+		final int t, final int x, final int y, final int w, final int h)
+		throws ServerError
+	{
+		checkError();
+		final Request request = new Request(Request.TILE, bytes, z, c, t);
+		request.region = new int[] { x, y, w, h };
+		send(request);
+	}
+
+	/** Sends any partial batch, and waits for all pending requests. */
+	public void flush() throws ServerError {
+		if (batch != null) sendBatchPlanes();
+		while (!pending.isEmpty()) {
+			complete(pending.removeFirst());
+		}
+		checkError();
+	}
+
+	// -- Helper methods --
+
+	/** Gets whether the given plane continues the batch being gathered. */
+	private boolean isNext(final int z, final int c, final int t) {
+		if (t != batchT) return false;
+		final int expectedZ = batchCount % sizeZ;
+		final int expectedC =
+			unit == STACK ? batchC : batchC + batchCount / sizeZ;
+		return z == expectedZ && c == expectedC;
+	}
+
+	/** Sends the complete batch in one request. */
+	private void sendBatch() throws ServerError {
+		final Request request =
+			new Request(unit == STACK ? Request.STACK : Request.TIMEPOINT, batch, 0,
+				batchC, batchT);
+		batch = null;
+		send(request);
+	}
+
+	/** Sends the planes of a partial batch individually. */
+	private void sendBatchPlanes() throws ServerError {
+		final byte[] bytes = batch;
+		batch = null;
+		for (int i = 0; i < batchCount; i++) {
+			final byte[] plane = new byte[planeSize];
+			System.arraycopy(bytes, i * planeSize, plane, 0, planeSize);
+			final int z = i % sizeZ;
+			final int c = unit == STACK ? batchC : batchC + i / sizeZ;
+			send(new Request(Request.PLANE, plane, z, c, batchT));
+		}
+	}
+
+	/** Issues the given request, first waiting if too many are pending. */
+	private void send(final Request request) throws ServerError {
+		// collect finished requests, so their errors surface early
+		while (!pending.isEmpty() &&
+			(pending.size() >= maxPending || pending.getFirst().result
+				.isCompleted()))
+		{
+			complete(pending.removeFirst());
+		}
+		checkError();
+		if (metrics != null) request.start = metrics.start();
+		request.begin(store);
+		pending.add(request);
+	}
+
+	private void complete(final Request request) {
+		try {
+			request.end(store);
+			if (metrics != null) request.record(metrics);
+			if (listener != null) request.acknowledge(listener, sizeZ, sizeC);
+		}
+		catch (final ServerError err) {
+			if (error == null) error = err;
+		}
+		catch (final Ice.LocalException exc) {
+			if (error == null) error = exc;
+		}
+	}
+
+	private void checkError() throws ServerError {
+		if (error == null) return;
+		final Exception err = error;
+		error = null;
+		if (err instanceof ServerError) throw (ServerError) err;
+		throw (Ice.LocalException) err;
+	}
+
+	// -- Helper classes --
+
+	/** Notified of the writes the server has acknowledged. */
+	public interface Listener {
+
+		/**
+		 * Notes that the given plane, or part of it, reached the server.
+		 *
+		 * @param region The X, Y, width and height of the part written, or null
+		 *          if the whole plane was written.
+		 */
+		void written(int z, int c, int t, int[] region);
+	}
+
+	/** An asynchronous write request. */
+	private static class Request {
+
+		private static final int PLANE = 0, TILE = 1, STACK = 2, TIMEPOINT = 3;
+
+		private final int type;
+		private final byte[] bytes;
+		private final int z, c, t;
+		private int[] region;
+		private Ice.AsyncResult result;
+		private long start;
+
+		private Request(final int type, final byte[] bytes, final int z,
+			final int c, final int t)
+		{
+			this.type = type;
+			this.bytes = bytes;
+			this.z = z;
+			this.c = c;
+			this.t = t;
+		}
+
+		private void begin(final RawPixelsStorePrx store) {
+			switch (type) {
+				case TILE:
+					result =
+						store.begin_setTile(bytes, z, c, t, region[0], region[1],
+							region[2], region[3]);
+					break;
+				case STACK:
+					result = store.begin_setStack(bytes, z, c, t);
+					break;
+				case TIMEPOINT:
+					result = store.begin_setTimepoint(bytes, t);
+					break;
+				default:
+					result = store.begin_setPlane(bytes, z, c, t);
+			}
+		}
+
+		/** Reports the planes written by this request to the given listener. */
+		private void acknowledge(final Listener listener, final int sizeZ,
+			final int sizeC)
+		{
+			switch (type) {
+				case TILE:
+					listener.written(z, c, t, region);
+					break;
+				case STACK:
+					for (int zz = 0; zz < sizeZ; zz++) {
+						listener.written(zz, c, t, null);
+					}
+					break;
+				case TIMEPOINT:
+					for (int cc = 0; cc < sizeC; cc++) {
+						for (int zz = 0; zz < sizeZ; zz++) {
+							listener.written(zz, cc, t, null);
+						}
+					}
+					break;
+				default:
+					listener.written(z, c, t, null);
+			}
+		}
+
+		/** Records the latency of this request, by its type. */
+		private void record(final OMEROMetrics metrics) {
+			switch (type) {
+				case TILE:
+					metrics.tileWriteCompleted(start);
+					break;
+				case STACK:
+					metrics.stackWriteCompleted(start);
+					break;
+				case TIMEPOINT:
+					metrics.timepointWriteCompleted(start);
+					break;
+				default:
+					metrics.planeWriteCompleted(start);
+			}
+		}
+
+		private void end(final RawPixelsStorePrx store) throws ServerError {
+			switch (type) {
+				case TILE:
+					store.end_setTile(result);
+					break;
+				case STACK:
+					store.end_setStack(result);
+					break;
+				case TIMEPOINT:
+					store.end_setTimepoint(result);
+					break;
+				default:
+					store.end_setPlane(result);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CellCache}.
+ */
+public class CellCacheTest {
+
+	private static final String RAW = CellCache.variant("uint16", false, null, 1);
+
+	/** Tests that cells beyond the budget remain softly reachable. */
+	@Test
+	public void testSoftEviction() {
+		final CellCache cache = new CellCache();
+		cache.setBudget(8);
+		final byte[] cell = new byte[8];
+		cache.put(key(1, 0), cell);
+		cache.put(key(1, 1), new byte[8]);
+		assertEquals(8, cache.getSize());
+		// NB: The evicted cell is still strongly referenced here, so it survives.
+		assertSame(cell, cache.get(key(1, 0)));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	/** Tests {@link CellCache#invalidate(OMEROCredentials, long)}. */
+	@Test
+	public void testInvalidate() {
+		final CellCache cache = new CellCache();
+		cache.setBudget(8);
+		cache.put(key(1, 0), new byte[8]);
+		cache.put(key(1, 1), new byte[8]);
+		cache.put(key(2, 0), new byte[4]);
+		cache.put(key("other.host", 1, RAW), new byte[2]);
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer("my.host");
+		cache.invalidate(credentials, 1);
+		assertNull(cache.get(key(1, 0)));
+		assertNull(cache.get(key(1, 1)));
+		assertEquals(4, cache.get(key(2, 0)).length);
+		assertEquals(2, cache.get(key("other.host", 1, RAW)).length);
+		assertEquals(2, cache.getMissCount());
+	}
+
+	/**
+	 * Tests that cells of other servers, or read in another variant, are
+	 * distinct.
+	 */
+	@Test
+	public void testVariants() {
+		final CellCache cache = new CellCache();
+		cache.put(key("my.host", 1, RAW), new byte[1]);
+		assertNull(cache.get(key("other.host", 1, RAW)));
+		assertNull(cache.get(key("my.host", 1, CellCache.variant("uint16", true,
+			null, 1))));
+		assertNull(cache.get(key("my.host", 1, CellCache.variant("uint16", false,
+			null, 2))));
+		assertNull(cache.get(key("my.host", 1, CellCache.variant("uint16", false,
+			"max", 1))));
+		assertEquals(1, cache.get(key("my.host", 1, RAW)).length);
+	}
+
+	// -- Helper methods --
+
+	private CellCache.Key key(final long pixelsID, final int z) {
+		return new CellCache.Key(server("my.host"), pixelsID, 0, RAW, 0, 0, z, 0,
+			0, 2, 2, 1);
+	}
+
+	private CellCache.Key key(final String host, final long pixelsID,
+		final String variant)
+	{
+		return new CellCache.Key(server(host), pixelsID, 0, variant, 0, 0, 5, 0,
+			0, 2, 2, 1);
+	}
+
+	private static String server(final String host) {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer(host);
+		return TileCache.server(credentials);
+	}
+
+}
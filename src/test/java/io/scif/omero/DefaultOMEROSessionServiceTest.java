@@ -0,0 +1,113 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import omero.api.ServiceFactoryPrx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+/**
+ * Tests {@link DefaultOMEROSessionService}.
+ */
+public class DefaultOMEROSessionServiceTest {
+
+	private Context context;
+	private OMEROSessionService sessionService;
+
+	@Before
+	public void setUp() {
+		context = new Context();
+		sessionService = context.service(OMEROSessionService.class);
+		sessionService.setIdleTimeout(Long.MAX_VALUE);
+		sessionService.setKeepAliveInterval(10);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	/**
+	 * Tests that a live session stays pooled, although the server answers
+	 * {@code false} when asked to keep a null proxy alive.
+	 */
+	@Test
+	public void testKeepAlive() throws InterruptedException {
+		sessionService.register(credentials("alive"), session(false));
+		Thread.sleep(100);
+		assertEquals(1, sessionService.getSessionCount());
+	}
+
+	/** Tests that a session whose ping fails is evicted. */
+	@Test
+	public void testDeadSession() throws InterruptedException {
+		sessionService.register(credentials("dead"), session(true));
+		Thread.sleep(100);
+		assertEquals(0, sessionService.getSessionCount());
+	}
+
+	// -- Helper methods --
+
+	private static OMEROCredentials credentials(final String sessionID) {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer("localhost");
+		credentials.setSessionID(sessionID);
+		return credentials;
+	}
+
+	/** Creates a session whose pings answer as the server does. */
+	private static OMEROSession session(final boolean dead) {
+		final InvocationHandler handler = new InvocationHandler() {
+
+			@Override
+			public Object invoke(final Object proxy, final Method method,
+				final Object[] args)
+			{
+				final String name = method.getName();
+				if (name.equals("hashCode")) return System.identityHashCode(proxy);
+				if (name.equals("equals")) return proxy == args[0];
+				if (name.equals("keepAlive")) {
+					if (dead) throw new Ice.ObjectNotExistException();
+					return args[0] != null;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		};
+		return new OMEROSession((ServiceFactoryPrx) Proxy.newProxyInstance(
+			ServiceFactoryPrx.class.getClassLoader(),
+			new Class<?>[] { ServiceFactoryPrx.class }, handler));
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link DiskMirror}.
+ */
+public class DiskMirrorTest {
+
+	private static final int[] SIZES = { 100, 60, 2, 1, 1 };
+	private static final int[] TILE = { 64, 64 };
+
+	private File directory;
+	private DiskMirror mirror;
+	private OMEROCredentials credentials;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mirror", "");
+		assertTrue(directory.delete());
+		mirror = new DiskMirror();
+		mirror.setDirectory(directory);
+		credentials = new OMEROCredentials();
+		credentials.setServer("my.host");
+	}
+
+	@After
+	public void tearDown() {
+		mirror.close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/** Tests writing and reading back tiles, including edge tiles. */
+	@Test
+	public void testReadWrite() throws IOException {
+		final DiskMirror.MirrorFile file =
+			mirror.open(credentials, 1, 0, 7, SIZES, TILE, 1);
+		assertNotNull(file);
+		final TileCache.Key edge = key(1, 0, 0, 64, 0, 36, 60);
+		assertNull(file.read(edge));
+		assertTrue(file.write(edge, tile(36 * 60, 5)));
+		assertFalse(file.write(edge, tile(36 * 60, 6)));
+
+		final ByteBuffer view = file.read(edge);
+		assertEquals(36 * 60, view.remaining());
+		assertEquals(5, view.get(0));
+		assertTrue(view.isReadOnly());
+		assertNull(file.read(edge.atPlane(0, 0, 0)));
+
+		// NB: Only whole tiles of the layout are mirrored.
+		final TileCache.Key region = key(1, 0, 0, 10, 0, 20, 20);
+		assertFalse(file.write(region, tile(400, 1)));
+		assertEquals(64 * 60, mirror.getUsage());
+	}
+
+	/** Tests that tiles persist across mirrors, until the pixels change. */
+	@Test
+	public void testValidation() throws IOException {
+		final TileCache.Key key = key(0, 0, 0, 0, 0, 64, 60);
+		mirror.open(credentials, 1, 0, 7, SIZES, TILE, 1).write(key, tile(64 * 60,
+			3));
+		assertNotNull(mirror.get(credentials, 1, 0));
+		mirror.close();
+		assertNull(mirror.get(credentials, 1, 0));
+
+		final DiskMirror other = new DiskMirror();
+		other.setDirectory(directory);
+		assertEquals(3, other.open(credentials, 1, 0, 7, SIZES, TILE, 1).read(key)
+			.get(0));
+		assertNull(other.open(credentials, 1, 0, 8, SIZES, TILE, 1).read(key));
+		other.close();
+	}
+
+	/** Tests that views of an outdated file survive its replacement. */
+	@Test
+	public void testReplacement() throws IOException {
+		final TileCache.Key key = key(0, 0, 0, 0, 0, 64, 60);
+		final DiskMirror.MirrorFile file =
+			mirror.open(credentials, 1, 0, 7, SIZES, TILE, 1);
+		file.write(key, tile(64 * 60, 3));
+		final ByteBuffer view = file.read(key);
+
+		final DiskMirror.MirrorFile replaced =
+			mirror.open(credentials, 1, 0, 8, SIZES, TILE, 1);
+		assertNull(replaced.read(key));
+		assertEquals(3, view.get(64 * 60 - 1));
+		assertEquals(1, directory.list().length);
+	}
+
+	/** Tests that files open in one mirror are left alone by another. */
+	@Test
+	public void testSharedDirectory() throws IOException {
+		final TileCache.Key key = key(0, 0, 0, 0, 0, 64, 60);
+		mirror.open(credentials, 1, 0, 7, SIZES, TILE, 1).write(key, tile(64 * 60,
+			3));
+
+		final DiskMirror other = new DiskMirror();
+		other.setDirectory(directory);
+		assertEquals(64 * 60, other.getUsage());
+		assertNull(other.open(credentials, 1, 0, 7, SIZES, TILE, 1));
+		other.close();
+		assertEquals(3, mirror.get(credentials, 1, 0).read(key).get(0));
+	}
+
+	/** Tests that the least recently opened files are evicted. */
+	@Test
+	public void testEviction() throws IOException {
+		mirror.setBudget(3 * 64 * 60);
+		final TileCache.Key key = key(0, 0, 0, 0, 0, 64, 60);
+		for (int id = 1; id <= 4; id++) {
+			final DiskMirror.MirrorFile file =
+				mirror.open(credentials, id, 0, 7, SIZES, TILE, 1);
+			file.write(key, tile(64 * 60, id));
+		}
+		assertTrue(mirror.getUsage() <= 3 * 64 * 60);
+		assertTrue(directory.list().length < 4);
+	}
+
+	// -- Helper methods --
+
+	private TileCache.Key key(final int z, final int c, final int t,
+		final int x, final int y, final int w, final int h)
+	{
+		return new TileCache.Key(TileCache.server(credentials), 1, z, c, t, x, y,
+			w, h);
+	}
+
+	private static byte[] tile(final int length, final int value) {
+		final byte[] tile = new byte[length];
+		Arrays.fill(tile, (byte) value);
+		return tile;
+	}
+
+}
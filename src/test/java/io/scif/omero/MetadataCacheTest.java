@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsType;
+import omero.model.PixelsTypeI;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MetadataCache}.
+ */
+public class MetadataCacheTest {
+
+	/** The resolution sizes of unpyramided 64x32 pixels. */
+	private static final int[][] LEVELS = { { 64, 32 } };
+
+	/** Tests that descriptors and pixels IDs are cached per server. */
+	@Test
+	public void testGetPut() {
+		final MetadataCache cache = new MetadataCache();
+		cache.put(credentials("a"), new MetadataCache.Entry(pixels(7), LEVELS));
+		cache.putPixelsID(credentials("a"), 3, 7);
+		assertNotNull(cache.get(credentials("a"), 7));
+		assertNull(cache.get(credentials("b"), 7));
+		assertEquals(7, cache.getPixelsID(credentials("a"), 3));
+		assertEquals(0, cache.getPixelsID(credentials("b"), 3));
+	}
+
+	/** Tests that entries expire after the time to live. */
+	@Test
+	public void testExpiry() {
+		final MetadataCache.Entry entry =
+			new MetadataCache.Entry(pixels(7), LEVELS);
+		assertFalse(entry.isExpired(MetadataCache.DEFAULT_TIME_TO_LIVE));
+		assertTrue(entry.isExpired(-1));
+	}
+
+	/** Tests {@link MetadataCache#invalidate(long)}. */
+	@Test
+	public void testInvalidate() {
+		final MetadataCache cache = new MetadataCache();
+		cache.put(credentials("a"), new MetadataCache.Entry(pixels(7), LEVELS));
+		cache.put(credentials("a"), new MetadataCache.Entry(pixels(8), LEVELS));
+		cache.invalidate(7);
+		assertNull(cache.get(credentials("a"), 7));
+		assertNotNull(cache.get(credentials("a"), 8));
+	}
+
+	/** Tests that entries survive in the cache file. */
+	@Test
+	public void testFile() throws IOException {
+		final File file = File.createTempFile("metadata-cache", ".properties");
+		file.delete();
+		final MetadataCache cache = new MetadataCache();
+		cache.setFile(file);
+		cache.put(credentials("a"), new MetadataCache.Entry(pixels(7), new int[][] {
+			{ 64, 32 }, { 32, 16 }, { 17, 8 } }));
+		cache.putPixelsID(credentials("a"), 3, 7);
+		cache.close();
+
+		final MetadataCache reloaded = new MetadataCache();
+		reloaded.setFile(file);
+		final MetadataCache.Entry entry = reloaded.get(credentials("a"), 7);
+		assertNotNull(entry);
+		assertEquals(7, reloaded.getPixelsID(credentials("a"), 3));
+
+		final OMEROFormat.Metadata meta = new OMEROFormat.Metadata();
+		entry.populate(meta);
+		assertEquals(7, meta.getPixelsID());
+		assertEquals(64, meta.getSizeX());
+		assertEquals(5, meta.getSizeZ());
+		assertEquals(3, meta.getResolutionLevels());
+		assertEquals(17, meta.getResolutionSizes()[2][0]);
+		assertEquals("uint16", meta.getPixelType());
+		assertNull(meta.getPhysicalSizeX());
+		reloaded.close();
+		file.delete();
+		new File(file.getPath() + ".lock").delete();
+	}
+
+	/**
+	 * Tests that caches sharing a file merge their entries, without reviving
+	 * invalidated ones.
+	 */
+	@Test
+	public void testMerge() throws IOException {
+		final File file = File.createTempFile("metadata-cache", ".properties");
+		file.delete();
+		final MetadataCache first = new MetadataCache();
+		first.setFile(file);
+		final MetadataCache second = new MetadataCache();
+		second.setFile(file);
+		first.put(credentials("a"), new MetadataCache.Entry(pixels(7), LEVELS));
+		first.put(credentials("a"), new MetadataCache.Entry(pixels(8), LEVELS));
+		first.flush();
+		second.put(credentials("a"), new MetadataCache.Entry(pixels(9), LEVELS));
+		second.flush();
+		first.invalidate(8);
+		first.close();
+		second.close();
+
+		final MetadataCache merged = new MetadataCache();
+		merged.setFile(file);
+		assertNotNull(merged.get(credentials("a"), 7));
+		assertNull(merged.get(credentials("a"), 8));
+		assertNotNull(merged.get(credentials("a"), 9));
+		merged.close();
+		file.delete();
+		new File(file.getPath() + ".lock").delete();
+	}
+
+	// -- Helper methods --
+
+	private OMEROCredentials credentials(final String server) {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer(server);
+		return credentials;
+	}
+
+	private Pixels pixels(final long pixelsID) {
+		final PixelsType type = new PixelsTypeI();
+		type.setValue(rstring("uint16"));
+		final Pixels pix = new PixelsI();
+		pix.setId(rlong(pixelsID));
+		pix.setSizeX(rint(64));
+		pix.setSizeY(rint(32));
+		pix.setSizeZ(rint(5));
+		pix.setSizeC(rint(1));
+		pix.setSizeT(rint(1));
+		pix.setPixelsType(type);
+		return pix;
+	}
+
+}
@@ -25,14 +25,20 @@
 
 package io.scif.omero;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import io.scif.Checker;
 import io.scif.FormatException;
 import io.scif.MetadataService;
 import io.scif.SCIFIO;
 
+import net.imglib2.meta.Axes;
+import omero.constants.projection.ProjectionType;
+
 import org.junit.Test;
 
 /**
@@ -100,8 +106,93 @@ public class OMEROFormatTest {
 		assertEquals(pixelsID, meta.getPixelsID());
 	}
 
+	/** Tests the dimensions of images derived by the server. */
+	@Test
+	public void testDerivedImage() {
+		final OMEROFormat.Metadata meta =
+			(OMEROFormat.Metadata) getFormat().createMetadata();
+		meta.setSizeX(100);
+		meta.setSizeY(50);
+		meta.setSizeZ(7);
+		meta.setSizeC(2);
+		meta.setSizeT(3);
+		meta.setPixelType("uint16");
+		meta.populateImageMetadata();
+		assertFalse(meta.isDerived());
+		assertEquals(7, meta.get(0).getAxisLength(Axes.Z));
+
+		meta.setDerivation("max", 1);
+		assertTrue(meta.isDerived());
+		assertEquals(100, meta.get(0).getAxisLength(Axes.X));
+		assertEquals(1, meta.get(0).getAxisLength(Axes.Z));
+		assertEquals(6, meta.get(0).getPlaneCount());
+
+		meta.setDerivation(null, 3);
+		assertEquals(34, meta.get(0).getAxisLength(Axes.X));
+		assertEquals(17, meta.get(0).getAxisLength(Axes.Y));
+		assertEquals(7, meta.get(0).getAxisLength(Axes.Z));
+
+		assertEquals(ProjectionType.SUMINTENSITY, OMEROSession
+			.getProjectionType("SUM"));
+		assertNull(OMEROSession.getProjectionType("median"));
+	}
+
+	/** Tests that pyramid levels take the sizes the server reports. */
+	@Test
+	public void testResolutionLevels() {
+		final OMEROFormat.Metadata meta =
+			(OMEROFormat.Metadata) getFormat().createMetadata();
+		meta.setSizeX(101);
+		meta.setSizeY(50);
+		meta.setSizeZ(1);
+		meta.setSizeC(1);
+		meta.setSizeT(1);
+		meta.setPixelType("uint8");
+		meta.setResolutionSizes(new int[][] { { 101, 50 }, { 51, 25 },
+			{ 26, 13 } });
+		meta.populateImageMetadata();
+		assertEquals(3, meta.getImageCount());
+		assertEquals(51, meta.get(1).getAxisLength(Axes.X));
+		assertEquals(13, meta.get(2).getAxisLength(Axes.Y));
+	}
+
+	/** Tests that regions are given by their origin and lengths. */
+	@Test
+	public void testRegion() throws FormatException {
+		final OMEROFormat.Metadata meta =
+			(OMEROFormat.Metadata) getFormat().createMetadata();
+		meta.setSizeX(100);
+		meta.setSizeY(50);
+		meta.setSizeZ(1);
+		meta.setSizeC(1);
+		meta.setSizeT(1);
+		meta.setPixelType("uint8");
+		meta.populateImageMetadata();
+
+		final int[] region = OMEROFormat.region(meta.get(0), new long[] { 60, 30 },
+			new long[] { 40, 20 });
+		assertArrayEquals(new int[] { 60, 30, 40, 20 }, region);
+
+		assertInvalidRegion(meta, new long[] { 60, 30 }, new long[] { 41, 20 });
+		assertInvalidRegion(meta, new long[] { 60, 30 }, new long[] { 40, 21 });
+		assertInvalidRegion(meta, new long[] { 60, 30 }, new long[] { 0, 20 });
+		assertInvalidRegion(meta, new long[] { -1, 0 }, new long[] { 10, 10 });
+	}
+
 	// -- Helper methods --
 
+	private void assertInvalidRegion(final OMEROFormat.Metadata meta,
+		final long[] planeMin, final long[] planeMax)
+	{
+		try {
+			OMEROFormat.region(meta.get(0), planeMin, planeMax);
+			fail("Expected an invalid region");
+		}
+		catch (final FormatException exc) {
+			// NB: Expected.
+		}
+	}
+
 	private OMEROFormat getFormat() {
 		return new SCIFIO().format().getFormatFromClass(OMEROFormat.class);
 	}
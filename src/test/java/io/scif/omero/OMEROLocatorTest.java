@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OMEROLocator}.
+ */
+public class OMEROLocatorTest {
+
+	/** Tests parsing of every known field. */
+	@Test
+	public void testParse() {
+		final OMEROLocator locator =
+			OMEROLocator.get("omero:name=data&server=my.host.name&port=4321" +
+				"&user=foo&password=bar&sessionID=nuts&encrypted=true" +
+				"&compressed=true&imageID=12&pixelsID=357&datasetID=5&plateID=6");
+		assertEquals("data", locator.getName());
+		assertEquals("my.host.name", locator.getServer());
+		assertEquals(4321, locator.getPort());
+		assertEquals("foo", locator.getUser());
+		assertEquals("bar", locator.getPassword());
+		assertEquals("nuts", locator.getSessionID());
+		assertTrue(locator.isEncrypted());
+		assertTrue(locator.isCompressed());
+		assertEquals(12, locator.getImageID());
+		assertEquals(357, locator.getPixelsID());
+		assertEquals(5, locator.getDatasetID());
+		assertEquals(6, locator.getPlateID());
+		assertTrue(locator.getOptions().isEmpty());
+	}
+
+	/** Tests defaults, the file name suffix and unknown keys. */
+	@Test
+	public void testDefaults() {
+		final OMEROLocator locator =
+			OMEROLocator.get("server=host&&bogus&sizeZ= 3 &imageID=1.omero");
+		assertEquals("host", locator.getServer());
+		assertEquals(4064, locator.getPort());
+		assertNull(locator.getUser());
+		assertFalse(locator.isEncrypted());
+		assertEquals(1, locator.getImageID());
+		assertEquals(0, locator.getPixelsID());
+		assertEquals(1, locator.getOptions().size());
+		assertEquals("3", locator.getOptions().get("sizeZ"));
+	}
+
+	/** Tests that repeated lookups share one locator. */
+	@Test
+	public void testInterning() {
+		final String source = "omero:server=host&imageID=7";
+		final OMEROLocator locator = OMEROLocator.get(source);
+		assertSame(locator, OMEROLocator.get(new String(source)));
+		OMEROLocator.clear();
+		final OMEROLocator reparsed = OMEROLocator.get(source);
+		assertEquals(locator, reparsed);
+		assertEquals(locator.hashCode(), reparsed.hashCode());
+	}
+
+	/** Tests that locators with a password are not interned. */
+	@Test
+	public void testPasswordNotInterned() {
+		final String source = "omero:server=host&user=me&password=secret";
+		final OMEROLocator locator = OMEROLocator.get(source);
+		assertNotSame(locator, OMEROLocator.get(source));
+		assertEquals(locator, OMEROLocator.get(source));
+	}
+
+	/** Tests that locators with a session ID are not interned. */
+	@Test
+	public void testSessionIDNotInterned() {
+		final String source = "omero:server=host&sessionID=secret";
+		final OMEROLocator locator = OMEROLocator.get(source);
+		assertNotSame(locator, OMEROLocator.get(source));
+		assertEquals(locator, OMEROLocator.get(source));
+	}
+
+	/** Tests that the string form never reveals the password or session ID. */
+	@Test
+	public void testToString() {
+		final OMEROLocator locator =
+			OMEROLocator.get("omero:server=host&user=me&password=secret");
+		assertFalse(locator.toString().contains("secret"));
+		assertFalse(OMEROLocator.get("omero:server=host&sessionID=secret")
+			.toString().contains("secret"));
+	}
+
+	/** Tests that malformed numbers are rejected. */
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformed() {
+		OMEROLocator.get("omero:server=host&port=many");
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static omero.rtypes.rlong;
+import static org.junit.Assert.assertEquals;
+import io.scif.FormatException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.api.ServiceFactoryPrx;
+import omero.model.IObject;
+import omero.model.Image;
+import omero.model.ImageI;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OMEROSession}.
+ */
+public class OMEROSessionTest {
+
+	/** Tests that pixels come back in the order their images were given. */
+	@Test
+	public void testPixelsInfoOrder() throws ServerError, FormatException {
+		final List<Pixels> pixels = session(3, 5).getPixelsInfo(5, 3);
+		assertEquals(2, pixels.size());
+		assertEquals(5, pixels.get(0).getImage().getId().getValue());
+		assertEquals(3, pixels.get(1).getImage().getId().getValue());
+	}
+
+	/** Tests that images which are not found are reported. */
+	@Test(expected = FormatException.class)
+	public void testPixelsInfoMissing() throws ServerError, FormatException {
+		session(3, 5).getPixelsInfo(3, 4, 5);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Creates a session whose query service finds the given images, in image
+	 * ID order, as the server does.
+	 */
+	private static OMEROSession session(final long... imageIDs) {
+		final List<IObject> results = new ArrayList<IObject>();
+		for (final long imageID : imageIDs) {
+			final Image image = new ImageI();
+			image.setId(rlong(imageID));
+			final Pixels pix = new PixelsI();
+			pix.setId(rlong(imageID * 10));
+			pix.setImage(image);
+			results.add(pix);
+		}
+		final IQueryPrx query = proxy(IQueryPrx.class, new Answer() {
+
+			@Override
+			public Object answer(final String name) {
+				if (name.equals("findAllByQuery")) return results;
+				return null;
+			}
+		});
+		return new OMEROSession(proxy(ServiceFactoryPrx.class, new Answer() {
+
+			@Override
+			public Object answer(final String name) {
+				if (name.equals("getQueryService")) return query;
+				return null;
+			}
+		}));
+	}
+
+	private static <T> T proxy(final Class<T> type, final Answer answer) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+			new Class<?>[] { type }, new InvocationHandler() {
+
+				@Override
+				public Object invoke(final Object proxy, final Method method,
+					final Object[] args)
+				{
+					final Object result = answer.answer(method.getName());
+					if (result == null) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					return result;
+				}
+			}));
+	}
+
+	// -- Helper classes --
+
+	private interface Answer {
+
+		Object answer(String name);
+	}
+
+}
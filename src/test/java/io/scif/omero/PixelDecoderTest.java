@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.scif.util.FormatTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PixelDecoder}.
+ */
+public class PixelDecoderTest {
+
+	/** Tests that only conversions or byte swaps count as decoding. */
+	@Test
+	public void testIdentity() {
+		assertTrue(new PixelDecoder(FormatTools.UINT16, FormatTools.UINT16,
+			ByteOrder.BIG_ENDIAN).isIdentity());
+		assertTrue(new PixelDecoder(FormatTools.UINT8, FormatTools.UINT8,
+			ByteOrder.LITTLE_ENDIAN).isIdentity());
+		assertFalse(new PixelDecoder(FormatTools.UINT16, FormatTools.UINT16,
+			ByteOrder.LITTLE_ENDIAN).isIdentity());
+		assertFalse(new PixelDecoder(FormatTools.UINT16, FormatTools.FLOAT,
+			ByteOrder.BIG_ENDIAN).isIdentity());
+	}
+
+	/** Tests swapping the byte order in place, across several chunks. */
+	@Test
+	public void testSwap() {
+		final int count = 10000;
+		final ByteBuffer pixels = ByteBuffer.allocate(count * 2);
+		for (int i = 0; i < count; i++) {
+			pixels.putShort((short) i);
+		}
+		final PixelDecoder decoder =
+			new PixelDecoder(FormatTools.INT16, FormatTools.INT16,
+				ByteOrder.LITTLE_ENDIAN);
+		assertTrue(decoder.isInPlace());
+		pixels.flip();
+		decoder.decode(pixels, pixels.duplicate(), count);
+		assertEquals(count * 2, pixels.position());
+		pixels.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, pixels.getShort(i * 2));
+		}
+	}
+
+	/** Tests converting unsigned pixels to floating point. */
+	@Test
+	public void testConvertToFloat() {
+		final ByteBuffer pixels = ByteBuffer.allocate(6);
+		pixels.putShort((short) 0).putShort((short) 1000).putShort((short) 65535);
+		pixels.flip();
+		final ByteBuffer dest = ByteBuffer.allocate(12);
+		new PixelDecoder(FormatTools.UINT16, FormatTools.FLOAT,
+			ByteOrder.LITTLE_ENDIAN).decode(pixels.asReadOnlyBuffer(), dest, 3);
+		dest.flip();
+		dest.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0f, dest.getFloat(), 0);
+		assertEquals(1000f, dest.getFloat(), 0);
+		assertEquals(65535f, dest.getFloat(), 0);
+	}
+
+	/** Tests that integer targets are rounded and clamped. */
+	@Test
+	public void testConvertToInteger() {
+		final ByteBuffer pixels = ByteBuffer.allocate(16);
+		pixels.putFloat(-5f).putFloat(1.6f).putFloat(254.4f).putFloat(300f);
+		pixels.flip();
+		final ByteBuffer dest = ByteBuffer.allocate(4);
+		new PixelDecoder(FormatTools.FLOAT, FormatTools.UINT8,
+			ByteOrder.BIG_ENDIAN).decode(pixels, dest, 4);
+		assertEquals(0, dest.get(0) & 0xff);
+		assertEquals(2, dest.get(1) & 0xff);
+		assertEquals(254, dest.get(2) & 0xff);
+		assertEquals(255, dest.get(3) & 0xff);
+	}
+
+	/** Tests that bit pixels cannot be converted. */
+	@Test(expected = IllegalArgumentException.class)
+	public void testBit() {
+		new PixelDecoder(FormatTools.BIT, FormatTools.UINT8,
+			ByteOrder.BIG_ENDIAN);
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import io.scif.DefaultImageMetadata;
+import io.scif.ImageMetadata;
+import io.scif.SCIFIO;
+
+import net.imglib2.meta.Axes;
+import net.imglib2.meta.AxisType;
+import net.imglib2.meta.CalibratedAxis;
+import net.imglib2.meta.axis.DefaultLinearAxis;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PlaneIndex}.
+ */
+public class PlaneIndexTest {
+
+	private static final int SIZE_Z = 2, SIZE_C = 3, SIZE_T = 4;
+
+	/** Tests every plane of an XYZCT image: Z fastest, then C, then T. */
+	@Test
+	public void testXYZCT() {
+		final AxisType[] order = { Axes.Z, Axes.CHANNEL, Axes.TIME };
+		final int[][] expected = {
+			{ 0, 0, 0 }, { 1, 0, 0 }, { 0, 1, 0 }, { 1, 1, 0 },
+			{ 0, 2, 0 }, { 1, 2, 0 }, { 0, 0, 1 }, { 1, 0, 1 },
+			{ 0, 1, 1 }, { 1, 1, 1 }, { 0, 2, 1 }, { 1, 2, 1 },
+			{ 0, 0, 2 }, { 1, 0, 2 }, { 0, 1, 2 }, { 1, 1, 2 },
+			{ 0, 2, 2 }, { 1, 2, 2 }, { 0, 0, 3 }, { 1, 0, 3 },
+			{ 0, 1, 3 }, { 1, 1, 3 }, { 0, 2, 3 }, { 1, 2, 3 } };
+		assertPlanes(order, expected);
+	}
+
+	/** Tests every plane of an XYZTC image, whose C and T are swapped. */
+	@Test
+	public void testXYZTC() {
+		final AxisType[] order = { Axes.Z, Axes.TIME, Axes.CHANNEL };
+		final int[][] expected = {
+			{ 0, 0, 0 }, { 1, 0, 0 }, { 0, 0, 1 }, { 1, 0, 1 },
+			{ 0, 0, 2 }, { 1, 0, 2 }, { 0, 0, 3 }, { 1, 0, 3 },
+			{ 0, 1, 0 }, { 1, 1, 0 }, { 0, 1, 1 }, { 1, 1, 1 },
+			{ 0, 1, 2 }, { 1, 1, 2 }, { 0, 1, 3 }, { 1, 1, 3 },
+			{ 0, 2, 0 }, { 1, 2, 0 }, { 0, 2, 1 }, { 1, 2, 1 },
+			{ 0, 2, 2 }, { 1, 2, 2 }, { 0, 2, 3 }, { 1, 2, 3 } };
+		assertPlanes(order, expected);
+	}
+
+	/** Tests every plane of an XYCZT image: C fastest, then Z, then T. */
+	@Test
+	public void testXYCZT() {
+		final AxisType[] order = { Axes.CHANNEL, Axes.Z, Axes.TIME };
+		final int[][] expected = {
+			{ 0, 0, 0 }, { 0, 1, 0 }, { 0, 2, 0 }, { 1, 0, 0 },
+			{ 1, 1, 0 }, { 1, 2, 0 }, { 0, 0, 1 }, { 0, 1, 1 },
+			{ 0, 2, 1 }, { 1, 0, 1 }, { 1, 1, 1 }, { 1, 2, 1 },
+			{ 0, 0, 2 }, { 0, 1, 2 }, { 0, 2, 2 }, { 1, 0, 2 },
+			{ 1, 1, 2 }, { 1, 2, 2 }, { 0, 0, 3 }, { 0, 1, 3 },
+			{ 0, 2, 3 }, { 1, 0, 3 }, { 1, 1, 3 }, { 1, 2, 3 } };
+		assertPlanes(order, expected);
+	}
+
+	/** Tests that absent axes map every plane to position 0. */
+	@Test
+	public void testAbsentAxes() {
+		final PlaneIndex index =
+			new PlaneIndex(image(new AxisType[] { Axes.TIME }));
+		assertEquals(SIZE_T, index.getPlaneCount());
+		assertEquals(0, index.getZ(3));
+		assertEquals(0, index.getC(3));
+		assertEquals(3, index.getT(3));
+	}
+
+	/** Tests that channels and timepoints are not mixed up. */
+	@Test
+	public void testZCT() {
+		final OMEROFormat.Metadata meta =
+			(OMEROFormat.Metadata) new SCIFIO().format().getFormatFromClass(
+				OMEROFormat.class).createMetadata();
+		meta.setSizeX(8);
+		meta.setSizeY(8);
+		meta.setSizeZ(SIZE_Z);
+		meta.setSizeC(SIZE_C);
+		meta.setSizeT(SIZE_T);
+		meta.setPixelType("uint8");
+		meta.populateImageMetadata();
+		assertArrayEquals(new int[] { 1, 0, 0 }, OMEROFormat.zct(0, 1, meta));
+		assertArrayEquals(new int[] { 0, 1, 0 }, OMEROFormat.zct(0, 2, meta));
+		assertArrayEquals(new int[] { 1, 2, 3 }, OMEROFormat.zct(0, 23, meta));
+	}
+
+	/** Tests that plane indices out of bounds are rejected. */
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfBounds() {
+		new PlaneIndex(image(new AxisType[] { Axes.Z })).getZ(SIZE_Z);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Asserts that the planes of an image with the given non-planar axes map
+	 * to the given Z, C and T positions.
+	 */
+	private static void assertPlanes(final AxisType[] order,
+		final int[][] expected)
+	{
+		final PlaneIndex index = new PlaneIndex(image(order));
+		assertEquals(expected.length, index.getPlaneCount());
+		for (int p = 0; p < expected.length; p++) {
+			assertArrayEquals("plane " + p, expected[p], new int[] { index.getZ(p),
+				index.getC(p), index.getT(p) });
+		}
+	}
+
+	/** Creates an 8x8 image with the given non-planar axes. */
+	private static ImageMetadata image(final AxisType[] order) {
+		final CalibratedAxis[] axes = new CalibratedAxis[order.length + 2];
+		final long[] lengths = new long[axes.length];
+		axes[0] = new DefaultLinearAxis(Axes.X);
+		axes[1] = new DefaultLinearAxis(Axes.Y);
+		lengths[0] = lengths[1] = 8;
+		for (int i = 0; i < order.length; i++) {
+			axes[i + 2] = new DefaultLinearAxis(order[i]);
+			lengths[i + 2] = size(order[i]);
+		}
+		final ImageMetadata imageMeta = new DefaultImageMetadata();
+		imageMeta.setAxes(axes, lengths);
+		imageMeta.setPlanarAxisCount(2);
+		return imageMeta;
+	}
+
+	private static int size(final AxisType type) {
+		if (type == Axes.Z) return SIZE_Z;
+		if (type == Axes.CHANNEL) return SIZE_C;
+		return SIZE_T;
+	}
+
+}
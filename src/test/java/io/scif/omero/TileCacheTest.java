@@ -0,0 +1,189 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TileCache}.
+ */
+public class TileCacheTest {
+
+	private static final String SERVER =
+		TileCache.server(credentials("my.host"));
+
+	private static final String OTHER_SERVER =
+		TileCache.server(credentials("other.host"));
+
+	/** Tests that cached tiles are returned, and counted as hits. */
+	@Test
+	public void testGetPut() {
+		final TileCache cache = new TileCache();
+		final byte[] tile = { 1, 2, 3, 4 };
+		assertNull(cache.get(key(1, 0)));
+		cache.put(key(1, 0), tile);
+		assertArrayEquals(tile, cache.get(key(1, 0)));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(4, cache.getSize());
+	}
+
+	/** Tests that the least recently used tile is evicted first. */
+	@Test
+	public void testEviction() {
+		final TileCache cache = new TileCache();
+		cache.setBudget(8);
+		cache.put(key(1, 0), new byte[4]);
+		cache.put(key(1, 1), new byte[4]);
+		cache.get(key(1, 0)); // touch
+		cache.put(key(1, 2), new byte[4]);
+		assertNull(cache.get(key(1, 1)));
+		assertEquals(4, cache.get(key(1, 0)).length);
+		assertEquals(4, cache.get(key(1, 2)).length);
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(8, cache.getSize());
+	}
+
+	/** Tests that tiles stored off-heap round-trip intact. */
+	@Test
+	public void testOffHeap() {
+		final TileCache cache = new TileCache();
+		cache.setOffHeap(true);
+		final byte[] tile = { 5, 6, 7 };
+		cache.put(key(1, 0), tile);
+		assertArrayEquals(tile, cache.get(key(1, 0)));
+	}
+
+	/** Tests that views share the cached tile, and cannot modify it. */
+	@Test
+	public void testView() {
+		final TileCache cache = new TileCache();
+		final byte[] tile = { 1, 2, 3, 4 };
+		cache.adopt(key(1, 0), tile);
+		final ByteBuffer view = cache.view(key(1, 0));
+		assertTrue(view.isReadOnly());
+		assertEquals(4, view.remaining());
+		tile[0] = 5;
+		assertEquals(5, view.get(0));
+		assertNull(cache.view(key(1, 1)));
+	}
+
+	/** Tests that evicted tiles are spilled to disk and read back. */
+	@Test
+	public void testSpill() throws IOException {
+		final File dir = File.createTempFile("tile-cache", "");
+		dir.delete();
+		final TileCache cache = new TileCache();
+		cache.setBudget(4);
+		cache.setSpillDirectory(dir);
+		cache.setSpillBudget(1024);
+		final byte[] tile = { 9, 8, 7, 6 };
+		cache.put(key(1, 0), tile);
+		cache.put(key(1, 1), new byte[4]);
+		assertEquals(4, cache.getSpillSize());
+		assertArrayEquals(tile, cache.get(key(1, 0)));
+		cache.clear();
+		assertEquals(0, cache.getSpillSize());
+		dir.delete();
+	}
+
+	/** Tests {@link TileCache#invalidate(OMEROCredentials, long)}. */
+	@Test
+	public void testInvalidate() {
+		final TileCache cache = new TileCache();
+		cache.put(key(1, 0), new byte[4]);
+		cache.put(key(2, 0), new byte[4]);
+		cache.put(key(OTHER_SERVER, 1, 0), new byte[4]);
+		cache.invalidate(credentials("my.host"), 1);
+		assertNull(cache.get(key(1, 0)));
+		assertEquals(4, cache.get(key(2, 0)).length);
+		assertEquals(4, cache.get(key(OTHER_SERVER, 1, 0)).length);
+	}
+
+	/** Tests that the same pixels ID on two servers are distinct tiles. */
+	@Test
+	public void testServers() {
+		final TileCache cache = new TileCache();
+		cache.put(key(1, 0), new byte[] { 1 });
+		cache.put(key(OTHER_SERVER, 1, 0), new byte[] { 2 });
+		assertEquals(1, cache.get(key(1, 0))[0]);
+		assertEquals(2, cache.get(key(OTHER_SERVER, 1, 0))[0]);
+	}
+
+	/**
+	 * Tests that users of one server do not share tiles, but that writes by
+	 * any of them discard the tiles of all.
+	 */
+	@Test
+	public void testUsers() {
+		final OMEROCredentials alice = credentials("my.host");
+		alice.setUser("alice");
+		final OMEROCredentials bob = credentials("my.host");
+		bob.setSessionID("bob's session");
+		final String aliceServer = TileCache.server(alice);
+		final String bobServer = TileCache.server(bob);
+		assertFalse(aliceServer.equals(bobServer));
+		assertFalse(aliceServer.equals(SERVER));
+		assertFalse(bobServer.contains("session"));
+
+		final TileCache cache = new TileCache();
+		cache.put(key(aliceServer, 1, 0), new byte[4]);
+		assertNull(cache.get(key(bobServer, 1, 0)));
+		cache.put(key(bobServer, 1, 0), new byte[4]);
+		cache.invalidate(alice, 1);
+		assertNull(cache.get(key(aliceServer, 1, 0)));
+		assertNull(cache.get(key(bobServer, 1, 0)));
+	}
+
+	// -- Helper methods --
+
+	private static OMEROCredentials credentials(final String server) {
+		final OMEROCredentials credentials = new OMEROCredentials();
+		credentials.setServer(server);
+		return credentials;
+	}
+
+	private TileCache.Key key(final long pixelsID, final int z) {
+		return key(SERVER, pixelsID, z);
+	}
+
+	private TileCache.Key key(final String server, final long pixelsID,
+		final int z)
+	{
+		return new TileCache.Key(server, pixelsID, z, 0, 0, 0, 0, 2, 2);
+	}
+
+}
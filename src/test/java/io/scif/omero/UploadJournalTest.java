@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * OME database I/O package for communicating with OME and OMERO servers.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package io.scif.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link UploadJournal}.
+ */
+public class UploadJournalTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("upload", ".journal");
+		assertTrue(file.delete());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/** Tests that acknowledged writes survive reopening the journal. */
+	@Test
+	public void testResume() throws IOException {
+		final UploadJournal journal = open();
+		assertEquals(0, journal.getPixelsID());
+		journal.setPixelsID(42);
+		journal.written(0, 0, 0, null);
+		journal.written(1, 1, 2, new int[] { 0, 0, 10, 5 });
+		journal.close();
+
+		final UploadJournal resumed = open();
+		assertEquals(42, resumed.getPixelsID());
+		assertTrue(resumed.isWritten(0, 0, 0));
+		assertTrue(resumed.isWritten(0, 0, 0, 0, 5, 10, 5));
+		assertFalse(resumed.isWritten(1, 1, 2));
+		assertTrue(resumed.isWritten(1, 1, 2, 0, 0, 10, 5));
+		assertFalse(resumed.isWritten(1, 1, 2, 0, 5, 10, 5));
+		resumed.delete();
+		assertFalse(file.exists());
+	}
+
+	/** Tests that the upload is complete once every pixel was written. */
+	@Test
+	public void testComplete() throws IOException {
+		final UploadJournal journal = open();
+		for (int t = 0; t < 3; t++) {
+			for (int c = 0; c < 2; c++) {
+				for (int z = 0; z < 2; z++) {
+					if (z == 1 && c == 1 && t == 2) continue;
+					journal.written(z, c, t, null);
+				}
+			}
+		}
+		assertFalse(journal.isComplete());
+		journal.written(1, 1, 2, new int[] { 0, 0, 10, 5 });
+		journal.written(1, 1, 2, new int[] { 0, 0, 10, 5 });
+		assertFalse(journal.isComplete());
+		journal.written(1, 1, 2, new int[] { 0, 5, 10, 5 });
+		assertTrue(journal.isComplete());
+		journal.close();
+	}
+
+	/** Tests that overlapping tiles count each pixel once. */
+	@Test
+	public void testOverlap() throws IOException {
+		final UploadJournal journal = open();
+		for (int t = 0; t < 3; t++) {
+			for (int c = 0; c < 2; c++) {
+				for (int z = 0; z < 2; z++) {
+					if (z == 1 && c == 1 && t == 2) continue;
+					journal.written(z, c, t, null);
+				}
+			}
+		}
+		// NB: 110 pixels written, but rows 6 to 9 are missing.
+		journal.written(1, 1, 2, new int[] { 0, 0, 10, 6 });
+		journal.written(1, 1, 2, new int[] { 0, 0, 10, 5 });
+		assertFalse(journal.isComplete());
+		journal.written(1, 1, 2, new int[] { 0, 4, 10, 6 });
+		assertTrue(journal.isComplete());
+		journal.close();
+
+		final UploadJournal resumed = open();
+		assertTrue(resumed.isComplete());
+		resumed.close();
+	}
+
+	/** Tests that a line torn by a crash is ignored. */
+	@Test
+	public void testTornLine() throws IOException {
+		final UploadJournal journal = open();
+		journal.setPixelsID(7);
+		journal.written(0, 0, 0, null);
+		journal.close();
+		final FileWriter out = new FileWriter(file, true);
+		out.write("plane 1 0");
+		out.close();
+
+		final UploadJournal resumed = open();
+		assertEquals(7, resumed.getPixelsID());
+		assertTrue(resumed.isWritten(0, 0, 0));
+		assertFalse(resumed.isWritten(1, 0, 0));
+		resumed.written(1, 0, 0, null);
+		resumed.close();
+
+		final UploadJournal repaired = open();
+		assertTrue(repaired.isWritten(1, 0, 0));
+		repaired.close();
+	}
+
+	/** Tests that a journal of another image is rejected. */
+	@Test(expected = IOException.class)
+	public void testOtherImage() throws IOException {
+		open().close();
+		new UploadJournal(file, 12, 10, 2, 2, 3);
+	}
+
+	// -- Helper methods --
+
+	private UploadJournal open() throws IOException {
+		return new UploadJournal(file, 10, 10, 2, 2, 3);
+	}
+
+}